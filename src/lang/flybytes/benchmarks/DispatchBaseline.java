@@ -0,0 +1,105 @@
+/*
+ * Copyright (c) 2022, NWO-I CWI 
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package lang.flybytes.benchmarks;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import io.usethesource.vallang.IBool;
+import io.usethesource.vallang.IConstructor;
+import io.usethesource.vallang.IInteger;
+import io.usethesource.vallang.IList;
+import io.usethesource.vallang.IValueFactory;
+import lang.flybytes.internal.Dispatch;
+import lang.flybytes.internal.Dispatch.ExpKind;
+import lang.flybytes.internal.Dispatch.StatKind;
+
+/**
+ * Dispatches AST nodes the way the compiler does, by the identity of their constructor type, 
+ * or the way it used to, by the name of their constructor, such that the DispatchBenchmark
+ * can compare the two without the rest of the compiler. The names are looked up in a map of its own, which
+ * costs about as much as the switch on the name that the compiler used to do.
+ */
+public class DispatchBaseline {
+	private static final Map<String, StatKind> STATS = byName(StatKind.values());
+	private static final Map<String, ExpKind> EXPS = byName(ExpKind.values());
+	private final IValueFactory vf;
+
+	public DispatchBaseline(IValueFactory vf) {
+		this.vf = vf;
+	}
+
+	public IInteger dispatchNodes(IList stats, IList exps, IBool byName, IInteger rounds) {
+		IConstructor[] s = constructors(stats);
+		IConstructor[] e = constructors(exps);
+		boolean names = byName.getValue();
+		int n = rounds.intValue();
+		long sum = 0;
+
+		for (int r = 0; r < n; r++) {
+			for (IConstructor stat : s) {
+				sum += (names ? STATS.getOrDefault(stat.getName(), StatKind.OTHER) : Dispatch.STAT.of(stat)).ordinal();
+			}
+
+			for (IConstructor exp : e) {
+				sum += (names ? EXPS.getOrDefault(exp.getName(), ExpKind.OTHER) : Dispatch.EXP.of(exp)).ordinal();
+			}
+		}
+
+		return vf.integer(sum);
+	}
+
+	/**
+	 * INVOKE_SUPER is the constructor invokeSuper
+	 */
+	private static <K extends Enum<K>> Map<String, K> byName(K[] kinds) {
+		Map<String, K> result = new HashMap<>();
+
+		for (K kind : kinds) {
+			String[] parts = kind.name().toLowerCase().split("_");
+			StringBuilder name = new StringBuilder(parts[0]);
+
+			for (int i = 1; i < parts.length; i++) {
+				name.append(Character.toUpperCase(parts[i].charAt(0))).append(parts[i].substring(1));
+			}
+
+			result.put(name.toString(), kind);
+		}
+
+		return result;
+	}
+
+	private static IConstructor[] constructors(IList nodes) {
+		IConstructor[] result = new IConstructor[nodes.length()];
+
+		for (int i = 0; i < result.length; i++) {
+			result[i] = (IConstructor) nodes.get(i);
+		}
+
+		return result;
+	}
+}
@@ -88,6 +88,8 @@ public class AST {
     = tf.constructor(typestore,_CallSiteInfo,"getterHandle",_Type,"class",tf.stringType(),"name",_Type,"type");
   private static final Type _CallSiteInfo_virtualHandle_3 
     = tf.constructor(typestore,_CallSiteInfo,"virtualHandle",_Type,"class",tf.stringType(),"name",_Signature,"desc");
+  private static final Type _CallSiteInfo_staticHandle_3 
+    = tf.constructor(typestore,_CallSiteInfo,"staticHandle",_Type,"class",tf.stringType(),"name",_Signature,"desc");
   private static final Type _CallSiteInfo_classInfo_1 
     = tf.constructor(typestore,_CallSiteInfo,"classInfo",tf.stringType(),"name");
   private static final Type _CallSiteInfo_floatInfo_1 
@@ -112,6 +114,10 @@ public class AST {
     = tf.constructor(typestore,_Case,"default",tf.listType(_Stat),"block");
   private static final Type _Case_case_2 
     = tf.constructor(typestore,_Case,"case",tf.integerType(),"key",tf.listType(_Stat),"block");
+  private static final Type _Case_longCase_2 
+    = tf.constructor(typestore,_Case,"longCase",tf.integerType(),"longKey",tf.listType(_Stat),"block");
+  private static final Type _Case_stringCase_2 
+    = tf.constructor(typestore,_Case,"stringCase",tf.stringType(),"stringKey",tf.listType(_Stat),"block");
   
   
   private static final Type _Exp_instanceof_2 
@@ -184,6 +190,12 @@ public class AST {
     = tf.constructor(typestore,_Exp,"newInstance",_Type,"class",_Signature,"desc",tf.listType(_Exp),"args");
   private static final Type _Exp_cond_3 
     = tf.constructor(typestore,_Exp,"cond",_Exp,"condition",_Exp,"thenExp",_Exp,"elseExp");
+  private static final Type _Exp_concat_1 
+    = tf.constructor(typestore,_Exp,"concat",tf.listType(_Exp),"args");
+  private static final Type _Exp_constantDynamic_2 
+    = tf.constructor(typestore,_Exp,"constantDynamic",_Type,"type",_BootstrapCall,"handle");
+  private static final Type _Exp_lambda_5 
+    = tf.constructor(typestore,_Exp,"lambda",_Type,"class",_Signature,"desc",tf.listType(tf.stringType()),"captures",tf.listType(_Formal),"formals",tf.listType(_Stat),"block");
   private static final Type _Exp_load_1 
     = tf.constructor(typestore,_Exp,"load",tf.stringType(),"name");
   private static final Type _Exp_shr_2 
@@ -628,6 +640,8 @@ public class AST {
     = tf.constructor(typestore,_SwitchOption,"table");
   private static final Type _SwitchOption_auto_0 
     = tf.constructor(typestore,_SwitchOption,"auto");
+  private static final Type _SwitchOption_clustered_0 
+    = tf.constructor(typestore,_SwitchOption,"clustered");
   
   
   private static final Type _Type_character_0 
@@ -849,6 +863,23 @@ public class AST {
     return vf.constructor(_CallSiteInfo_virtualHandle_3 , $class, vf.string($name), $desc);
   }
   
+  public IConstructor CallSiteInfo_staticHandle(IConstructor $class, String $name, IConstructor $desc) {
+      
+    if (!$class.getType().isSubtypeOf(_Type)) {
+      throw new IllegalArgumentException("Expected " + _Type + " but got " + $class.getType() + " for $class:" + $class);
+    }
+      
+    if (!vf.string($name).getType().isSubtypeOf(tf.stringType())) {
+      throw new IllegalArgumentException("Expected " + tf.stringType() + " but got " + vf.string($name).getType() + " for vf.string($name):" + vf.string($name));
+    }
+      
+    if (!$desc.getType().isSubtypeOf(_Signature)) {
+      throw new IllegalArgumentException("Expected " + _Signature + " but got " + $desc.getType() + " for $desc:" + $desc);
+    }
+    
+    return vf.constructor(_CallSiteInfo_staticHandle_3 , $class, vf.string($name), $desc);
+  }
+  
   public IConstructor CallSiteInfo_classInfo(String $name) {
       
     if (!vf.string($name).getType().isSubtypeOf(tf.stringType())) {
@@ -993,6 +1024,32 @@ public class AST {
     return vf.constructor(_Case_case_2 , vf.integer($key), $block);
   }
   
+  public IConstructor Case_longCase(int $longKey, IList $block) {
+      
+    if (!vf.integer($longKey).getType().isSubtypeOf(tf.integerType())) {
+      throw new IllegalArgumentException("Expected " + tf.integerType() + " but got " + vf.integer($longKey).getType() + " for vf.integer($longKey):" + vf.integer($longKey));
+    }
+      
+    if (!$block.getType().isSubtypeOf(tf.listType(_Stat))) {
+      throw new IllegalArgumentException("Expected " + tf.listType(_Stat) + " but got " + $block.getType() + " for $block:" + $block);
+    }
+    
+    return vf.constructor(_Case_longCase_2 , vf.integer($longKey), $block);
+  }
+  
+  public IConstructor Case_stringCase(String $stringKey, IList $block) {
+      
+    if (!vf.string($stringKey).getType().isSubtypeOf(tf.stringType())) {
+      throw new IllegalArgumentException("Expected " + tf.stringType() + " but got " + vf.string($stringKey).getType() + " for vf.string($stringKey):" + vf.string($stringKey));
+    }
+      
+    if (!$block.getType().isSubtypeOf(tf.listType(_Stat))) {
+      throw new IllegalArgumentException("Expected " + tf.listType(_Stat) + " but got " + $block.getType() + " for $block:" + $block);
+    }
+    
+    return vf.constructor(_Case_stringCase_2 , vf.string($stringKey), $block);
+  }
+  
   
   public IConstructor Exp_instanceof(IConstructor $arg, IConstructor $class) {
       
@@ -1477,6 +1534,53 @@ public class AST {
     return vf.constructor(_Exp_cond_3 , $condition, $thenExp, $elseExp);
   }
   
+  public IConstructor Exp_concat(IList $args) {
+      
+    if (!$args.getType().isSubtypeOf(tf.listType(_Exp))) {
+      throw new IllegalArgumentException("Expected " + tf.listType(_Exp) + " but got " + $args.getType() + " for $args:" + $args);
+    }
+    
+    return vf.constructor(_Exp_concat_1 , $args);
+  }
+  
+  public IConstructor Exp_lambda(IConstructor $class, IConstructor $desc, IList $captures, IList $formals, IList $block) {
+      
+    if (!$class.getType().isSubtypeOf(_Type)) {
+      throw new IllegalArgumentException("Expected " + _Type + " but got " + $class.getType() + " for $class:" + $class);
+    }
+      
+    if (!$desc.getType().isSubtypeOf(_Signature)) {
+      throw new IllegalArgumentException("Expected " + _Signature + " but got " + $desc.getType() + " for $desc:" + $desc);
+    }
+      
+    if (!$captures.getType().isSubtypeOf(tf.listType(tf.stringType()))) {
+      throw new IllegalArgumentException("Expected " + tf.listType(tf.stringType()) + " but got " + $captures.getType() + " for $captures:" + $captures);
+    }
+      
+    if (!$formals.getType().isSubtypeOf(tf.listType(_Formal))) {
+      throw new IllegalArgumentException("Expected " + tf.listType(_Formal) + " but got " + $formals.getType() + " for $formals:" + $formals);
+    }
+      
+    if (!$block.getType().isSubtypeOf(tf.listType(_Stat))) {
+      throw new IllegalArgumentException("Expected " + tf.listType(_Stat) + " but got " + $block.getType() + " for $block:" + $block);
+    }
+    
+    return vf.constructor(_Exp_lambda_5 , $class, $desc, $captures, $formals, $block);
+  }
+  
+  public IConstructor Exp_constantDynamic(IConstructor $type, IConstructor $handle) {
+      
+    if (!$type.getType().isSubtypeOf(_Type)) {
+      throw new IllegalArgumentException("Expected " + _Type + " but got " + $type.getType() + " for $type:" + $type);
+    }
+      
+    if (!$handle.getType().isSubtypeOf(_BootstrapCall)) {
+      throw new IllegalArgumentException("Expected " + _BootstrapCall + " but got " + $handle.getType() + " for $handle:" + $handle);
+    }
+    
+    return vf.constructor(_Exp_constantDynamic_2 , $type, $handle);
+  }
+  
   public IConstructor Exp_load(String $name) {
       
     if (!vf.string($name).getType().isSubtypeOf(tf.stringType())) {
@@ -3183,6 +3287,11 @@ public class AST {
     return vf.constructor(_SwitchOption_auto_0 );
   }
   
+  public IConstructor SwitchOption_clustered() {
+    
+    return vf.constructor(_SwitchOption_clustered_0 );
+  }
+  
   
   public IConstructor Type_character() {
     
@@ -0,0 +1,426 @@
+/*
+ * Copyright (c) 2022, NWO-I CWI 
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package lang.flybytes.internal;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.URISyntaxException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileSystemNotFoundException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.security.CodeSource;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.jar.JarEntry;
+import java.util.jar.JarFile;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import org.rascalmpl.uri.URIResolverRegistry;
+import org.rascalmpl.uri.URIUtil;
+
+import io.usethesource.vallang.IBool;
+import io.usethesource.vallang.IList;
+import io.usethesource.vallang.IMap;
+import io.usethesource.vallang.INode;
+import io.usethesource.vallang.ISet;
+import io.usethesource.vallang.ISourceLocation;
+import io.usethesource.vallang.IString;
+import io.usethesource.vallang.ITuple;
+import io.usethesource.vallang.IValue;
+
+/**
+ * A persistent, content-addressed store for compiled classes. The key of a class file is a 
+ * structural hash of the Class AST and of every compiler option that influences the bytecode.
+ * So a cache hit means we can skip the entire Compile and ASM pipeline, and a changed AST simply
+ * produces a different key.
+ * 
+ * Every cache folder has one instance per JVM, which keeps an LRU index of the files in the folder. 
+ * The index is initialized from the folder contents (oldest files first), and when it grows beyond the 
+ * configured limit the least recently used class files are removed from disk.
+ */
+public class BytecodeCache {
+	private static final Map<ISourceLocation, BytecodeCache> caches = new ConcurrentHashMap<>();
+	private static final String EXTENSION = ".class";
+	private static final String COMPILER_PACKAGE = BytecodeCache.class.getPackage().getName().replace('.', '/') + "/";
+
+	/**
+	 * Part of every key, such that a changed compiler never reads back old bytecode. The implementation version 
+	 * of the jar is not enough for that: it does not exist in the IDE, the tests and development builds, and there
+	 * the compiler changes most often.
+	 */
+	private static final String COMPILER_VERSION = compilerVersion();
+
+	private final ISourceLocation folder;
+	private final LinkedHashMap<String, ISourceLocation> index = new LinkedHashMap<>(16, 0.75f, true /* access order */);
+	private final Map<String, Boolean> writing = new ConcurrentHashMap<>();
+	private int limit;
+
+	private BytecodeCache(ISourceLocation folder, int limit) {
+		this.folder = folder;
+		this.limit = limit;
+		initialize();
+	}
+
+	public static BytecodeCache getInstance(ISourceLocation folder, int limit) {
+		BytecodeCache cache = caches.computeIfAbsent(folder, f -> new BytecodeCache(f, limit));
+		cache.setLimit(limit);
+		return cache;
+	}
+
+	/**
+	 * Compute the key for a given class and the compiler options it is compiled with. The options are
+	 * hashed in the given order.
+	 */
+	public static String key(IValue cls, Object... options) {
+		MessageDigest md = digest();
+		update(md, COMPILER_VERSION);
+
+		for (Object option : options) {
+			update(md, String.valueOf(option));
+		}
+
+		hash(cls, md);
+
+		return toHex(md.digest());
+	}
+
+	/**
+	 * Only the index is locked, and the files are read and written outside of the lock, such that
+	 * the workers of a parallel compilation do not wait for each other's disk access.
+	 */
+	public byte[] get(String key) {
+		ISourceLocation file;
+
+		synchronized (this) {
+			file = index.get(key);
+		}
+
+		if (file == null) {
+			CompilerStatistics.count("cache.misses");
+			return null;
+		}
+
+		try (InputStream in = URIResolverRegistry.getInstance().getInputStream(file)) {
+			byte[] result = in.readAllBytes();
+			CompilerStatistics.count("cache.hits");
+			return result;
+		}
+		catch (IOException e) {
+			// somebody removed or damaged the file; we forget it and recompile
+			synchronized (this) {
+				index.remove(key, file);
+			}
+			CompilerStatistics.count("cache.misses");
+			return null;
+		}
+	}
+
+	public void put(String key, byte[] bytes) {
+		synchronized (this) {
+			if (index.containsKey(key)) {
+				// an indexed file is never written again, since others may be reading it
+				return;
+			}
+		}
+
+		if (writing.putIfAbsent(key, Boolean.TRUE) != null) {
+			// another worker is writing exactly the same bytes
+			return;
+		}
+
+		ISourceLocation file = URIUtil.getChildLocation(folder, key + EXTENSION);
+
+		try {
+			try (OutputStream out = URIResolverRegistry.getInstance().getOutputStream(file, false)) {
+				out.write(bytes);
+			}
+			catch (IOException e) {
+				// a cache that can not be written to is not a reason to fail the compilation
+				CompilerStatistics.count("cache.errors");
+				return;
+			}
+
+			List<ISourceLocation> evicted;
+
+			synchronized (this) {
+				index.put(key, file);
+				evicted = evict();
+			}
+
+			CompilerStatistics.count("cache.writes");
+			remove(evicted);
+		}
+		finally {
+			writing.remove(key);
+		}
+	}
+
+	private void setLimit(int limit) {
+		List<ISourceLocation> evicted;
+
+		synchronized (this) {
+			this.limit = limit;
+			evicted = evict();
+		}
+
+		remove(evicted);
+	}
+
+	/**
+	 * @return the files of the least recently used entries which do not fit in the index anymore
+	 */
+	private List<ISourceLocation> evict() {
+		List<ISourceLocation> evicted = new ArrayList<>();
+		Iterator<Map.Entry<String, ISourceLocation>> it = index.entrySet().iterator();
+
+		while (index.size() > limit && it.hasNext()) {
+			evicted.add(it.next().getValue());
+			it.remove();
+		}
+
+		return evicted;
+	}
+
+	private void remove(List<ISourceLocation> files) {
+		for (ISourceLocation file : files) {
+			try {
+				URIResolverRegistry.getInstance().remove(file, false);
+				CompilerStatistics.count("cache.evictions");
+			}
+			catch (IOException e) {
+				CompilerStatistics.count("cache.errors");
+			}
+		}
+	}
+
+	private void initialize() {
+		URIResolverRegistry reg = URIResolverRegistry.getInstance();
+
+		try {
+			if (!reg.exists(folder)) {
+				reg.mkDirectory(folder);
+				return;
+			}
+
+			// the oldest files are the first candidates for eviction
+			TreeMap<Long, List<ISourceLocation>> byAge = new TreeMap<>();
+
+			for (ISourceLocation file : reg.list(folder)) {
+				if (file.getPath().endsWith(EXTENSION)) {
+					byAge.computeIfAbsent(reg.lastModified(file), t -> new ArrayList<>()).add(file);
+				}
+			}
+
+			for (List<ISourceLocation> files : byAge.values()) {
+				for (ISourceLocation file : files) {
+					String name = URIUtil.getLocationName(file);
+					index.put(name.substring(0, name.length() - EXTENSION.length()), file);
+				}
+			}
+		}
+		catch (IOException e) {
+			// we start with an empty index; existing files will be overwritten when they are compiled again
+			CompilerStatistics.count("cache.errors");
+		}
+	}
+
+	/**
+	 * A stable structural hash of a value. Unlike hashCode() it does not depend on the JVM run,
+	 * and it ignores the iteration order of sets, maps and keyword parameters.
+	 */
+	private static void hash(IValue value, MessageDigest md) {
+		if (value instanceof INode) {
+			INode node = (INode) value;
+			update(md, "node");
+			update(md, node.getName());
+			update(md, Integer.toString(node.arity()));
+
+			for (IValue child : node.getChildren()) {
+				hash(child, md);
+			}
+
+			if (node.mayHaveKeywordParameters()) {
+				Map<String, IValue> kws = new TreeMap<>(node.asWithKeywordParameters().getParameters());
+
+				for (Map.Entry<String, IValue> kw : kws.entrySet()) {
+					update(md, kw.getKey());
+					hash(kw.getValue(), md);
+				}
+			}
+		}
+		else if (value instanceof IList) {
+			update(md, "list");
+			for (IValue elem : (IList) value) {
+				hash(elem, md);
+			}
+		}
+		else if (value instanceof ITuple) {
+			update(md, "tuple");
+			for (IValue elem : (ITuple) value) {
+				hash(elem, md);
+			}
+		}
+		else if (value instanceof ISet) {
+			update(md, "set");
+			unordered((ISet) value, null, md);
+		}
+		else if (value instanceof IMap) {
+			update(md, "map");
+			unordered((IMap) value, (IMap) value, md);
+		}
+		else if (value instanceof IString) {
+			update(md, "str");
+			update(md, ((IString) value).getValue());
+		}
+		else if (value instanceof IBool) {
+			update(md, ((IBool) value).getValue() ? "true" : "false");
+		}
+		else {
+			// numbers, locations and the other atoms have a canonical printed form
+			update(md, value.getType().toString());
+			update(md, value.toString());
+		}
+	}
+
+	private static void unordered(Iterable<IValue> elements, IMap map, MessageDigest md) {
+		List<byte[]> hashes = new ArrayList<>();
+
+		for (IValue elem : elements) {
+			MessageDigest elemDigest = digest();
+			hash(elem, elemDigest);
+
+			if (map != null) {
+				hash(map.get(elem), elemDigest);
+			}
+
+			hashes.add(elemDigest.digest());
+		}
+
+		hashes.sort(Arrays::compare);
+
+		for (byte[] h : hashes) {
+			md.update(h);
+		}
+	}
+
+	/**
+	 * @return a hash of the class files of the compiler package, from the folder or the jar the compiler is loaded from,
+	 *         or a random key for this JVM run if those class files can not be read
+	 */
+	private static String compilerVersion() {
+		MessageDigest md = digest();
+
+		try {
+			CodeSource source = BytecodeCache.class.getProtectionDomain().getCodeSource();
+
+			if (source == null || source.getLocation() == null) {
+				return UUID.randomUUID().toString();
+			}
+
+			Path root = Paths.get(source.getLocation().toURI());
+
+			if (Files.isDirectory(root)) {
+				List<Path> files;
+
+				try (Stream<Path> walk = Files.walk(root.resolve(COMPILER_PACKAGE))) {
+					files = walk.filter(f -> f.toString().endsWith(EXTENSION)).sorted().collect(Collectors.toList());
+				}
+
+				for (Path file : files) {
+					update(md, root.relativize(file).toString());
+					md.update(Files.readAllBytes(file));
+				}
+			}
+			else {
+				try (JarFile jar = new JarFile(root.toFile())) {
+					List<JarEntry> entries = jar.stream()
+							.filter(e -> e.getName().startsWith(COMPILER_PACKAGE) && e.getName().endsWith(EXTENSION))
+							.sorted(Comparator.comparing(JarEntry::getName))
+							.collect(Collectors.toList());
+
+					for (JarEntry entry : entries) {
+						update(md, entry.getName());
+
+						try (InputStream in = jar.getInputStream(entry)) {
+							md.update(in.readAllBytes());
+						}
+					}
+				}
+			}
+
+			return toHex(md.digest());
+		}
+		catch (IOException | URISyntaxException | SecurityException | IllegalArgumentException | FileSystemNotFoundException e) {
+			// without the class files, bytecode is only reused within the same JVM run
+			return UUID.randomUUID().toString();
+		}
+	}
+
+	private static void update(MessageDigest md, String s) {
+		byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+		// the length prefix avoids collisions between concatenations of different strings
+		md.update((byte) (bytes.length >>> 24));
+		md.update((byte) (bytes.length >>> 16));
+		md.update((byte) (bytes.length >>> 8));
+		md.update((byte) bytes.length);
+		md.update(bytes);
+	}
+
+	private static MessageDigest digest() {
+		try {
+			return MessageDigest.getInstance("SHA-256");
+		}
+		catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException("every JVM must support SHA-256", e);
+		}
+	}
+
+	private static String toHex(byte[] bytes) {
+		StringBuilder b = new StringBuilder(bytes.length * 2);
+
+		for (byte x : bytes) {
+			b.append(Character.forDigit((x >> 4) & 0xF, 16));
+			b.append(Character.forDigit(x & 0xF, 16));
+		}
+
+		return b.toString();
+	}
+}
@@ -29,33 +29,57 @@ package lang.flybytes.internal;
 import java.io.IOException;
 import java.io.OutputStream;
 import java.io.PrintWriter;
-import java.lang.invoke.MethodHandles;
 import java.lang.invoke.MethodType;
 import java.lang.reflect.Array;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
 import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
 import java.util.UUID;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
 import java.util.function.BiConsumer;
 import java.util.function.BiFunction;
 import java.util.function.Consumer;
 import java.util.function.Function;
 
+import lang.flybytes.internal.Dispatch.CaseKind;
+import lang.flybytes.internal.Dispatch.ClassKind;
+import lang.flybytes.internal.Dispatch.ExpKind;
+import lang.flybytes.internal.Dispatch.HandlerKind;
+import lang.flybytes.internal.Dispatch.MethodKind;
+import lang.flybytes.internal.Dispatch.TypeKind;
+import lang.flybytes.internal.SymbolTable.Scope;
+import lang.flybytes.internal.SymbolTable.Variable;
+
 import org.rascalmpl.exceptions.RuntimeExceptionFactory;
 import org.objectweb.asm.AnnotationVisitor;
 import org.objectweb.asm.ClassVisitor;
 import org.objectweb.asm.ClassWriter;
+import org.objectweb.asm.ConstantDynamic;
 import org.objectweb.asm.Handle;
 import org.objectweb.asm.Label;
 import org.objectweb.asm.Opcodes;
 import org.objectweb.asm.TypeReference;
+import org.objectweb.asm.tree.AbstractInsnNode;
 import org.objectweb.asm.tree.ClassNode;
 import org.objectweb.asm.tree.FieldNode;
+import org.objectweb.asm.tree.InvokeDynamicInsnNode;
+import org.objectweb.asm.tree.LabelNode;
+import org.objectweb.asm.tree.MethodInsnNode;
 import org.objectweb.asm.tree.MethodNode;
 import org.rascalmpl.uri.URIResolverRegistry;
 import org.rascalmpl.uri.URIUtil;
-import org.rascalmpl.uri.classloaders.SourceLocationClassLoader;
 import org.rascalmpl.values.IRascalValueFactory;
 import org.rascalmpl.values.ValueFactoryFactory;
 
@@ -87,6 +111,7 @@ public class ClassCompiler {
 	private final PrintWriter out;
 	private final Mirror mirror;
 	private final ClassLoader loader;
+	private final Map<IList, HiddenClasses> hiddenClasses = new ConcurrentHashMap<>();
 
 	public ClassCompiler(IRascalValueFactory vf, TypeStore store, PrintWriter out, ClassLoader loader) {
 		this.vf = vf;
@@ -96,53 +121,177 @@ public class ClassCompiler {
 		this.loader = loader;
 	}
 
-	public void compileClass(IConstructor cls, ISourceLocation classFile, IBool enableAsserts, IConstructor version, IBool debugMode) {
+	public void compileClass(IConstructor cls, ISourceLocation classFile, IBool enableAsserts, IConstructor version, IBool debugMode, IConstructor cache, IInteger cacheLimit, IBool incremental) {
+		HierarchyIndex hierarchy = HierarchyIndex.of(vf.list(), loader, vf.list(cls));
+		byte[] bytes = compileClass(cls, AST.$getVersionCode(version), debugMode.getValue(), enableAsserts.getValue(), bytecodeCache(cache, cacheLimit), incremental.getValue(), hierarchy);
+
 		try (OutputStream output = URIResolverRegistry.getInstance().getOutputStream(classFile, false)) {
-			ClassWriter cw = new ClassWriter(ClassWriter.COMPUTE_FRAMES + ClassWriter.COMPUTE_MAXS);
-			ClassVisitor cv = cw;
+			output.write(bytes);
+		} 
+		catch (IOException e) {
+			throw RuntimeExceptionFactory.io(e.getMessage());
+		}
+	}
 
-			new Compile(cv, AST.$getVersionCode(version), debugMode.getValue()).compileClass(cls);
+	public void compileJar(IList classes, ISourceLocation jarFile, IList classpath, IBool enableAsserts, IConstructor version, IBool debugMode, IInteger parallelism, IConstructor cache, IInteger cacheLimit, IBool incremental, IConstructor mainClass, IBool index) {
+		HierarchyIndex hierarchy = HierarchyIndex.of(classpath, loader, classes);
 
-			output.write(cw.toByteArray());
-		} 
+		try {
+			writeJar(jarFile, mainClassName(mainClass), index.getValue(), jar -> 
+				compileClasses(classes, AST.$getVersionCode(version), debugMode.getValue(), enableAsserts.getValue(), bytecodeCache(cache, cacheLimit), incremental.getValue(), parallelism.intValue(), hierarchy, jar));
+		}
 		catch (IOException e) {
 			throw RuntimeExceptionFactory.io(e.getMessage());
 		}
 	}
 
-	public IMap loadClasses(IList classes, IConstructor prefix, IList classpath, IBool enableAsserts, IConstructor version, IBool debugMode) {
-		ClassLoader locLoader = new SourceLocationClassLoader(classpath.append(URIUtil.rootLocation("system")), loader);
-		ClassMapLoader l = new ClassMapLoader(locLoader);
+	public ISourceLocation createSharedArchive(IList classes, ISourceLocation folder, IConstructor mainClass, IList arguments, IList classpath, IBool enableAsserts, IConstructor version, IBool debugMode, IInteger parallelism, IConstructor cache, IInteger cacheLimit, IBool incremental) {
+		if (!SharedArchive.isSupported()) {
+			throw new UnsupportedOperationException("dynamic shared archives require at least JDK 13");
+		}
+
+		HierarchyIndex hierarchy = HierarchyIndex.of(classpath, loader, classes);
+		ISourceLocation jarFile = URIUtil.getChildLocation(folder, SharedArchive.JAR);
+
+		try {
+			writeJar(jarFile, null, false, jar -> {
+				compileClasses(classes, AST.$getVersionCode(version), debugMode.getValue(), enableAsserts.getValue(), bytecodeCache(cache, cacheLimit), incremental.getValue(), parallelism.intValue(), hierarchy, jar);
+				jar.write(ClassListLoader.class.getName(), SharedArchive.loaderClass());
+			});
+
+			SharedArchive.writeClassList(folder, classes);
+
+			// the training run: the JVM writes the archive when it exits
+			ISourceLocation archive = URIUtil.getChildLocation(folder, SharedArchive.ARCHIVE);
+			URIResolverRegistry reg = URIResolverRegistry.getInstance();
+
+			if (reg.exists(archive)) {
+				reg.remove(archive, false);
+			}
+
+			int exit = SharedArchive.run(SharedArchive.command(folder, classpath, mainClassName(mainClass), arguments, "-XX:ArchiveClassesAtExit=", false), out);
+
+			if (exit != 0) {
+				throw new RuntimeException("the training run for " + folder + " exited with " + exit);
+			}
+
+			// a JVM without a base archive only warns that it can not write a dynamic one
+			if (!reg.exists(archive)) {
+				throw new RuntimeException("the training run for " + folder + " did not write " + archive);
+			}
+
+			return archive;
+		}
+		catch (IOException e) {
+			throw RuntimeExceptionFactory.io(e.getMessage());
+		}
+		catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new RuntimeException(e);
+		}
+	}
+
+	/**
+	 * Writes the contents of a JAR
+	 */
+	@FunctionalInterface
+	private interface JarContents {
+		void write(JarWriter jar) throws IOException;
+	}
+
+	/**
+	 * Writes a JAR to a temporary file next to `jarFile` first, and moves it into place only when all its contents 
+	 * have been written. A failing compilation then leaves no truncated JAR behind, which a later scan of the 
+	 * classpath would pick up, and an older JAR at the same location stays as it was.
+	 */
+	private void writeJar(ISourceLocation jarFile, String mainClass, boolean index, JarContents contents) throws IOException {
+		URIResolverRegistry reg = URIResolverRegistry.getInstance();
+		String name = URIUtil.getLocationName(jarFile);
+		ISourceLocation partial = URIUtil.getChildLocation(URIUtil.getParentLocation(jarFile), name + ".part");
+		boolean written = false;
+
+		try {
+			try (JarWriter jar = new JarWriter(reg.getWriteableChannel(partial, false), name, mainClass, index)) {
+				contents.write(jar);
+			}
+
+			reg.rename(partial, jarFile, true);
+			written = true;
+		}
+		finally {
+			if (!written && reg.exists(partial)) {
+				try {
+					reg.remove(partial, false);
+				}
+				catch (IOException e) {
+					// the failure of the compilation is the one to report
+				}
+			}
+		}
+	}
+
+	public IInteger runSharedArchive(ISourceLocation folder, IConstructor mainClass, IList arguments, IList classpath, IBool shared) {
+		try {
+			return vf.integer(SharedArchive.run(SharedArchive.command(folder, classpath, mainClassName(mainClass), arguments, shared.getValue() ? "-XX:SharedArchiveFile=" : null, shared.getValue()), out));
+		}
+		catch (IOException e) {
+			throw RuntimeExceptionFactory.io(e.getMessage());
+		}
+		catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new RuntimeException(e);
+		}
+	}
+
+	public IBool sharedArchivesSupported() {
+		return vf.bool(SharedArchive.isSupported());
+	}
+
+	private static String mainClassName(IConstructor mainClass) {
+		return mainClass.getConstructorType().getName().equals("just") ? ((IString) mainClass.get("val")).getValue() : null;
+	}
+
+	public IMap compilerStatistics() {
+		return CompilerStatistics.toMap(vf);
+	}
 
+	public void resetCompilerStatistics() {
+		CompilerStatistics.reset();
+	}
+
+	public IMap loadClasses(IList classes, IConstructor prefix, IList classpath, IBool enableAsserts, IConstructor version, IBool debugMode, IInteger parallelism, IConstructor cache, IInteger cacheLimit, IBool incremental, IBool lazy) {
+		ClassLoader locLoader = ClasspathLoaders.get(vf, classpath, loader);
 		ISourceLocation classFolder = null;
 
 		if (prefix.getConstructorType().getName().equals("just")) {
 			classFolder = (ISourceLocation) prefix.get("val");
 		}
 
-		for (IValue elem : classes) {
-			IConstructor cls = (IConstructor) elem;
-			String name = AST.$getName(AST.$getType(cls));
+		HierarchyIndex hierarchy = HierarchyIndex.of(classpath, loader, classes);
 
-			ClassWriter cw = new ClassWriter(ClassWriter.COMPUTE_FRAMES);
-			ClassVisitor cv = cw;
+		if (lazy.getValue()) {
+			return loadLazily(classes, locLoader, classFolder, AST.$getVersionCode(version), debugMode.getValue(), enableAsserts.getValue(), bytecodeCache(cache, cacheLimit), incremental.getValue(), hierarchy);
+		}
 
-			new Compile(cv, AST.$getVersionCode(version), debugMode.getValue()).compileClass(cls);
-			byte[] bytes = cw.toByteArray();
+		ClassMapLoader l = new ClassMapLoader(locLoader);
+		byte[][] compiled = compileClasses(classes, AST.$getVersionCode(version), debugMode.getValue(), enableAsserts.getValue(), bytecodeCache(cache, cacheLimit), incremental.getValue(), parallelism.intValue(), hierarchy);
 
-			l.putBytes(name, cw.toByteArray());
+		// defining and writing happens in the order of the input list, regardless of how the classes were compiled
+		for (int i = 0; i < compiled.length; i++) {
+			String name = AST.$getName(AST.$getType((IConstructor) classes.get(i)));
+			byte[] bytes = compiled[i];
+
+			l.putBytes(name, bytes);
 
 			if (classFolder != null) {
-				ISourceLocation classFile = URIUtil.getChildLocation(classFolder, name.replace('.','/') + ".class");
-				try (OutputStream out = URIResolverRegistry.getInstance().getOutputStream(classFile, false)) {
-					out.write(bytes);
-				}
-				catch (IOException e) {
-					RuntimeExceptionFactory.io(vf.string(e.getMessage()), null, null);
-				}
+				writeClassFile(classFolder, name, bytes);
 			}
 		}
 
+		if (parallelism.intValue() > 1) {
+			defineClasses(l, parallelism.intValue());
+		}
+
 		try {
 			Mirror m = new Mirror(vf, ts, out);
 			IMapWriter w = vf.mapWriter();
@@ -157,24 +306,224 @@ public class ClassCompiler {
 		}
 	}
 
-	public IValue loadClass(IConstructor cls, IConstructor output, IList classpath, IBool enableAsserts, IConstructor version, IBool debugMode) {
+	/**
+	 * Registers the ASTs of the classes with a loader which compiles each of them only when the JVM resolves
+	 * its name for the first time, and mirrors them without loading them. Classes which are never used are
+	 * never compiled, written or defined.
+	 */
+	private IMap loadLazily(IList classes, ClassLoader parent, ISourceLocation classFolder, int version, boolean debug, boolean asserts, BytecodeCache cache, boolean incremental, HierarchyIndex hierarchy) {
+		ClassMapLoader l = new ClassMapLoader(parent, (name, cls) -> {
+			byte[] bytes = compileClass(cls, version, debug, asserts, cache, incremental, hierarchy);
+			CompilerStatistics.count("lazy.compiled");
+
+			if (classFolder != null) {
+				writeClassFile(classFolder, name, bytes);
+			}
+
+			return bytes;
+		});
+
+		Mirror m = new Mirror(vf, ts, out);
+		IMapWriter w = vf.mapWriter();
+
+		for (IValue elem : classes) {
+			String name = AST.$getName(AST.$getType((IConstructor) elem));
+			l.putSource(name, (IConstructor) elem);
+			CompilerStatistics.count("lazy.deferred");
+			w.put(vf.string(name), m.mirrorClass(name, () -> l.getClass(name)));
+		}
+
+		return w.done();
+	}
+
+	private void writeClassFile(ISourceLocation classFolder, String name, byte[] bytes) {
+		ISourceLocation classFile = URIUtil.getChildLocation(classFolder, name.replace('.','/') + ".class");
+		try (OutputStream out = URIResolverRegistry.getInstance().getOutputStream(classFile, false)) {
+			out.write(bytes);
+		}
+		catch (IOException e) {
+			throw RuntimeExceptionFactory.io(e.getMessage());
+		}
+	}
+
+	/**
+	 * Defines all classes of a loader concurrently, such that the mirrors of the batch find them already defined.
+	 * Classes which depend on the same super class or interface wait for each other only while that one is defined.
+	 */
+	private void defineClasses(ClassMapLoader l, int parallelism) {
+		List<Callable<Class<?>>> jobs = new ArrayList<>();
+
+		for (String name : l) {
+			jobs.add(() -> l.getClass(name));
+		}
+
+		inParallel(jobs, parallelism, (i, cls) -> { });
+	}
+
+	/**
+	 * Receives the results of a batch of jobs in the order of the jobs
+	 */
+	@FunctionalInterface
+	private interface Results<T, E extends Exception> {
+		void accept(int i, T result) throws E;
+	}
+
+	/**
+	 * Runs jobs on a fork-join pool of at most `parallelism` threads, and passes their results to `results` in the 
+	 * order of the jobs, each as soon as it is done and the ones before it have been passed. A failing job is reported 
+	 * with the exception it threw, as if it had run on the current thread, and the jobs which are still waiting are
+	 * not run anymore.
+	 */
+	private static <T, E extends Exception> void inParallel(List<Callable<T>> jobs, int parallelism, Results<T, E> results) throws E {
+		ForkJoinPool pool = new ForkJoinPool(Math.max(1, Math.min(parallelism, jobs.size())));
+
+		try {
+			List<Future<T>> futures = new ArrayList<>(jobs.size());
+
+			for (Callable<T> job : jobs) {
+				futures.add(pool.submit(job));
+			}
+
+			for (int i = 0; i < futures.size(); i++) {
+				T result = futures.get(i).get();
+				// the receiver decides whether the result is kept
+				futures.set(i, null);
+				results.accept(i, result);
+			}
+		}
+		catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new RuntimeException(e);
+		}
+		catch (ExecutionException e) {
+			if (e.getCause() instanceof RuntimeException) {
+				throw (RuntimeException) e.getCause();
+			}
+			else if (e.getCause() instanceof Error) {
+				// such as the LinkageError of a class which is not valid
+				throw (Error) e.getCause();
+			}
+
+			throw new RuntimeException(e.getCause());
+		}
+		finally {
+			pool.shutdownNow();
+		}
+	}
+
+	/**
+	 * Compiles a batch of classes to bytecode. The result array is in the same order as the input list.
+	 */
+	private byte[][] compileClasses(IList classes, int version, boolean debug, boolean asserts, BytecodeCache cache, boolean incremental, int parallelism, HierarchyIndex hierarchy) {
+		byte[][] result = new byte[classes.length()][];
+		compileClasses(classes, version, debug, asserts, cache, incremental, parallelism, hierarchy, (i, bytes) -> result[i] = bytes);
+		return result;
+	}
+
+	/**
+	 * Compiles a batch of classes into a JAR. The classes are written in the order of the input list, each as soon as it
+	 * is compiled; with a parallelism larger than one the next classes are compiled meanwhile, so writing the JAR 
+	 * overlaps with compiling it and at most the classes which are ahead of the writer are kept in memory.
+	 */
+	private void compileClasses(IList classes, int version, boolean debug, boolean asserts, BytecodeCache cache, boolean incremental, int parallelism, HierarchyIndex hierarchy, JarWriter jar) throws IOException {
+		compileClasses(classes, version, debug, asserts, cache, incremental, parallelism, hierarchy, 
+				(i, bytes) -> jar.write(AST.$getName(AST.$getType((IConstructor) classes.get(i))), bytes));
+	}
+
+	/**
+	 * Compiles a batch of classes, and passes the bytecode of every class to `results` in the order of the input list.
+	 * With a parallelism larger than one, the classes are compiled concurrently on a bounded fork-join pool;
+	 * every class still gets its own Compile and ClassWriter instance, so no state is shared between
+	 * the workers. Only the hierarchy index is shared, which is safe for concurrent use.
+	 */
+	private <E extends Exception> void compileClasses(IList classes, int version, boolean debug, boolean asserts, BytecodeCache cache, boolean incremental, int parallelism, HierarchyIndex hierarchy, Results<byte[], E> results) throws E {
+		if (parallelism <= 1 || classes.length() <= 1) {
+			for (int i = 0; i < classes.length(); i++) {
+				results.accept(i, compileClass((IConstructor) classes.get(i), version, debug, asserts, cache, incremental, hierarchy));
+			}
+
+			return;
+		}
+
+		List<Callable<byte[]>> jobs = new ArrayList<>(classes.length());
+
+		for (IValue elem : classes) {
+			jobs.add(() -> compileClass((IConstructor) elem, version, debug, asserts, cache, incremental, hierarchy));
+		}
+
+		inParallel(jobs, parallelism, results);
+	}
+
+	/**
+	 * Compiles a single class, or retrieves its bytecode from the cache if the class and the compiler options 
+	 * are exactly the same as in a previous compilation. In incremental mode, the methods which have not changed
+	 * since a previous compilation of the same class are reused from the MethodCache. Common super classes
+	 * for the computation of frames are looked up in the given hierarchy index.
+	 */
+	private byte[] compileClass(IConstructor cls, int version, boolean debug, boolean asserts, BytecodeCache cache, boolean incremental, HierarchyIndex hierarchy) {
+		String key = null;
+
+		if (cache != null) {
+			key = BytecodeCache.key(cls, version, debug, asserts);
+			byte[] cached = cache.get(key);
+
+			if (cached != null) {
+				return cached;
+			}
+		}
+
+		byte[] bytes;
+
+		if (incremental) {
+			// the frames of all methods are computed (or reused) by the method cache, so the writer has nothing left to compute
+			ClassWriter cw = new ClassWriter(0);
+			new Compile(cw, version, debug, MethodCache.getInstance(), hierarchy).compileClass(cls);
+			bytes = cw.toByteArray();
+		}
+		else {
+			// with native frames, the compiler emits the frames and maxs of all methods itself
+			ClassWriter cw = hierarchy.writer(Compile.emitsFrames(cls) ? 0 : ClassWriter.COMPUTE_FRAMES);
+			new Compile(cw, version, debug, null, hierarchy).compileClass(cls);
+			bytes = cw.toByteArray();
+		}
+
+		if (cache != null) {
+			cache.put(key, bytes);
+		}
+
+		return bytes;
+	}
+
+	private BytecodeCache bytecodeCache(IConstructor cache, IInteger cacheLimit) {
+		if (cache.getConstructorType().getName().equals("just")) {
+			return BytecodeCache.getInstance((ISourceLocation) cache.get("val"), cacheLimit.intValue());
+		}
+
+		return null;
+	}
+
+	public IValue loadClass(IConstructor cls, IConstructor output, IList classpath, IBool enableAsserts, IConstructor version, IBool debugMode, IConstructor cache, IInteger cacheLimit, IBool incremental, IBool hidden) {
 		try {
-			ClassLoader locLoader = new SourceLocationClassLoader(classpath.append(URIUtil.rootLocation("system")), getClass().getClassLoader());
 			String className = AST.$getName(AST.$getType(cls));
-			ClassWriter cw = new ClassWriter(ClassWriter.COMPUTE_FRAMES);
-			ClassVisitor cv = cw;
+			HierarchyIndex hierarchy = HierarchyIndex.of(classpath, loader, vf.list(cls));
+			byte[] bytes = compileClass(cls, AST.$getVersionCode(version), debugMode.getValue(), enableAsserts.getValue(), bytecodeCache(cache, cacheLimit), incremental.getValue(), hierarchy);
 
-			new Compile(cv, AST.$getVersionCode(version), debugMode.getValue()).compileClass(cls);
+			Class<?> loaded;
 
-			Class<?> loaded = loadSingleClass(className, cw, locLoader);
+			if (hidden.getValue()) {
+				loaded = hiddenClasses(classpath).define(className, bytes);
+			}
+			else {
+				loaded = loadSingleClass(className, bytes, ClasspathLoaders.get(vf, classpath, loader));
+			}
 
 			if (output.getConstructorType().getName().equals("just")) {
 				ISourceLocation classFile = (ISourceLocation) output.get("val");
 				try (OutputStream out = URIResolverRegistry.getInstance().getOutputStream(classFile, false)) {
-					out.write(cw.toByteArray());
+					out.write(bytes);
 				}
 				catch (IOException e) {
-					RuntimeExceptionFactory.io(vf.string(e.getMessage()), null, null);
+					throw RuntimeExceptionFactory.io(e.getMessage());
 				}
 			}
 
@@ -186,6 +535,27 @@ public class ClassCompiler {
 		}
 	}
 
+	/**
+	 * @return the hidden class definer for a classpath, which is shared by all loads with the same classpath such that
+	 *         only the hidden classes themselves come and go
+	 */
+	private HiddenClasses hiddenClasses(IList classpath) {
+		ClassLoader locLoader = ClasspathLoaders.get(vf, classpath, loader);
+
+		// a new loader for the classpath also means new hosts for the hidden classes
+		return hiddenClasses.compute(ClasspathLoaders.canonical(vf, classpath), (cp, hc) -> 
+			hc != null && hc.parent() == locLoader ? hc : new HiddenClasses(locLoader));
+	}
+
+	public IBool hiddenClassesSupported() {
+		return vf.bool(HiddenClasses.isSupported());
+	}
+
+	public void resetClassLoaders() {
+		ClasspathLoaders.invalidate();
+		hiddenClasses.clear();
+	}
+
 	public IValue val(IValue v) {
 		return mirror.mirrorObject(v);
 	}
@@ -200,7 +570,7 @@ public class ClassCompiler {
 
 	public IValue classMirror(IString n, IList classpath) {
 		try {
-			ClassLoader loader = new SourceLocationClassLoader(classpath, this.loader);
+			ClassLoader loader = ClasspathLoaders.get(vf, classpath, this.loader);
 			String name = n.getValue();
 			return mirror.mirrorClass(name, loader.loadClass(name));
 		} catch (ClassNotFoundException e) {
@@ -208,29 +578,49 @@ public class ClassCompiler {
 		}
 	}
 
-	private Class<?> loadSingleClass(String className, ClassWriter cw, ClassLoader loader) throws ClassNotFoundException {
+	private Class<?> loadSingleClass(String className, byte[] bytes, ClassLoader loader) throws ClassNotFoundException {
 		ClassMapLoader l = new ClassMapLoader(loader);
-		l.putBytes(className, cw.toByteArray());
+		l.putBytes(className, bytes);
 		return l.getClass(className);
 	}
 
 	/**
-	 * Load classes from a simple map (from class names to their bytearray bytecode representations)
+	 * Load classes from a simple map (from class names to their bytearray bytecode representations).
+	 * The loader is parallel capable: threads which load different classes for the first time 
+	 * only wait for each other when they need the same class, on the class loading lock of its name.
 	 */
 	static private class ClassMapLoader extends ClassLoader implements Iterable<String>, Opcodes {
+		static {
+			registerAsParallelCapable();
+		}
+
 		private final Map<String, byte[]> bytecodes;
-		private final Map<String, Class<?>> cache;
+		private final Map<String, IConstructor> sources;
+		private final BiFunction<String, IConstructor, byte[]> compiler;
 
 		public ClassMapLoader(ClassLoader parent) {
+			this(parent, null);
+		}
+
+		/**
+		 * With a compiler, classes can also be registered as ASTs, which are compiled only 
+		 * when they are loaded for the first time.
+		 */
+		public ClassMapLoader(ClassLoader parent, BiFunction<String, IConstructor, byte[]> compiler) {
 			super(parent);
-			this.bytecodes = new HashMap<>();
-			this.cache = new HashMap<>();
+			this.bytecodes = new ConcurrentHashMap<>();
+			this.sources = new ConcurrentHashMap<>();
+			this.compiler = compiler;
 		}
 
 		public void putBytes(String name, byte[] bytes) {
 			bytecodes.put(name, bytes);
 		}
 
+		public void putSource(String name, IConstructor cls) {
+			sources.put(name, cls);
+		}
+
 		@Override
 		protected Class<?> loadClass(String name, boolean resolve) throws ClassNotFoundException {
 			return getClass(name);
@@ -242,23 +632,40 @@ public class ClassCompiler {
 		}
 
 		public Class<?> getClass(String name) throws ClassNotFoundException {
-			if (cache.containsKey(name)) {
-				return cache.get(name);
-			}
-
-			byte[] bytes = bytecodes.get(name);
-			if (bytes == null) {
+			if (!bytecodes.containsKey(name) && !sources.containsKey(name)) {
 				return getParent().loadClass(name);
 			}
 
-			Class<?> result = super.defineClass(name, bytes, 0, bytes.length);
-			cache.put(name,  result);
-			return result;
+			synchronized (getClassLoadingLock(name)) {
+				// another thread may have defined it while we were waiting for the lock
+				Class<?> result = findLoadedClass(name);
+
+				if (result == null) {
+					byte[] bytes = bytecodes.get(name);
+
+					if (bytes == null) {
+						bytes = compiler.apply(name, sources.get(name));
+						bytecodes.put(name, bytes);
+						// the AST is not needed anymore
+						sources.remove(name);
+					}
+
+					result = defineClass(name, bytes, 0, bytes.length);
+				}
+
+				return result;
+			}
 		}
 
 		@Override
 		public Iterator<String> iterator() {
-			return bytecodes.keySet().iterator();
+			if (sources.isEmpty()) {
+				return bytecodes.keySet().iterator();
+			}
+
+			Set<String> names = new HashSet<>(bytecodes.keySet());
+			names.addAll(sources.keySet());
+			return names.iterator();
 		}
 	}
 
@@ -268,12 +675,22 @@ public class ClassCompiler {
 	 */
 	private static class Compile {
 		private static final Builder<IConstructor> DONE = () -> { return null; };
+		private static final int FINALLY_OUTLINING_THRESHOLD = 48;
+		private static final int METHOD_SPLITTING_THRESHOLD = 8000;
+		private static final int CONSTANT_ARRAYS_THRESHOLD = 32;
+		private static final int MAX_CONCAT_SLOTS = 200;
+		private static final int CONCAT_ARGUMENT_ESTIMATE = 16;
+		private static final Handle CONCAT_BOOTSTRAP = new Handle(Opcodes.H_INVOKESTATIC, 
+				"java/lang/invoke/StringConcatFactory", "makeConcatWithConstants", 
+				"(Ljava/lang/invoke/MethodHandles$Lookup;Ljava/lang/String;Ljava/lang/invoke/MethodType;Ljava/lang/String;[Ljava/lang/Object;)Ljava/lang/invoke/CallSite;", 
+				false);
+		private static final Handle LAMBDA_BOOTSTRAP = new Handle(Opcodes.H_INVOKESTATIC, 
+				"java/lang/invoke/LambdaMetafactory", "metafactory", 
+				"(Ljava/lang/invoke/MethodHandles$Lookup;Ljava/lang/String;Ljava/lang/invoke/MethodType;Ljava/lang/invoke/MethodType;Ljava/lang/invoke/MethodHandle;Ljava/lang/invoke/MethodType;)Ljava/lang/invoke/CallSite;", 
+				false);
 		private final ClassVisitor cw;
 		private final int version;
-		private ArrayList<IConstructor> variableTypes;
-		private ArrayList<String> variableNames;
-		private ArrayList<IConstructor> variableDefaults;
-		private ArrayList<IList> variableAnnotations;
+		private SymbolTable locals;
 		private boolean hasDefaultConstructor = false;
 		private boolean hasStaticInitializer;
 		private boolean isInterface;
@@ -283,6 +700,7 @@ public class ClassCompiler {
 		private LeveledLabel methodEndLabel;
 		private MethodNode method;
 		private ArrayList<Builder<IConstructor>> tryFinallyNestingLevel = new ArrayList<>();
+		private ArrayList<OutlinedFinally> outlinedFinallyLevel = new ArrayList<>();
 		private IConstructor classType;
 		private ClassNode classNode;
 		private final Builder<IConstructor> pushTrue = () -> trueExp();
@@ -291,24 +709,63 @@ public class ClassCompiler {
 		private Map<String, Label> asmLabels;
 		private int currentLine = 0;
 		private boolean emittingFinally = false;
+		private int expressionNesting = 0;
+		private IConstructor returnType;
 		private final boolean debug;
+		private final MethodCache methodCache;
+		private final Map<MethodNode, String> freshMethods = new IdentityHashMap<>();
+		private String classContext;
+		private final Map<String, IConstructor> optimizations = new HashMap<>();
+		private boolean nativeFrames;
+		private final Map<LabelNode, String> stackHints = new HashMap<>();
+		private final HierarchyIndex hierarchy;
+		private Set<IValue> splitParts = Collections.emptySet();
+		private final Map<IValue, List<SplitHelper>> splitHelpers = new IdentityHashMap<>();
+		private final Set<IValue> wideParts = Collections.newSetFromMap(new IdentityHashMap<>());
+		private final List<SplitHelper> pendingHelpers = new ArrayList<>();
+		private final List<MethodNode> helperMethods = new ArrayList<>();
+		private String helperPrefix;
+		private int helperCount;
+		private final List<LambdaBody> pendingLambdas = new ArrayList<>();
+		private String lambdaPrefix;
+		private int lambdaCount;
 
 		public Compile(ClassVisitor cw, int version, boolean debug) {
+			this(cw, version, debug, null);
+		}
+
+		public Compile(ClassVisitor cw, int version, boolean debug, MethodCache methodCache) {
+			this(cw, version, debug, methodCache, null);
+		}
+
+		/**
+		 * @param methodCache if not null, then methods are reused from and stored in this cache, and 
+		 *                    all methods arrive at `cw` with their frames and maxs already computed. 
+		 * @param hierarchy   if not null, then the frames which the compiler computes itself use this index 
+		 *                    to find common super classes.
+		 */
+		public Compile(ClassVisitor cw, int version, boolean debug, MethodCache methodCache, HierarchyIndex hierarchy) {
 			this.cw = cw;
 			this.version = version;
 			this.debug = debug;
+			this.methodCache = methodCache;
+			this.hierarchy = hierarchy;
 		}
 
 		public void compileClass(IConstructor o) {
 			classNode = new ClassNode();
 			IWithKeywordParameters<? extends IConstructor> kws = o.asWithKeywordParameters();
 
-			isInterface = AST.$is("interface", o);
+			isInterface = Dispatch.CLASS.of(o) == ClassKind.INTERFACE;
 			classType = AST.$getType(o);
 			classNode.version = version;
 			classNode.signature = null; /* anything else leads to the class extending itself! */
 			classNode.name = AST.$getName(classType);
 
+			if (methodCache != null) {
+				classContext = MethodCache.context(o, version, debug);
+			}
+
 			classNode.visitSource(sourceFile(o), null);
 
 			if (kws.hasParameter("modifiers")) {
@@ -329,6 +786,14 @@ public class ClassCompiler {
 				classNode.superName = "java/lang/Object";
 			}
 
+			if (kws.hasParameter("optimizations")) {
+				for (IValue opt : (ISet) kws.getParameter("optimizations")) {
+					optimizations.put(((IConstructor) opt).getName(), (IConstructor) opt);
+				}
+			}
+
+			nativeFrames = optimizations.containsKey("nativeFrames");
+
 			if (kws.hasParameter("interfaces")) {
 				ArrayList<String> interfaces = new ArrayList<String>();
 				for (IValue v : AST.$getInterfaces(kws)) {
@@ -346,20 +811,115 @@ public class ClassCompiler {
 			}
 
 			if (!hasDefaultConstructor && !isInterface) {
-				generateDefaultConstructor(classNode);
+				String key = generatedKey("<init>");
+
+				if (!reuseMethod(classNode, key)) {
+					helperMethods.clear();
+					generateDefaultConstructor(classNode);
+					freshMethod(key);
+					freshHelpers(key);
+				}
 			}
 
 			if (!hasStaticInitializer && !staticFieldInitializers.isEmpty()) {
-				staticInitializer(classNode, null, getLineNumber(o, -1));
+				String key = generatedKey("<clinit>");
+
+				if (!reuseMethod(classNode, key)) {
+					helperMethods.clear();
+					staticInitializer(classNode, null, getLineNumber(o, -1));
+					freshMethod(key);
+					freshHelpers(key);
+				}
 			}
 
+			constantArrayDecoders(classNode);
+
 			if (kws.hasParameter("annotations")) {
 				annotations(classNode, AST.$getAnnotations(kws));
 			}
 
+			if (nativeFrames) {
+				frames(classNode);
+			}
+
+			if (methodCache != null) {
+				methodCache.complete(classNode, freshMethods, nativeFrames, hierarchy);
+			}
+
 			classNode.accept(cw);
 		}
 
+		/**
+		 * Adds the methods which decode the constant arrays that the methods of this class load, 
+		 * see {@link ConstantArrays}. Methods from the cache may call them as well.
+		 */
+		private void constantArrayDecoders(ClassNode classNode) {
+			for (String name : ConstantArrays.missingDecoders(classNode)) {
+				String key = generatedKey(name);
+
+				if (!reuseMethod(classNode, key)) {
+					method = ConstantArrays.decoder(classNode.name, name);
+					classNode.methods.add(method);
+					freshMethod(key);
+				}
+			}
+		}
+
+		/**
+		 * @return true if the compiler emits the frames and maxs of this class itself, such that the
+		 *         class arrives at the ClassVisitor completely analyzed.
+		 */
+		public static boolean emitsFrames(IConstructor cls) {
+			IWithKeywordParameters<? extends IConstructor> kws = cls.asWithKeywordParameters();
+
+			if (kws.hasParameter("optimizations")) {
+				for (IValue opt : (ISet) kws.getParameter("optimizations")) {
+					if (((IConstructor) opt).getName().equals("nativeFrames")) {
+						return true;
+					}
+				}
+			}
+
+			return false;
+		}
+
+		/**
+		 * Emits the frames of the freshly generated methods of the class. ASM computes the frames of 
+		 * the methods which the FrameEmitter can not handle.
+		 */
+		private void frames(ClassNode cn) {
+			List<MethodNode> fallback = new ArrayList<>();
+
+			for (MethodNode m : cn.methods) {
+				if (methodCache != null && !freshMethods.containsKey(m)) {
+					continue; // copied from the method cache, with its frames
+				}
+
+				if (!FrameEmitter.emit(cn.name, m, stackHints)) {
+					fallback.add(m);
+				}
+			}
+
+			if (fallback.isEmpty()) {
+				return;
+			}
+
+			Map<MethodNode, MethodNode> analyzed = FrameEmitter.computeFrames(cn, fallback, hierarchy);
+			List<MethodNode> methods = cn.methods;
+
+			for (int i = 0; i < methods.size(); i++) {
+				MethodNode done = analyzed.get(methods.get(i));
+
+				if (done != null) {
+					String key = freshMethods.remove(methods.get(i));
+					if (key != null) {
+						freshMethods.put(done, key);
+					}
+					methods.set(i, done);
+				}
+			}
+		}
+
 		private String sourceFile(IConstructor o) {
 			if (o.mayHaveKeywordParameters()) {
 				ISourceLocation loc = (ISourceLocation) o.asWithKeywordParameters().getParameter("src");
@@ -497,6 +1057,7 @@ public class ClassCompiler {
 
 		private void generateDefaultConstructor(ClassNode cn) {
 			method = new MethodNode(Opcodes.ACC_PUBLIC, "<init>", "()V", null, null);
+			startLambdas();
 			method.visitCode();
 			Label l0 = new LeveledLabel(0);
 			Label l1 = new LeveledLabel(0);
@@ -516,6 +1077,7 @@ public class ClassCompiler {
 			method.visitMaxs(0, 0);
 			method.visitEnd();
 			classNode.methods.add(method);
+			lambdaMethods(cn);
 		}
 
 		private void fields(ClassNode classNode, IList fields, boolean interf, int parentLine) {
@@ -528,29 +1090,172 @@ public class ClassCompiler {
 		private void methods(ClassNode classNode, IList methods, int parentLine) {
 			for (IValue field : methods) {
 				IConstructor cons = (IConstructor) field;
-				if (cons.getConstructorType().getName().equals("static")) {
+				boolean isStatic = Dispatch.METHOD.of(cons) == MethodKind.STATIC;
+				String key = methodKey(cons);
+
+				if (reuseMethod(classNode, key)) {
+					// the side-effects of compiling the method on the class are still required
+					if (isStatic) {
+						claimStaticInitializer();
+					}
+					else {
+						hasDefaultConstructor |= isDefaultConstructor(cons);
+					}
+					continue;
+				}
+
+				if (optimizations.containsKey("constantFolding")) {
+					cons = Simplifier.simplify(cons);
+				}
+
+				helperMethods.clear();
+
+				if (isStatic) {
 					staticInitializer(classNode, cons, parentLine);
 				}
 				else {
 					method(classNode, cons, parentLine);
 				}
+
+				freshMethod(key);
+				freshHelpers(key);
 			}
 		}
 
-		private void staticInitializer(ClassNode classNode, IConstructor cons, int parentLine) {
+		/**
+		 * Registers the helper methods and lambda bodies of the method which was generated last, 
+		 * such that they are cached with it.
+		 */
+		private void freshHelpers(String key) {
+			if (key != null) {
+				for (MethodNode helper : helperMethods) {
+					freshMethods.put(helper, helperKey(key, helper.name));
+				}
+			}
+		}
+
+		private static String helperKey(String key, String helper) {
+			return key + ":" + helper;
+		}
+
+		private String methodKey(IConstructor cons) {
+			return methodCache != null ? MethodCache.key(classContext, cons) : null;
+		}
+
+		private String generatedKey(String name) {
+			return methodCache != null ? MethodCache.key(classContext, name) : null;
+		}
+
+		/**
+		 * Adds a previously compiled method to the class, if incremental compilation is on and the method 
+		 * was compiled before in the same class context.
+		 */
+		private boolean reuseMethod(ClassNode classNode, String key) {
+			if (key == null) {
+				return false;
+			}
+
+			MethodNode cached = methodCache.get(key);
+
+			if (cached == null) {
+				return false;
+			}
+
+			List<MethodNode> helpers = new ArrayList<>();
+
+			if (!cachedHelpers(key, cached, helpers)) {
+				return false; // the cache forgot a helper method, so we generate all of them again
+			}
+
+			classNode.methods.add(cached);
+			classNode.methods.addAll(helpers);
+			return true;
+		}
+
+		/**
+		 * Collects the helper methods which were split off from a cached method, and the bodies of its lambdas, recursively.
+		 * @return false if one of them is not cached anymore
+		 */
+		private boolean cachedHelpers(String key, MethodNode cached, List<MethodNode> helpers) {
+			for (AbstractInsnNode insn = cached.instructions.getFirst(); insn != null; insn = insn.getNext()) {
+				String name = helperName(insn);
+
+				if (name != null) {
+					if (helpers.stream().anyMatch(h -> h.name.equals(name))) {
+						continue; // called from several copies of a finally block
+					}
+
+					MethodNode helper = methodCache.get(helperKey(key, name));
+
+					if (helper == null) {
+						return false;
+					}
+
+					helpers.add(helper);
+
+					if (!cachedHelpers(key, helper, helpers)) {
+						return false;
+					}
+				}
+			}
+
+			return true;
+		}
+
+		/**
+		 * @return the name of the split helper or lambda body of this class which the instruction refers to, or null
+		 */
+		private String helperName(AbstractInsnNode insn) {
+			if (insn instanceof MethodInsnNode) {
+				MethodInsnNode call = (MethodInsnNode) insn;
+
+				if (call.owner.equals(classNode.name) && call.name.contains("$split$")) {
+					return call.name;
+				}
+			}
+			else if (insn instanceof InvokeDynamicInsnNode) {
+				for (Object arg : ((InvokeDynamicInsnNode) insn).bsmArgs) {
+					if (arg instanceof Handle && ((Handle) arg).getOwner().equals(classNode.name) && ((Handle) arg).getName().startsWith("lambda$")) {
+						return ((Handle) arg).getName();
+					}
+				}
+			}
+
+			return null;
+		}
+
+		private void freshMethod(String key) {
+			if (key != null) {
+				freshMethods.put(method, key);
+			}
+		}
+
+		private boolean isDefaultConstructor(IConstructor cons) {
+			boolean isAbstract = cons.getConstructorType().getArity() == 1;
+			IConstructor sig = AST.$getDesc(cons);
+
+			return !isAbstract
+					&& sig.getConstructorType().getName().equals("constructorDesc") 
+					&& AST.$getFormals(sig).isEmpty();
+		}
+
+		private void claimStaticInitializer() {
 			if (hasStaticInitializer) {
 				throw new IllegalArgumentException("can only have one static initializer per class");
 			}
 			else {
 				hasStaticInitializer = true;
 			}
+		}
+
+		private void staticInitializer(ClassNode classNode, IConstructor cons, int parentLine) {
+			claimStaticInitializer();
 
 			method = new MethodNode(Opcodes.ACC_STATIC, "<clinit>", "()V", null, null);
+			returnType = Types.voidType();
+			startLambdas();
 
-			variableTypes = new ArrayList<>();
-			variableNames = new ArrayList<>();
-			variableDefaults = new ArrayList<>();
-			variableAnnotations = new ArrayList<>();
+			locals = new SymbolTable();
 
 			methodStartLabel = new LeveledLabel(0);
 			methodEndLabel = new LeveledLabel(0);
@@ -560,140 +1265,554 @@ public class ClassCompiler {
 
 			staticFieldInitializers(classNode, method, getLineNumber(cons, parentLine));
 
-			IList block = AST.$getBlock(cons);
-			if (block != null) {
-				statements(block, null, null, methodEndLabel, getLineNumber(cons, parentLine));
+			IList block = AST.$getBlock(cons);
+			if (block != null) {
+				statements(block, null, null, methodEndLabel, getLineNumber(cons, parentLine));
+			}
+
+			method.visitLabel(methodEndLabel);
+			method.visitInsn(Opcodes.RETURN);
+			method.visitMaxs(0, 0);
+			optimize(method);
+			method.visitEnd();
+
+			classNode.methods.add(method);
+			lambdaMethods(classNode);
+		}
+
+
+		private void method(ClassNode classNode, IConstructor cons, int parentLine) {
+			IWithKeywordParameters<? extends IConstructor> kws = cons.asWithKeywordParameters();
+
+			boolean isAbstract = cons.getConstructorType().getArity() == 1; // only a signature
+
+			int modifiers = Opcodes.ACC_PUBLIC;
+			modifiers += isAbstract ? Opcodes.ACC_ABSTRACT : 0;
+
+			if (kws.hasParameter("modifiers")) {
+				modifiers = modifiers(AST.$getModifiersParameter(kws));
+			}
+
+			IConstructor sig = AST.$getDesc(cons);
+			boolean isConstructor = sig.getConstructorType().getName().equals("constructorDesc");
+			String name = isConstructor ? "<init>" : AST.$getName(sig);
+
+			method = new MethodNode(modifiers, name, isConstructor ? Signature.constructor(sig) : Signature.method(sig), null, null);
+			returnType = isConstructor ? Types.voidType() : AST.$getReturn(sig);
+
+			// every method body has a fresh set of jump labels
+			labels = new HashMap<>(); 
+
+			// for raw asm labels, we have a different map
+			asmLabels = new HashMap<>();
+
+			if (!isAbstract) {
+				if (isInterface && classNode.version < Opcodes.V1_8) {
+					throw new IllegalArgumentException("default methods requires at least JVM version v1_8()");
+				}
+
+				if ((modifiers & Opcodes.ACC_ABSTRACT) != 0) {
+					throw new IllegalArgumentException("method with body should not be abstract");
+				}
+
+				IList sigFormals = AST.$getFormals(sig);
+				hasDefaultConstructor |= (isConstructor && sigFormals.isEmpty());
+				IList varFormals = AST.$getFormals(cons);
+
+				if (sigFormals.length() != varFormals.length()) {
+					throw new IllegalArgumentException("type signature of " + name + " has different number of types (" + sigFormals.length() + ") from formal parameters (" + varFormals.length() + "), see: " + sigFormals + " versus " + varFormals);
+				}
+
+				boolean isStatic = (modifiers & Opcodes.ACC_STATIC) != 0;
+				methodBody(cons, varFormals, isStatic, isConstructor, parentLine);
+
+				if (!isConstructor && !isInterface && Dispatch.METHOD.of(cons) != MethodKind.PROCEDURE) {
+					int size = MethodSplitter.codeSize(method);
+					int threshold = threshold("methodSplitting", METHOD_SPLITTING_THRESHOLD);
+
+					if (size > threshold) {
+						IList body = AST.$getBlock(cons);
+						Set<IValue> parts = MethodSplitter.parts(body, size, threshold, Collections.emptySet());
+
+						if (!parts.isEmpty()) {
+							// generate the method again, with calls to the helper methods instead of the parts
+							CompilerStatistics.count("methodSplitting.methods");
+							helperPrefix = name + "$split$" + Integer.toHexString(method.desc.hashCode()) + "$";
+							helperCount = 0;
+							int access = modifiers;
+							splitMethod(body, size, threshold, parts, p -> {
+								method = new MethodNode(access, name, Signature.method(sig), null, null);
+								labels = new HashMap<>();
+								asmLabels = new HashMap<>();
+								splitParts = p;
+								methodBody(cons, varFormals, isStatic, isConstructor, parentLine);
+								splitParts = Collections.emptySet();
+							});
+						}
+					}
+				}
+			}
+
+			if (kws.hasParameter("annotations")) {
+				annotations(method, (IList) kws.getParameter("annotations"));
+			}
+
+			method.visitEnd(); // also needed for abstract methods
+			classNode.methods.add(method);
+			helperMethods(classNode);
+			lambdaMethods(classNode);
+		}
+
+		private void methodBody(IConstructor cons, IList varFormals, boolean isStatic, boolean isConstructor, int parentLine) {
+			locals = new SymbolTable();
+			currentLine = 0; // a method which is generated again needs its line numbers again
+			startLambdas(); // and its lambdas again
+			methodStartLabel = new LeveledLabel(0);
+			methodEndLabel = new LeveledLabel(0);
+
+			method.visitCode();
+			method.visitLabel(methodStartLabel);
+
+			if (!isStatic) {
+				declareVariable(classType, "this", null, false, null, getLineNumber(cons, parentLine));
+			}
+
+			formalVariables(varFormals, false /* no initialization */);
+
+			if (isConstructor && !fieldInitializers.isEmpty()) {
+				fieldInitializers(classNode, method);
+			}
+
+			if (Dispatch.METHOD.of(cons) == MethodKind.PROCEDURE) {
+			    instructions(AST.$getInstructions(cons), methodEndLabel, methodEndLabel, methodEndLabel, getLineNumber(cons, parentLine));
+			}
+			else {
+			    statements(AST.$getBlock(cons), methodStartLabel, methodEndLabel, methodEndLabel, getLineNumber(cons, parentLine));
+			}
+
+			method.visitLabel(methodEndLabel);
+			locals.exitScope(methodEndLabel);
+			localVariables();
+			method.visitMaxs(0, 0);
+			optimize(method);
+		}
+
+		private void localVariables() {
+			for (Variable var : locals.variables()) {
+				method.visitLocalVariable(var.name, Signature.type(var.type), null, var.getStart(), var.getEnd(), var.slot);
+
+				if (var.annotations != null) {
+					int typeRef = TypeReference.newTypeReference(TypeReference.LOCAL_VARIABLE).getValue();
+					annotations((s,v) ->
+					method.visitLocalVariableAnnotation(typeRef, null, new Label[] {var.getStart()}, new Label[] {var.getEnd()}, new int[] {var.slot}, s, v), var.annotations);
+				}
+			}
+		}
+
+		/**
+		 * @return the threshold parameter of an optimization, or its default when it is absent
+		 */
+		private int threshold(String optimization, int defaultThreshold) {
+			IConstructor opt = optimizations.get(optimization);
+
+			if (opt != null && opt.asWithKeywordParameters().hasParameter("threshold")) {
+				return ((IInteger) opt.asWithKeywordParameters().getParameter("threshold")).intValue();
+			}
+
+			return defaultThreshold;
+		}
+
+		/**
+		 * Generates a method again with calls to helper methods instead of the given parts. The parts for
+		 * which a helper would need too many parameters stay inline, and then the parts are selected again
+		 * without them, such that smaller parts nested in them can still be moved.
+		 */
+		private void splitMethod(IList body, int size, int threshold, Set<IValue> parts, Consumer<Set<IValue>> generate) {
+			Set<IValue> excluded = Collections.newSetFromMap(new IdentityHashMap<>());
+			int pending = pendingHelpers.size();
+
+			while (true) {
+				generate.accept(parts);
+
+				if (wideParts.isEmpty()) {
+					return;
+				}
+
+				excluded.addAll(wideParts);
+				wideParts.clear();
+
+				// forget the helpers of this attempt, the next one makes its own
+				List<SplitHelper> dropped = pendingHelpers.subList(pending, pendingHelpers.size());
+				for (List<SplitHelper> helpers : splitHelpers.values()) {
+					helpers.removeAll(dropped);
+				}
+				dropped.clear();
+
+				parts = MethodSplitter.parts(body, size, threshold, excluded);
+			}
+		}
+
+		/**
+		 * A private static method which executes a part of a method that was too large, see {@link MethodSplitter}.
+		 * It receives the local variables which the part uses as parameters, and returns the ones which the
+		 * part assigns: one as it is, and more in an Object[] with boxed primitives.
+		 */
+		private static class SplitHelper {
+			final String name;
+			final String desc;
+			final IValue part;
+			final List<Variable> params;
+			final List<Variable> results;
+			final int line;
+
+			SplitHelper(String name, String desc, IValue part, List<Variable> params, List<Variable> results, int line) {
+				this.name = name;
+				this.desc = desc;
+				this.part = part;
+				this.params = params;
+				this.results = results;
+				this.line = line;
+			}
+		}
+
+		/**
+		 * Generates a call to the helper method of a part, instead of the part itself.
+		 * @param part a `block` statement, or the statements of a `case`, of which the final `break()` stays here
+		 * @return false when the helper would need more than {@link MethodSplitter#MAX_PARAMETER_SLOTS} parameter
+		 * slots, and nothing was generated: the part then stays in the method
+		 */
+		private boolean splitCall(IValue part, int line) {
+			IValue body = part instanceof IList ? MethodSplitter.prefix((IList) part) : part;
+			List<Variable> params = new ArrayList<>();
+			List<Variable> results = new ArrayList<>();
+
+			for (String name : MethodSplitter.used(body)) {
+				Variable var = locals.find(name);
+
+				if (var != null) {
+					params.add(var);
+				}
+			}
+
+			for (String name : MethodSplitter.assigned(body)) {
+				Variable var = locals.find(name);
+
+				if (var != null) {
+					results.add(var);
+				}
+			}
+
+			StringBuilder desc = new StringBuilder("(");
+			for (Variable var : params) {
+				desc.append(Signature.type(var.type));
+			}
+			desc.append(")");
+			desc.append(results.isEmpty() ? "V" : results.size() == 1 ? Signature.type(results.get(0).type) : "[Ljava/lang/Object;");
+
+			if ((org.objectweb.asm.Type.getArgumentsAndReturnSizes(desc.toString()) >> 2) - 1 > MethodSplitter.MAX_PARAMETER_SLOTS) {
+				CompilerStatistics.count("methodSplitting.skipped");
+				splitParts.remove(part); // also for its copies in finally blocks
+				wideParts.add(part);
+				return false;
+			}
+
+			SplitHelper helper = splitHelper(part, body, desc.toString(), params, results, line);
+
+			for (Variable var : params) {
+				loadExp(var.name, line);
+			}
+
+			method.visitMethodInsn(Opcodes.INVOKESTATIC, classNode.name, helper.name, helper.desc, false);
+
+			if (results.size() == 1) {
+				storeVariable(results.get(0).name);
 			}
+			else if (results.size() > 1) {
+				for (int i = 0; i < results.size(); i++) {
+					Variable var = results.get(i);
+					method.visitInsn(Opcodes.DUP);
+					intConstant(i);
+					method.visitInsn(Opcodes.AALOAD);
+					unbox(var.type);
+					storeVariable(var.name);
+				}
 
-			method.visitLabel(methodEndLabel);
-			method.visitInsn(Opcodes.RETURN);
-			method.visitMaxs(0, 0);
-			method.visitEnd();
+				pop();
+			}
 
-			classNode.methods.add(method);
+			return true;
 		}
 
+		/**
+		 * @return the helper method for a part, which is shared by the copies of the part in finally blocks
+		 */
+		private SplitHelper splitHelper(IValue part, IValue body, String desc, List<Variable> params, List<Variable> results, int line) {
+			List<SplitHelper> helpers = splitHelpers.computeIfAbsent(part, p -> new ArrayList<>());
 
-		private void method(ClassNode classNode, IConstructor cons, int parentLine) {
-			IWithKeywordParameters<? extends IConstructor> kws = cons.asWithKeywordParameters();
-
-			boolean isAbstract = cons.getConstructorType().getArity() == 1; // only a signature
+			for (SplitHelper helper : helpers) {
+				if (helper.desc.equals(desc) && names(helper.params).equals(names(params))) {
+					return helper;
+				}
+			}
 
-			int modifiers = Opcodes.ACC_PUBLIC;
-			modifiers += isAbstract ? Opcodes.ACC_ABSTRACT : 0;
+			String name = helperPrefix + helperCount++;
+			SplitHelper helper = new SplitHelper(name, desc, body, params, results, line);
+			helpers.add(helper);
+			pendingHelpers.add(helper);
+			return helper;
+		}
 
-			if (kws.hasParameter("modifiers")) {
-				modifiers = modifiers(AST.$getModifiersParameter(kws));
+		private static List<String> names(List<Variable> vars) {
+			List<String> names = new ArrayList<>();
+			for (Variable var : vars) {
+				names.add(var.name);
 			}
+			return names;
+		}
 
-			IConstructor sig = AST.$getDesc(cons);
-			boolean isConstructor = sig.getConstructorType().getName().equals("constructorDesc");
-			String name = isConstructor ? "<init>" : AST.$getName(sig);
+		/**
+		 * Generates the helper methods of the method which was generated last, which may be split themselves.
+		 */
+		private void helperMethods(ClassNode classNode) {
+			MethodNode main = method;
 
-			method = new MethodNode(modifiers, name, isConstructor ? Signature.constructor(sig) : Signature.method(sig), null, null);
+			try {
+				while (!pendingHelpers.isEmpty()) {
+					SplitHelper helper = pendingHelpers.remove(0);
 
-			// every method body has a fresh set of jump labels
-			labels = new HashMap<>(); 
+					CompilerStatistics.count("methodSplitting.helpers");
+					helperMethod(helper, Collections.emptySet());
 
-			// for raw asm labels, we have a different map
-			asmLabels = new HashMap<>();
+					int size = MethodSplitter.codeSize(method);
+					int threshold = threshold("methodSplitting", METHOD_SPLITTING_THRESHOLD);
 
-			if (!isAbstract) {
-				if (isInterface && classNode.version < Opcodes.V1_8) {
-					throw new IllegalArgumentException("default methods requires at least JVM version v1_8()");
-				}
+					if (size > threshold) {
+						IList body = helper.part instanceof IList ? (IList) helper.part : AST.$getBlock((IConstructor) helper.part);
+						Set<IValue> parts = MethodSplitter.parts(body, size, threshold, Collections.emptySet());
 
-				if ((modifiers & Opcodes.ACC_ABSTRACT) != 0) {
-					throw new IllegalArgumentException("method with body should not be abstract");
+						if (!parts.isEmpty()) {
+							splitMethod(body, size, threshold, parts, p -> helperMethod(helper, p));
+						}
+					}
+
+					method.visitEnd();
+					classNode.methods.add(method);
+					helperMethods.add(method);
 				}
+			}
+			finally {
+				splitHelpers.clear();
+				pendingHelpers.clear();
+				method = main;
+			}
+		}
 
-				IList sigFormals = AST.$getFormals(sig);
-				hasDefaultConstructor |= (isConstructor && sigFormals.isEmpty());
-				IList varFormals = AST.$getFormals(cons);
+		private void helperMethod(SplitHelper helper, Set<IValue> parts) {
+			method = new MethodNode(Opcodes.ACC_PRIVATE | Opcodes.ACC_STATIC | Opcodes.ACC_SYNTHETIC, helper.name, helper.desc, null, null);
+			labels = new HashMap<>();
+			asmLabels = new HashMap<>();
+			locals = new SymbolTable();
+			currentLine = 0;
+			returnType = Types.voidType(); // parts do not return
+			methodStartLabel = new LeveledLabel(0);
+			methodEndLabel = new LeveledLabel(0);
+			splitParts = parts;
 
-				if (sigFormals.length() != varFormals.length()) {
-					throw new IllegalArgumentException("type signature of " + name + " has different number of types (" + sigFormals.length() + ") from formal parameters (" + varFormals.length() + "), see: " + sigFormals + " versus " + varFormals);
-				}
+			method.visitCode();
+			method.visitLabel(methodStartLabel);
 
-				boolean isStatic = (modifiers & Opcodes.ACC_STATIC) != 0;
+			for (Variable var : helper.params) {
+				declareVariable(var.type, var.name, null, false, null, helper.line);
+			}
+
+			if (helper.part instanceof IList) {
+				// the case statements get their own scope, such that the results are the parameters again at the end
+				enterScope();
+				statements((IList) helper.part, null, null, methodEndLabel, helper.line);
+				method.visitLabel(methodEndLabel);
+				exitScope();
+			}
+			else {
+				statement((IConstructor) helper.part, null, null, methodEndLabel, helper.line);
+				method.visitLabel(methodEndLabel);
+			}
 
-				variableTypes = new ArrayList<>();
-				variableNames =  new ArrayList<>();
-				variableDefaults = new ArrayList<>();
-				variableAnnotations = new ArrayList<>();
+			List<Variable> results = helper.results;
 
-				if (!isStatic) {
-					declareVariable(classType, "this", null, false, null, getLineNumber(cons, parentLine));
+			if (results.isEmpty()) {
+				method.visitInsn(Opcodes.RETURN);
+			}
+			else if (results.size() == 1) {
+				IConstructor type = loadExp(results.get(0).name, helper.line);
+				returnValue(type);
+			}
+			else {
+				intConstant(results.size());
+				method.visitTypeInsn(Opcodes.ANEWARRAY, "java/lang/Object");
+
+				for (int i = 0; i < results.size(); i++) {
+					method.visitInsn(Opcodes.DUP);
+					intConstant(i);
+					box(loadExp(results.get(i).name, helper.line));
+					method.visitInsn(Opcodes.AASTORE);
 				}
 
-				methodStartLabel = new LeveledLabel(0);
-				methodEndLabel = new LeveledLabel(0);
+				method.visitInsn(Opcodes.ARETURN);
+			}
 
-				method.visitCode(); 
-				method.visitLabel(methodStartLabel);
+			Label end = new Label();
+			method.visitLabel(end);
+			locals.exitScope(end);
+			localVariables();
+			method.visitMaxs(0, 0);
+			optimize(method);
+			splitParts = Collections.emptySet();
+		}
 
+		/**
+		 * The body of a lambda expression, which becomes a private static method that receives the 
+		 * captured variables followed by the formal parameters of the lambda.
+		 */
+		private static class LambdaBody {
+			final String name;
+			final String desc;
+			final List<Variable> captures;
+			final IList formals;
+			final IList block;
+			final IConstructor returnType;
+			final int line;
+
+			LambdaBody(String name, String desc, List<Variable> captures, IList formals, IList block, IConstructor returnType, int line) {
+				this.name = name;
+				this.desc = desc;
+				this.captures = captures;
+				this.formals = formals;
+				this.block = block;
+				this.returnType = returnType;
+				this.line = line;
+			}
+		}
 
-				formalVariables(varFormals, false /* no initialization */);
+		/**
+		 * Names the lambda bodies of the method which is generated now after it, such that a method 
+		 * from the cache finds its own lambda bodies again.
+		 */
+		private void startLambdas() {
+			String name = method.name.equals("<init>") ? "new" : method.name.equals("<clinit>") ? "static" : method.name;
+			lambdaPrefix = "lambda$" + name + "$" + Integer.toHexString(method.desc.hashCode()) + "$";
+			lambdaCount = 0;
+			pendingLambdas.clear();
+		}
 
-				if (isConstructor && !fieldInitializers.isEmpty()) {
-					fieldInitializers(classNode, method);
-				}
+		/**
+		 * Generates the lambda bodies of the method which was generated last, including the ones nested in them.
+		 */
+		private void lambdaMethods(ClassNode classNode) {
+			MethodNode main = method;
 
-				if (AST.$is("procedure", cons)) {
-				    instructions(AST.$getInstructions(cons), methodEndLabel, methodEndLabel, methodEndLabel, getLineNumber(cons, parentLine));
-				}
-				else {
-				    statements(AST.$getBlock(cons), methodStartLabel, methodEndLabel, methodEndLabel, getLineNumber(cons, parentLine));
+			try {
+				while (!pendingLambdas.isEmpty()) {
+					lambdaMethod(pendingLambdas.remove(0));
+					method.visitEnd();
+					classNode.methods.add(method);
+					helperMethods.add(method);
 				}
+			}
+			finally {
+				pendingLambdas.clear();
+				method = main;
+			}
+		}
 
-				method.visitLabel(methodEndLabel);
-
-				for (int i = 0; i < variableNames.size(); i++) {
-					String varName = variableNames.get(i);
+		private void lambdaMethod(LambdaBody lambda) {
+			// private interface methods are only allowed from JDK 9 on
+			int access = isInterface && version < Opcodes.V9 ? Opcodes.ACC_PUBLIC : Opcodes.ACC_PRIVATE;
+			method = new MethodNode(access | Opcodes.ACC_STATIC | Opcodes.ACC_SYNTHETIC, lambda.name, lambda.desc, null, null);
+			labels = new HashMap<>();
+			asmLabels = new HashMap<>();
+			locals = new SymbolTable();
+			currentLine = 0;
+			returnType = lambda.returnType;
+			methodStartLabel = new LeveledLabel(0);
+			methodEndLabel = new LeveledLabel(0);
 
-					if (varName == null) {
-						continue; // empty slot
-					}
+			method.visitCode();
+			method.visitLabel(methodStartLabel);
 
-					String varType = Signature.type(variableTypes.get(i));
+			for (Variable var : lambda.captures) {
+				declareVariable(var.type, var.name, null, false, null, lambda.line);
+			}
 
-					method.visitLocalVariable(varName, varType, null, methodStartLabel, methodEndLabel, i);
+			formalVariables(lambda.formals, false /* no initialization */);
+			statements(lambda.block, methodStartLabel, methodEndLabel, methodEndLabel, lambda.line);
 
-					IList annotations = variableAnnotations.get(i);
-					if (annotations != null) {
-						final int index = i;
-						annotations((s,v) -> 
-						method.visitLocalVariableAnnotation(TypeReference.LOCAL_VARIABLE, null, new Label[] {methodStartLabel}, new Label[] {methodEndLabel}, new int[] {index}, s, v), annotations);
-					}
-				}
+			method.visitLabel(methodEndLabel);
+			locals.exitScope(methodEndLabel);
+			localVariables();
+			method.visitMaxs(0, 0);
+			optimize(method);
+		}
 
-				method.visitMaxs(0, 0);
+		private static String wrapper(IConstructor type) {
+			switch (Dispatch.TYPE.of(type)) {
+			case BOOLEAN: return "java/lang/Boolean";
+			case INTEGER: return "java/lang/Integer";
+			case SHORT: return "java/lang/Short";
+			case BYTE: return "java/lang/Byte";
+			case CHARACTER: return "java/lang/Character";
+			case FLOAT: return "java/lang/Float";
+			case DOUBLE: return "java/lang/Double";
+			case LONG: return "java/lang/Long";
+			default: return null;
 			}
+		}
 
-			if (kws.hasParameter("annotations")) {
-				annotations(method, (IList) kws.getParameter("annotations"));
-			}
+		private void box(IConstructor type) {
+			String wrapper = wrapper(type);
 
-			method.visitEnd(); // also needed for abstract methods
-			classNode.methods.add(method);
+			if (wrapper != null) {
+				method.visitMethodInsn(Opcodes.INVOKESTATIC, wrapper, "valueOf", "(" + Signature.type(type) + ")L" + wrapper + ";", false);
+			}
 		}
 
-        private void declareVariable(IConstructor type, String name, IConstructor def, boolean alwaysInitialize, IList annotations, int line) {
-			int pos = variableNames.size();
+		private void unbox(IConstructor type) {
+			String wrapper = wrapper(type);
+
+			if (wrapper != null) {
+				String primitive = Dispatch.TYPE.of(type) == TypeKind.INTEGER ? "int" : Dispatch.TYPE.of(type) == TypeKind.CHARACTER ? "char" : type.getName();
+				method.visitTypeInsn(Opcodes.CHECKCAST, wrapper);
+				method.visitMethodInsn(Opcodes.INVOKEVIRTUAL, wrapper, primitive + "Value", "()" + Signature.type(type), false);
+			}
+			else if (Dispatch.TYPE.of(type) == TypeKind.OBJECT) {
+				method.visitTypeInsn(Opcodes.CHECKCAST, AST.$getName(type).replace('.','/'));
+			}
+			else if (Dispatch.TYPE.of(type) == TypeKind.ARRAY) {
+				method.visitTypeInsn(Opcodes.CHECKCAST, Signature.type(type));
+			}
+			else {
+				method.visitTypeInsn(Opcodes.CHECKCAST, "java/lang/String");
+			}
+		}
 
-			variableTypes.add(type);
-			variableNames.add(name);
-			variableDefaults.add(def);
-			variableAnnotations.add(null);
+		/**
+		 * Runs the optional passes which work on the generated bytecode of a method, before 
+		 * its frames are computed.
+		 */
+		private void optimize(MethodNode mn) {
+			if (optimizations.containsKey("peephole")) {
+				Peephole.optimize(mn);
+			}
 
-			String typeName = type.getConstructorType().getName();
-			if (typeName.equals("double") || typeName.equals("long")) {
-				// doubles and longs take up 2 stack positions
-				variableTypes.add(null);
-				variableNames.add(null);
-				variableDefaults.add(null); 
-				variableAnnotations.add(null);
+			if (optimizations.containsKey("registerAllocation")) {
+				RegisterAllocator.allocate(mn);
 			}
+		}
+
+        private void declareVariable(IConstructor type, String name, IConstructor def, boolean alwaysInitialize, IList annotations, int line) {
+			Label start = new Label();
+			Variable var = locals.declare(name, type, annotations, start);
+			int pos = var.slot;
+			TypeKind kind = Dispatch.TYPE.of(type);
 
 			if (alwaysInitialize) {
 				if (def == null) {
@@ -704,7 +1823,7 @@ public class ClassCompiler {
 				}
 			}
 			else {
-				if (def != null && (typeName.equals("object") || typeName.equals("array"))) {
+				if (def != null && (kind == TypeKind.OBJECT || kind == TypeKind.ARRAY)) {
 					// if somebody passed 'null' as actual parameter and we have something to initialize with here,
 					// then we store that into the variable now. flybytes has default parameters!
 					loadExp(name, line);
@@ -712,7 +1831,18 @@ public class ClassCompiler {
 				}
 			}
 
-			return;
+			// the variable is in scope from here, after its initialization
+			method.visitLabel(start);
+		}
+
+		private void enterScope() {
+			locals.enterScope();
+		}
+
+		private void exitScope() {
+			Label end = new Label();
+			method.visitLabel(end);
+			locals.exitScope(end);
 		}
 
 		private void fieldInitializers(ClassNode classNode, MethodNode method) {
@@ -804,6 +1934,16 @@ public class ClassCompiler {
 		}
 
 		private IConstructor statements(IList statements, LeveledLabel continueLabel, LeveledLabel breakLabel, LeveledLabel joinLabel, int parentLine) {
+			if (splitParts.contains(statements) && splitCall(statements, parentLine)) { // the block of a case
+				IList prefix = MethodSplitter.prefix(statements);
+
+				if (prefix.length() < statements.length()) {
+					statement((IConstructor) statements.get(statements.length() - 1), continueLabel, breakLabel, joinLabel, parentLine);
+				}
+
+				return null;
+			}
+
 			int i = 0, len = statements.length();
 			for (IValue elem : statements) {
 				// generate the label for where the next statement ends, unless this is the last statement, because
@@ -820,49 +1960,53 @@ public class ClassCompiler {
 		private void statement(IConstructor stat, LeveledLabel continueLabel, LeveledLabel breakLabel, LeveledLabel joinLabel, int parentLine) {
 			int line = getLineNumber(stat, parentLine);
 
-			switch (stat.getConstructorType().getName()) {
-			case "incr":
+			if (splitParts.contains(stat) && splitCall(stat, line)) {
+				return;
+			}
+
+			switch (Dispatch.STAT.of(stat)) {
+			case INCR:
 				incStat(AST.$getName(stat), AST.$getInc(stat));
 				break;
-			case "invokeSuper" : 
+			case INVOKE_SUPER: 
                 invokeSuper(classNode.superName, AST.$getDesc(stat), AST.$getArgs(stat), line);
                 break;
-			case "decl":
+			case DECL:
 				declStat(stat, joinLabel, line);
 				break;
-			case "block":
+			case BLOCK:
 				String blockLabel = stat.asWithKeywordParameters().hasParameter("label") ? ((IString) stat.asWithKeywordParameters().getParameter("label")).getValue() : null;
 				blockStat(blockLabel, AST.$getBlock(stat), joinLabel, line);
 				break;
-			case "do" : 
+			case DO: 
 				doStat((IConstructor) stat.get("exp"), line);
 				break;
-			case "store" : 
+			case STORE: 
 				storeStat(AST.$getName(stat), AST.$getValue(stat), line); 
 				break;
-			case "astore" :
+			case ASTORE:
 				aastoreStat(AST.$getArray(stat), AST.$getIndex(stat), AST.$getArg(stat), line);
 				break;
-			case "putField":
+			case PUT_FIELD:
 				putFieldStat(AST.$getRefClassFromType(AST.$getClass(stat), classNode.name), AST.$getReceiver(stat), AST.$getType(stat), AST.$getName(stat), AST.$getArg(stat), line);
 				break;
-			case "putStatic":
+			case PUT_STATIC:
 				putStaticStat(AST.$getRefClassFromType(AST.$getClass(stat), classNode.name), AST.$getType(stat), AST.$getName(stat), AST.$getArg(stat), line);
 				break;
-			case "return" : 
+			case RETURN: 
 				returnStat(stat, line);
 				// dropping the joinLabel, there is nothing to do after return!
 				break;
-			case "break":
+			case BREAK:
 				breakStat(stat, breakLabel);
 				// dropping the joinLabel, there is nothing to do after break!
 				break;
-			case "continue":
+			case CONTINUE:
 				continueStat(stat, continueLabel);
 				// dropping the joinLabel, there is nothing to do after break!
 				break;
 
-			case "if":
+			case IF:
 				if (stat.getConstructorType().getArity() == 3) {
 					ifThenElseStat(AST.$getCondition(stat), AST.$getThenBlock(stat), AST.$getElseBlock(stat), continueLabel, breakLabel, joinLabel, line);
 				}
@@ -871,38 +2015,38 @@ public class ClassCompiler {
 					ifStat(AST.$getCondition(stat), AST.$getThenBlock(stat), continueLabel, breakLabel, joinLabel, line);
 				}
 				break;
-			case "for":
+			case FOR:
 				String forLabel = stat.asWithKeywordParameters().hasParameter("label") ? ((IString) stat.asWithKeywordParameters().getParameter("label")).getValue() : null;
 				forStat(forLabel, AST.$getInit(stat), AST.$getCondition(stat), AST.$getNext(stat), AST.$getStatements(stat), continueLabel, breakLabel, joinLabel, line);
 				break;
-			case "while":
+			case WHILE:
 				String whileLabel = stat.asWithKeywordParameters().hasParameter("label") ? ((IString) stat.asWithKeywordParameters().getParameter("label")).getValue() : null;
 				whileStat(whileLabel, AST.$getCondition(stat), AST.$getBlock(stat), continueLabel, breakLabel, joinLabel, line);
 				break;
-			case "doWhile":
+			case DO_WHILE:
 				String doWhileLabel = stat.asWithKeywordParameters().hasParameter("label") ? ((IString) stat.asWithKeywordParameters().getParameter("label")).getValue() : null;
 				doWhileStat(doWhileLabel, AST.$getCondition(stat), AST.$getBlock(stat), continueLabel, breakLabel, joinLabel, line);
 				break;
-			case "throw":
+			case THROW:
 				throwStat(AST.$getArg(stat), line);
 				break;
-			case "monitor":
+			case MONITOR:
 				monitorStat(AST.$getArg(stat), AST.$getBlock(stat), continueLabel, breakLabel, joinLabel, line);
 				break;
-			case "acquire":
+			case ACQUIRE:
 				acquireStat(AST.$getArg(stat), line);
 				break;
-			case "release":
+			case RELEASE:
 				releaseStat(AST.$getArg(stat), line);
 				break;
-			case "try":
+			case TRY:
 				tryStat(AST.$getBlock(stat), AST.$getCatch(stat), continueLabel, breakLabel, joinLabel, line);
 				break;
-			case "switch":
+			case SWITCH:
 				String option = stat.asWithKeywordParameters().hasParameter("option") ? ((IConstructor) stat.asWithKeywordParameters().getParameter("option")).getConstructorType().getName() : "lookup";
 				switchStat(option, AST.$getArg(stat), AST.$getCases(stat), continueLabel, breakLabel, joinLabel, line);
 				break;
-			case "asm":
+			case ASM:
 				instructions(AST.$getInstructions(stat), continueLabel, breakLabel, joinLabel, line);
 				break;
 			}
@@ -915,491 +2059,491 @@ public class ClassCompiler {
 		}
 
 		private void instruction(IConstructor instr, LeveledLabel continueLabel, LeveledLabel breakLabel, LeveledLabel joinLabel, int parentLine) {
-			switch (instr.getName()) {
-			case "exp":
+			switch (Dispatch.INSTRUCTION.of(instr)) {
+			case EXP:
 				expr((IConstructor) instr.get("expression"), parentLine);
 				break;
-			case "stat":
+			case STAT:
 				statement((IConstructor) instr.get("statement"), continueLabel, breakLabel, joinLabel, parentLine);
 				break;
-			case "NOP": 
+			case NOP: 
 				simpleInstruction(Opcodes.NOP);
 				break;
-			case "ACONST_NULL":
+			case ACONST_NULL:
 				simpleInstruction(Opcodes.ACONST_NULL);
 				break;
-			case "ICONST_M1":
+			case ICONST_M1:
 				simpleInstruction(Opcodes.ICONST_M1);
 				break;
-			case "ICONST_0":
+			case ICONST_0:
 				simpleInstruction(Opcodes.ICONST_0);
 				break;
-			case "ICONST_1":
+			case ICONST_1:
 				simpleInstruction(Opcodes.ICONST_1);
 				break;
-			case "ICONST_2":
+			case ICONST_2:
 				simpleInstruction(Opcodes.ICONST_2);
 				break;
-			case "ICONST_3":
+			case ICONST_3:
 				simpleInstruction(Opcodes.ICONST_3);
 				break;
-			case "ICONST_4":
+			case ICONST_4:
 				simpleInstruction(Opcodes.ICONST_4);
 				break;
-			case "ICONST_5":
+			case ICONST_5:
 				simpleInstruction(Opcodes.ICONST_5);
 				break;
-			case "LCONST_0":
+			case LCONST_0:
 				simpleInstruction(Opcodes.LCONST_0);
 				break;
-			case "LCONST_1":
+			case LCONST_1:
 				simpleInstruction(Opcodes.LCONST_1);
 				break;
-			case "FCONST_0":
+			case FCONST_0:
 				simpleInstruction(Opcodes.FCONST_0);
 				break;
-			case "FCONST_1":
+			case FCONST_1:
 				simpleInstruction(Opcodes.FCONST_1);
 				break;
-			case "FCONST_2":
+			case FCONST_2:
 				simpleInstruction(Opcodes.FCONST_2);
 				break;
-			case "DCONST_0":
+			case DCONST_0:
 				simpleInstruction(Opcodes.DCONST_0);
 				break;
-			case "DCONST_1":
+			case DCONST_1:
 				simpleInstruction(Opcodes.DCONST_1);
 				break;
-			case "IALOAD":
+			case IALOAD:
 				simpleInstruction(Opcodes.IALOAD);
 				break;
-			case "LALOAD":
+			case LALOAD:
 				simpleInstruction(Opcodes.LALOAD);
 				break;
-			case "FALOAD":
+			case FALOAD:
 				simpleInstruction(Opcodes.FALOAD);
 				break;
-			case "DALOAD":
+			case DALOAD:
 				simpleInstruction(Opcodes.DALOAD);
 				break;
-			case "AALOAD":
+			case AALOAD:
 				simpleInstruction(Opcodes.AALOAD);
 				break;
-			case "BALOAD":
+			case BALOAD:
 				simpleInstruction(Opcodes.BALOAD);
 				break;
-			case "CALOAD":
+			case CALOAD:
 				simpleInstruction(Opcodes.CALOAD);
 				break;
-			case "SALOAD":
+			case SALOAD:
 				simpleInstruction(Opcodes.SALOAD);
 				break;
-			case "IASTORE":
+			case IASTORE:
 				simpleInstruction(Opcodes.IASTORE);
 				break;
-			case "LASTORE":
+			case LASTORE:
 				simpleInstruction(Opcodes.LASTORE);
 				break;
-			case "FASTORE":
+			case FASTORE:
 				simpleInstruction(Opcodes.FASTORE);
 				break;
-			case "DASTORE":
+			case DASTORE:
 				simpleInstruction(Opcodes.DASTORE);
 				break;
-			case "AASTORE":
+			case AASTORE:
 				simpleInstruction(Opcodes.AASTORE);
 				break;
-			case "BASTORE":
+			case BASTORE:
 				simpleInstruction(Opcodes.BASTORE);
 				break;
-			case "CASTORE":
+			case CASTORE:
 				simpleInstruction(Opcodes.CASTORE);
 				break;
-			case "SASTORE":
+			case SASTORE:
 				simpleInstruction(Opcodes.SASTORE);
 				break;
-			case "POP":
+			case POP:
 				simpleInstruction(Opcodes.POP);
 				break;
-			case "POP2":
+			case POP2:
 				simpleInstruction(Opcodes.POP2);
 				break;
-			case "DUP":
+			case DUP:
 				simpleInstruction(Opcodes.DUP);
 				break;
-			case "DUP_X1":
+			case DUP_X1:
 				simpleInstruction(Opcodes.DUP_X1);
 				break;
-			case "DUP_X2":
+			case DUP_X2:
 				simpleInstruction(Opcodes.DUP_X2);
 				break;
-			case "DUP2":
+			case DUP2:
 				simpleInstruction(Opcodes.DUP2);
 				break;
-			case "DUP2_X1":
+			case DUP2_X1:
 				simpleInstruction(Opcodes.DUP2_X1);
 				break;
-			case "DUP2_X2":
+			case DUP2_X2:
 				simpleInstruction(Opcodes.DUP2_X2);
 				break;
-			case "SWAP":
+			case SWAP:
 				simpleInstruction(Opcodes.SWAP);
 				break;
-			case "IADD":
+			case IADD:
 				simpleInstruction(Opcodes.IADD);
 				break;
-			case "LADD":
+			case LADD:
 				simpleInstruction(Opcodes.LADD);
 				break;
-			case "FADD":
+			case FADD:
 				simpleInstruction(Opcodes.FADD);
 				break;
-			case "DADD":
+			case DADD:
 				simpleInstruction(Opcodes.DADD);
 				break;
-			case "ISUB":
+			case ISUB:
 				simpleInstruction(Opcodes.ISUB);
 				break;
-			case "LSUB":
+			case LSUB:
 				simpleInstruction(Opcodes.LSUB);
 				break;
-			case "FSUB":
+			case FSUB:
 				simpleInstruction(Opcodes.FSUB);
 				break;
-			case "DSUB":
+			case DSUB:
 				simpleInstruction(Opcodes.DSUB);
 				break;
-			case "IMUL":
+			case IMUL:
 				simpleInstruction(Opcodes.IMUL);
 				break;
-			case "LMUL":
+			case LMUL:
 				simpleInstruction(Opcodes.LMUL);
 				break;
-			case "FMUL":
+			case FMUL:
 				simpleInstruction(Opcodes.FMUL);
 				break;
-			case "DMUL":
+			case DMUL:
 				simpleInstruction(Opcodes.DMUL);
 				break;
-			case "IDIV":
+			case IDIV:
 				simpleInstruction(Opcodes.IDIV);
 				break;
-			case "LDIV":
+			case LDIV:
 				simpleInstruction(Opcodes.LDIV);
 				break;
-			case "FDIV":
+			case FDIV:
 				simpleInstruction(Opcodes.FDIV);
 				break;
-			case "DDIV":
+			case DDIV:
 				simpleInstruction(Opcodes.DDIV);
 				break;
-			case "IREM":
+			case IREM:
 				simpleInstruction(Opcodes.IREM);
 				break;
-			case "LREM":
+			case LREM:
 				simpleInstruction(Opcodes.LREM);
 				break;
-			case "FREM":
+			case FREM:
 				simpleInstruction(Opcodes.FREM);
 				break;
-			case "DREM":
+			case DREM:
 				simpleInstruction(Opcodes.DREM);
 				break;
-			case "INEG":
+			case INEG:
 				simpleInstruction(Opcodes.INEG);
 				break;
-			case "LNEG":
+			case LNEG:
 				simpleInstruction(Opcodes.LNEG);
 				break;
-			case "FNEG":
+			case FNEG:
 				simpleInstruction(Opcodes.FNEG);
 				break;
-			case "DNEG":
+			case DNEG:
 				simpleInstruction(Opcodes.DNEG);
 				break;
-			case "ISHL":
+			case ISHL:
 				simpleInstruction(Opcodes.ISHL);
 				break;
-			case "LSHL":
+			case LSHL:
 				simpleInstruction(Opcodes.LSHL);
 				break;
-			case "ISHR":
+			case ISHR:
 				simpleInstruction(Opcodes.ISHR);
 				break;
-			case "LSHR":
+			case LSHR:
 				simpleInstruction(Opcodes.LSHR);
 				break;
-			case "IUSHR":
+			case IUSHR:
 				simpleInstruction(Opcodes.IUSHR);
 				break;
-			case "LUSHR":
+			case LUSHR:
 				simpleInstruction(Opcodes.LUSHR);
 				break;
-			case "IAND":
+			case IAND:
 				simpleInstruction(Opcodes.IAND);
 				break;
-			case "LAND":
+			case LAND:
 				simpleInstruction(Opcodes.LAND);
 				break;
-			case "IOR":
+			case IOR:
 				simpleInstruction(Opcodes.IOR);
 				break;
-			case "LOR":
+			case LOR:
 				simpleInstruction(Opcodes.LOR);
 				break;
-			case "IXOR":
+			case IXOR:
 				simpleInstruction(Opcodes.IXOR);
 				break;
-			case "LXOR":
+			case LXOR:
 				simpleInstruction(Opcodes.LXOR);
 				break;
-			case "I2L":
+			case I2L:
 				simpleInstruction(Opcodes.I2L);
 				break;
-			case "I2F":
+			case I2F:
 				simpleInstruction(Opcodes.I2F);
 				break;
-			case "I2D":
+			case I2D:
 				simpleInstruction(Opcodes.I2D);
 				break;
-			case "L2I":
+			case L2I:
 				simpleInstruction(Opcodes.L2I);
 				break;
-			case "L2F":
+			case L2F:
 				simpleInstruction(Opcodes.L2F);
 				break;
-			case "L2D":
+			case L2D:
 				simpleInstruction(Opcodes.L2D);
 				break;
-			case "F2I":
+			case F2I:
 				simpleInstruction(Opcodes.F2I);
 				break;
-			case "F2L":
+			case F2L:
 				simpleInstruction(Opcodes.F2L);
 				break;
-			case "F2D":
+			case F2D:
 				simpleInstruction(Opcodes.F2D);
 				break;
-			case "D2I":
+			case D2I:
 				simpleInstruction(Opcodes.D2I);
 				break;
-			case "D2L":
+			case D2L:
 				simpleInstruction(Opcodes.D2L);
 				break;
-			case "D2F":
+			case D2F:
 				simpleInstruction(Opcodes.D2F);
 				break;
-			case "I2B":
+			case I2B:
 				simpleInstruction(Opcodes.I2B);
 				break;
-			case "I2C":
+			case I2C:
 				simpleInstruction(Opcodes.I2C);
 				break;
-			case "I2S":
+			case I2S:
 				simpleInstruction(Opcodes.I2S);
 				break;
-			case "LCMP":
+			case LCMP:
 				simpleInstruction(Opcodes.LCMP);
 				break;
-			case "FCMPL":
+			case FCMPL:
 				simpleInstruction(Opcodes.FCMPL);
 				break;
-			case "FCMPG":
+			case FCMPG:
 				simpleInstruction(Opcodes.FCMPG);
 				break;
-			case "DCMPL":
+			case DCMPL:
 				simpleInstruction(Opcodes.DCMPL);
 				break;
-			case "DCMPG":
+			case DCMPG:
 				simpleInstruction(Opcodes.DCMPG);
 				break;
-			case "IRETURN":
+			case IRETURN:
 				simpleInstruction(Opcodes.IRETURN);
 				break;
-			case "LRETURN":
+			case LRETURN:
 				simpleInstruction(Opcodes.LRETURN);
 				break;
-			case "FRETURN":
+			case FRETURN:
 				simpleInstruction(Opcodes.FRETURN);
 				break;
-			case "DRETURN":
+			case DRETURN:
 				simpleInstruction(Opcodes.DRETURN);
 				break;
-			case "ARETURN":
+			case ARETURN:
 				simpleInstruction(Opcodes.ARETURN);
 				break;
-			case "RETURN":
+			case RETURN:
 				simpleInstruction(Opcodes.RETURN);
 				break;
-			case "ARRAYLENGTH":
+			case ARRAYLENGTH:
 				simpleInstruction(Opcodes.ARRAYLENGTH);
 				break;
-			case "ATHROW":
+			case ATHROW:
 				simpleInstruction(Opcodes.ATHROW);
 				break;
-			case "MONITORENTER":
+			case MONITORENTER:
 				simpleInstruction(Opcodes.MONITORENTER);
 				break;
-			case "MONITOREXIT":
+			case MONITOREXIT:
 				simpleInstruction(Opcodes.MONITOREXIT);
 				break;
-			case "ILOAD":
+			case ILOAD:
 				varInstruction(Opcodes.ILOAD, instr);
 				break;
-			case "LLOAD":
+			case LLOAD:
 				varInstruction(Opcodes.LLOAD, instr);
 				break;
-			case "FLOAD":
+			case FLOAD:
 				varInstruction(Opcodes.FLOAD, instr);
 				break;
-			case "DLOAD":
+			case DLOAD:
 				varInstruction(Opcodes.DLOAD, instr);
 				break;
-			case "ALOAD":
+			case ALOAD:
 				varInstruction(Opcodes.ALOAD, instr);
 				break;
-			case "ISTORE":
+			case ISTORE:
 				varInstruction(Opcodes.ISTORE, instr);
 				break;
-			case "LSTORE":
+			case LSTORE:
 				varInstruction(Opcodes.LSTORE, instr);
 				break;
-			case "FSTORE":
+			case FSTORE:
 				varInstruction(Opcodes.FSTORE, instr);
 				break;
-			case "DSTORE":
+			case DSTORE:
 				varInstruction(Opcodes.DSTORE, instr);
 				break;
-			case "ASTORE":
+			case ASTORE:
 				varInstruction(Opcodes.ASTORE, instr);
 				break;
-			case "RET":
+			case RET:
 				varInstruction(Opcodes.RET, instr);
 				break;
-			case "BIPUSH":
+			case BIPUSH:
 				intInstruction(Opcodes.BIPUSH, instr);
 				break;
-			case "SIPUSH":
+			case SIPUSH:
 				intInstruction(Opcodes.SIPUSH, instr);
 				break;
-			case "NEWARRAY":
+			case NEWARRAY:
 				newArrayInstruction(instr, parentLine);
 				break;
-			case "LDC":
+			case LDC:
 				loadConstantInstruction(instr, parentLine);
 				break;
-			case "IINC":
+			case IINC:
 				iIncInstruction(instr);
 				break;
-			case "LABEL":
+			case LABEL:
 				labelInstruction(instr);
 				break;
-			case "LINENUMBER":
+			case LINENUMBER:
 				lineNumberInstruction(instr);
 				break;
-			case "IFEQ":
+			case IFEQ:
 				jumpInstruction(instr, Opcodes.IFEQ);
 				break;
-			case "IFNE":
+			case IFNE:
 				jumpInstruction(instr, Opcodes.IFNE);
 				break;
-			case "IFLT":
+			case IFLT:
 				jumpInstruction(instr, Opcodes.IFLT);
 				break;
-			case "IFGE":
+			case IFGE:
 				jumpInstruction(instr, Opcodes.IFGE);
 				break;
-			case "IFGT":
+			case IFGT:
 				jumpInstruction(instr, Opcodes.IFGT);
 				break;
-			case "IFLE":
+			case IFLE:
 				jumpInstruction(instr, Opcodes.IFLE);
 				break;
-			case "IF_ICMPEQ":
+			case IF_ICMPEQ:
 				jumpInstruction(instr, Opcodes.IF_ICMPEQ);
 				break;
-			case "IF_ICMPNE":
+			case IF_ICMPNE:
 				jumpInstruction(instr, Opcodes.IF_ICMPNE);
 				break;
-			case "IF_ICMPLT":
+			case IF_ICMPLT:
 				jumpInstruction(instr, Opcodes.IF_ICMPLT);
 				break;
-			case "IF_ICMPGE":
+			case IF_ICMPGE:
 				jumpInstruction(instr, Opcodes.IF_ICMPGE);
 				break;
-			case "IF_ICMPGT":
+			case IF_ICMPGT:
 				jumpInstruction(instr, Opcodes.IF_ICMPGT);
 				break;
-			case "IF_ICMPLE":
+			case IF_ICMPLE:
 				jumpInstruction(instr, Opcodes.IF_ICMPLE);
 				break;
-			case "IF_ACMPEQ":
+			case IF_ACMPEQ:
 				jumpInstruction(instr, Opcodes.IF_ACMPEQ);
 				break;
-			case "IF_ACMPNE":
+			case IF_ACMPNE:
 				jumpInstruction(instr, Opcodes.IF_ACMPNE);
 				break;
-			case "GOTO":
+			case GOTO:
 				jumpInstruction(instr, Opcodes.GOTO);
 				break;
-			case "JSR":
+			case JSR:
 				jumpInstruction(instr, Opcodes.JSR);
 				break;
-			case "IFNULL":
+			case IFNULL:
 				jumpInstruction(instr, Opcodes.IFNULL);
 				break;
-			case "IFNONNULL":
+			case IFNONNULL:
 				jumpInstruction(instr, Opcodes.IFNONNULL);
 				break;
-			case "TABLESWITCH": 
+			case TABLESWITCH: 
 				tableSwitchInstruction(instr);
 				break;
-			case "LOOKUPSWITCH":
+			case LOOKUPSWITCH:
 				lookupSwitchInstruction(instr);
 				break;
-			case "GETSTATIC":
+			case GETSTATIC:
 				fieldInstruction(Opcodes.GETSTATIC, instr);
 				break;
-			case "PUTSTATIC":
+			case PUTSTATIC:
 				fieldInstruction(Opcodes.PUTSTATIC, instr);
 				break;
-			case "GETFIELD":
+			case GETFIELD:
 				fieldInstruction(Opcodes.GETFIELD, instr);
 				break;
-			case "PUTFIELD":
+			case PUTFIELD:
 				fieldInstruction(Opcodes.PUTFIELD, instr);
 				break;
-			case "INVOKEVIRTUAL":
+			case INVOKEVIRTUAL:
 				methodInstruction(Opcodes.INVOKEVIRTUAL, instr);
 				break;
-			case "INVOKESPECIAL":
+			case INVOKESPECIAL:
 				methodInstruction(Opcodes.INVOKESPECIAL, instr);
 				break;
-			case "INVOKESTATIC":
+			case INVOKESTATIC:
 				methodInstruction(Opcodes.INVOKESTATIC, instr);
 				break;
-			case "INVOKEINTERFACE":
+			case INVOKEINTERFACE:
 				methodInstruction(Opcodes.INVOKEINTERFACE, instr);
 				break;
-			case "NEW":
+			case NEW:
 				typeInstruction(Opcodes.NEW, instr);
 				break;
-			case "ANEWARRAY":
+			case ANEWARRAY:
 				typeInstruction(Opcodes.ANEWARRAY, instr);
 				break;
-			case "CHECKCAST":
+			case CHECKCAST:
 				typeInstruction(Opcodes.CHECKCAST, instr);
 				break;	
-			case "INSTANCEOF":
+			case INSTANCEOF:
 				typeInstruction(Opcodes.INSTANCEOF, instr);
 				break;
-			case "MULTIANEWARRAY":
+			case MULTIANEWARRAY:
 				multiNewArrayInstruction(instr);
 				break;
-			case "INVOKEDYNAMIC":
+			case INVOKEDYNAMIC:
 				invokeDynamicInstruction(instr);
 				break;
-			case "LOCALVARIABLE":
+			case LOCALVARIABLE:
 				localVariableInstruction(instr);
 				break;
 								
@@ -1485,68 +2629,236 @@ public class ClassCompiler {
 				lulabels[i] = getOrCreateAsmLabel(((IString) lucases.get(i)).getValue());
 				keys[i] = ((IInteger) lukeys.get(i)).intValue();
 			}
-			method.visitLookupSwitchInsn(getOrCreateAsmLabel(AST.$getDefaultLabel(instr)), keys, lulabels);
-		}
+			method.visitLookupSwitchInsn(getOrCreateAsmLabel(AST.$getDefaultLabel(instr)), keys, lulabels);
+		}
+
+		private void tableSwitchInstruction(IConstructor instr) {
+			IList cases = AST.$getCaseLabels(instr);
+			Label[] labels = new Label[cases.length()];
+			for (int i = 0; i < labels.length; i++) {
+				labels[i] = getOrCreateAsmLabel(((IString) cases.get(i)).getValue());
+			}
+			method.visitTableSwitchInsn(AST.$getMin(instr), AST.$getMax(instr), getOrCreateAsmLabel(AST.$getDefaultLabel(instr)), labels);
+		}
+
+		private void simpleInstruction(int opcode) {
+			method.visitInsn(opcode);
+		}
+
+		private void intInstruction(int opcode, IConstructor instr) {
+			method.visitIntInsn(opcode, AST.$getIntVal(instr));
+		}
+
+		private void varInstruction(int opcode, IConstructor instr) {
+			method.visitVarInsn(opcode, AST.$getVar(instr));
+		}
+
+		private void jumpInstruction(IConstructor instr, int opcode) {
+			method.visitJumpInsn(opcode, getOrCreateAsmLabel(AST.$getLabel(instr)));
+		}
+
+		private Label getOrCreateAsmLabel(String label) {
+			Label result = asmLabels.get(label);
+			if (result == null) {
+				result = new Label();
+				asmLabels.put(label, result);
+			}
+			return result;
+		}
+
+		private void releaseStat(IConstructor arg, int parentLine) {
+			expr(arg, parentLine);
+			method.visitInsn(Opcodes.MONITOREXIT);
+		}
+
+		private void acquireStat(IConstructor arg, int parentLine) {
+			expr(arg, parentLine);
+			method.visitInsn(Opcodes.MONITORENTER);
+		}
+
+		private void switchStat(String option, IConstructor arg, IList cases, LeveledLabel continueLabel, LeveledLabel breakLabel, LeveledLabel joinLabel, int line) {
+			switch (caseKind(cases)) {
+			case STRING_CASE:
+				hashedCaseIndex(arg, cases, true, line);
+				tableSwitch(caseIndexes(cases), cases, continueLabel, joinLabel, line);
+				return;
+			case LONG_CASE:
+				hashedCaseIndex(arg, cases, false, line);
+				tableSwitch(caseIndexes(cases), cases, continueLabel, joinLabel, line);
+				return;
+			}
+
+			// first put the key value on the stack
+			expr(arg, line);
+			int[] keys = caseKeys(cases);
+
+			switch (option) {
+			case "table":
+				tableSwitch(keys, cases, continueLabel, joinLabel, line);
+				return;
+			case "lookup":
+				lookupSwitch(keys, cases, continueLabel, joinLabel, line);
+				return;
+			case "auto":
+				autoSwitch(keys, cases, continueLabel, joinLabel, line);
+				return;
+			case "clustered":
+				clusteredSwitch(keys, cases, continueLabel, joinLabel, line);
+				return;
+			}
+
+			lookupSwitch(keys, cases, continueLabel, joinLabel, line);
+			return;
+		}
+
+		/**
+		 * @return the constructor of the cases of a switch, which must all be the same, apart from the default
+		 */
+		private CaseKind caseKind(IList cases) {
+			CaseKind kind = null;
+
+			for (IValue elem : cases) {
+				CaseKind c = Dispatch.CASE.of((IConstructor) elem);
+
+				if (c == CaseKind.DEFAULT) {
+					continue;
+				}
+				else if (kind == null) {
+					kind = c;
+				}
+				else if (c != kind) {
+					throw new IllegalArgumentException("the cases of a switch should all have int, long or string keys");
+				}
+			}
+
+			return kind != null ? kind : CaseKind.CASE;
+		}
+
+		/**
+		 * @return the key of every `case`, at the position of the case
+		 */
+		private int[] caseKeys(IList cases) {
+			int[] keys = new int[cases.length()];
+
+			for (int i = 0; i < cases.length(); i++) {
+				IConstructor c = (IConstructor) cases.get(i);
+
+				if (Dispatch.CASE.of(c) != CaseKind.DEFAULT) {
+					keys[i] = AST.$getKey(c);
+				}
+			}
+
+			return keys;
+		}
+
+		/**
+		 * @return the position of every case, which {@link #hashedCaseIndex} resolves the keys to
+		 */
+		private int[] caseIndexes(IList cases) {
+			int[] keys = new int[cases.length()];
+
+			for (int i = 0; i < keys.length; i++) {
+				keys[i] = i;
+			}
+
+			return keys;
+		}
+
+		/**
+		 * Resolves the key of a switch on strings or longs to the position of its case, the way javac compiles 
+		 * a switch on strings: a LOOKUPSWITCH on the hash code of the key jumps to a chain of equality tests, one 
+		 * for each key with that hash code. The position is -1 when no key matches, which a TABLESWITCH on the 
+		 * positions then sends to the default case. 
+		 */
+		private void hashedCaseIndex(IConstructor arg, IList cases, boolean strings, int line) {
+			String keyVarName = "switch-key:" + UUID.randomUUID();
+			String indexVarName = "switch-index:" + UUID.randomUUID();
+			Map<Integer, List<Integer>> buckets = new TreeMap<>(); // the keys of a LOOKUPSWITCH must be sorted
+			Set<Object> keys = new HashSet<>();
+
+			for (int i = 0; i < cases.length(); i++) {
+				IConstructor c = (IConstructor) cases.get(i);
+
+				if (Dispatch.CASE.of(c) == CaseKind.DEFAULT) {
+					if (i != cases.length() - 1) {
+						throw new IllegalArgumentException("default handler should be the last of the cases");
+					}
+					continue;
+				}
+
+				Object key = strings ? AST.$getStringKey(c) : (Object) AST.$getLongKey(c);
+
+				if (!keys.add(key)) {
+					throw new IllegalArgumentException("duplicate case key " + key);
+				}
+
+				buckets.computeIfAbsent(key.hashCode(), h -> new ArrayList<>()).add(i);
+			}
 
-		private void tableSwitchInstruction(IConstructor instr) {
-			IList cases = AST.$getCaseLabels(instr);
-			Label[] labels = new Label[cases.length()];
-			for (int i = 0; i < labels.length; i++) {
-				labels[i] = getOrCreateAsmLabel(((IString) cases.get(i)).getValue());
+			// String key = arg; int index = -1; 
+			expr(arg, line);
+			declareVariable(strings ? Types.stringType() : Types.longType(), keyVarName, null, false, null, line);
+			storeVariable(keyVarName);
+			declareVariable(Types.integerType(), indexVarName, null, false, null, line);
+			intConstant(-1);
+			storeVariable(indexVarName);
+
+			// switch (key.hashCode())
+			loadExp(keyVarName, line);
+			if (strings) {
+				method.visitMethodInsn(Opcodes.INVOKEVIRTUAL, Signature.stringName, "hashCode", "()I", false);
+			}
+			else {
+				// Long.hashCode(key) is (int) (key ^ (key >>> 32))
+				method.visitInsn(Opcodes.DUP2);
+				intConstant(32);
+				method.visitInsn(Opcodes.LUSHR);
+				method.visitInsn(Opcodes.LXOR);
+				method.visitInsn(Opcodes.L2I);
 			}
-			method.visitTableSwitchInsn(AST.$getMin(instr), AST.$getMax(instr), getOrCreateAsmLabel(AST.$getDefaultLabel(instr)), labels);
-		}
 
-		private void simpleInstruction(int opcode) {
-			method.visitInsn(opcode);
-		}
+			Label resolved = new Label();
+			int[] hashes = buckets.keySet().stream().mapToInt(h -> h).toArray();
+			Label[] labels = new Label[hashes.length];
 
-		private void intInstruction(int opcode, IConstructor instr) {
-			method.visitIntInsn(opcode, AST.$getIntVal(instr));
-		}
+			for (int i = 0; i < labels.length; i++) {
+				labels[i] = new Label();
+			}
 
-		private void varInstruction(int opcode, IConstructor instr) {
-			method.visitVarInsn(opcode, AST.$getVar(instr));
-		}
+			method.visitLookupSwitchInsn(resolved, hashes, labels);
 
-		private void jumpInstruction(IConstructor instr, int opcode) {
-			method.visitJumpInsn(opcode, getOrCreateAsmLabel(AST.$getLabel(instr)));
-		}
+			int bucket = 0;
+			for (List<Integer> positions : buckets.values()) {
+				method.visitLabel(labels[bucket++]);
 
-		private Label getOrCreateAsmLabel(String label) {
-			Label result = asmLabels.get(label);
-			if (result == null) {
-				result = new Label();
-				asmLabels.put(label, result);
-			}
-			return result;
-		}
+				for (int position : positions) {
+					IConstructor c = (IConstructor) cases.get(position);
+					Label next = new Label();
 
-		private void releaseStat(IConstructor arg, int parentLine) {
-			expr(arg, parentLine);
-			method.visitInsn(Opcodes.MONITOREXIT);
-		}
+					// if (key.equals(caseKey)) { index = position; goto resolved; } 
+					loadExp(keyVarName, line);
+					if (strings) {
+						stringConstant(AST.$getStringKey(c));
+						method.visitMethodInsn(Opcodes.INVOKEVIRTUAL, Signature.stringName, "equals", "(Ljava/lang/Object;)Z", false);
+						method.visitJumpInsn(Opcodes.IFEQ, next);
+					}
+					else {
+						longConstant(AST.$getLongKey(c));
+						method.visitInsn(Opcodes.LCMP);
+						method.visitJumpInsn(Opcodes.IFNE, next);
+					}
 
-		private void acquireStat(IConstructor arg, int parentLine) {
-			expr(arg, parentLine);
-			method.visitInsn(Opcodes.MONITORENTER);
-		}
+					intConstant(position);
+					storeVariable(indexVarName);
+					method.visitJumpInsn(Opcodes.GOTO, resolved);
+					method.visitLabel(next);
+				}
 
-		private void switchStat(String option, IConstructor arg, IList cases, LeveledLabel continueLabel, LeveledLabel breakLabel, LeveledLabel joinLabel, int line) {
-			switch (option) {
-			case "table":
-				tableSwitch(arg, cases, continueLabel, joinLabel, line);
-				return;
-			case "lookup":
-				lookupSwitch(arg, cases, continueLabel, joinLabel, line);
-				return;
-			case "auto":
-				autoSwitch(arg, cases, continueLabel, joinLabel, line);
-				return;
+				method.visitJumpInsn(Opcodes.GOTO, resolved);
 			}
 
-			lookupSwitch(arg, cases, continueLabel, joinLabel, line);
-			return;
+			method.visitLabel(resolved);
+			loadExp(indexVarName, line);
 		}
 
 		/**
@@ -1554,17 +2866,17 @@ public class ClassCompiler {
 		 * be said that the JVM JIT compiler may optimize either instruction to use any kind of 
 		 * implementations and nowadays it thus best to generate the smallest code using a lookup table. 
 		 */
-		private void autoSwitch(IConstructor arg, IList cases, LeveledLabel continueLabel, LeveledLabel joinLabel, int line) {
-			int max = Integer.MAX_VALUE;
-			int min = Integer.MIN_VALUE;
+		private void autoSwitch(int[] keys, IList cases, LeveledLabel continueLabel, LeveledLabel joinLabel, int line) {
+			int min = Integer.MAX_VALUE;
+			int max = Integer.MIN_VALUE;
 			long labelCount = 0;
 
 			for (int i = 0; i < cases.length(); i++) {
 				IConstructor c = (IConstructor) cases.get(i);
-				boolean isDefault = AST.$is("default", c);
+				boolean isDefault = Dispatch.CASE.of(c) == CaseKind.DEFAULT;
 
 				if (!isDefault) {
-					int key = AST.$getKey(c);
+					int key = keys[i];
 					min = Math.min(key, min);
 					max = Math.max(key, max);
 					labelCount++;
@@ -1582,10 +2894,137 @@ public class ClassCompiler {
 			long lookupCost = lookupSpaceCost + 3 * lookupTimeCost;
 
 			if (labelCount > 0 && tableCost <= lookupCost) {
-				tableSwitch(arg, cases, continueLabel, joinLabel, line);
+				tableSwitch(keys, cases, continueLabel, joinLabel, line);
+			}
+			else {
+				lookupSwitch(keys, cases, continueLabel, joinLabel, line);
+			}
+		}
+
+		/**
+		 * Lowers a switch the way optimizing compilers do: the sorted keys are clustered into dense ranges, 
+		 * which each get a TABLESWITCH, and the other keys stay single. A balanced tree of comparisons 
+		 * finds the right cluster in O(log(c)) for c clusters, and its leaves test a few clusters one by one.
+		 * 
+		 * Unlike a TABLESWITCH over all keys this does not grow with the distance between the keys, and unlike 
+		 * a LOOKUPSWITCH the dense ranges take one jump. 
+		 */
+		private void clusteredSwitch(int[] keys, IList cases, LeveledLabel continueLabel, LeveledLabel joinLabel, int line) {
+			List<Integer> positions = new ArrayList<>();
+			boolean hasDefault = false;
+
+			for (int i = 0; i < cases.length(); i++) {
+				if (Dispatch.CASE.of((IConstructor) cases.get(i)) == CaseKind.DEFAULT) {
+					hasDefault = true;
+
+					if (i != cases.length() - 1) {
+						throw new IllegalArgumentException("default handler should be the last of the cases");
+					}
+				}
+				else {
+					positions.add(i);
+				}
+			}
+
+			positions.sort((a, b) -> Integer.compare(keys[a], keys[b]));
+
+			LeveledLabel defaultLabel = hasDefault ? newLabel() : joinLabel;
+			Label[] caseLabels = new Label[cases.length()];
+			int[] sortedKeys = new int[positions.size()];
+			Label[] sortedLabels = new Label[positions.size()];
+
+			for (int i = 0; i < sortedKeys.length; i++) {
+				int position = positions.get(i);
+				caseLabels[position] = newLabel();
+				sortedKeys[i] = keys[position];
+				sortedLabels[i] = caseLabels[position];
+
+				if (i > 0 && sortedKeys[i] == sortedKeys[i - 1]) {
+					throw new IllegalArgumentException("duplicate case key " + sortedKeys[i]);
+				}
+			}
+
+			// the tree needs the key more than once
+			String keyVarName = "switch-key:" + UUID.randomUUID();
+			declareVariable(Types.integerType(), keyVarName, null, false, null, line);
+			storeVariable(keyVarName);
+
+			int[] clusters = SwitchClusters.clusters(sortedKeys);
+			CompilerStatistics.add("switch.clusters", clusters.length - 1);
+			switchTree(keyVarName, sortedKeys, sortedLabels, clusters, 0, clusters.length - 1, defaultLabel, line);
+
+			// here come the handlers
+			for (int i = 0; i < cases.length(); i++) {
+				IConstructor c = (IConstructor) cases.get(i);
+
+				if (Dispatch.CASE.of(c) == CaseKind.DEFAULT) {
+					method.visitLabel(defaultLabel);
+				}
+				else {
+					method.visitLabel(caseLabels[i]);
+				}
+
+				LeveledLabel endCase = newLabel();
+				statements(AST.$getBlock(c), continueLabel, joinLabel /* break will jump beyond the switch */, endCase, getLineNumber(c, line));
+				method.visitLabel(endCase);
+			}
+		}
+
+		/**
+		 * Jumps to the case of the key, for the clusters `from` until `to`; see {@link SwitchClusters}.
+		 */
+		private void switchTree(String keyVarName, int[] keys, Label[] labels, int[] clusters, int from, int to, Label defaultLabel, int line) {
+			if (to - from <= SwitchClusters.LINEAR_CLUSTERS) {
+				for (int c = from; c < to; c++) {
+					int start = clusters[c];
+					int end = clusters[c + 1];
+
+					loadExp(keyVarName, line);
+
+					if (end - start == 1) {
+						// if (key == k) goto case;
+						if (keys[start] == 0) {
+							method.visitJumpInsn(Opcodes.IFEQ, labels[start]);
+						}
+						else {
+							intConstant(keys[start]);
+							method.visitJumpInsn(Opcodes.IF_ICMPEQ, labels[start]);
+						}
+					}
+					else {
+						// the holes can not match any other cluster, but the keys out of range may
+						Label next = c == to - 1 ? defaultLabel : new Label();
+						int low = keys[start];
+						Label[] table = new Label[keys[end - 1] - low + 1];
+						Arrays.fill(table, defaultLabel);
+
+						for (int k = start; k < end; k++) {
+							table[keys[k] - low] = labels[k];
+						}
+
+						method.visitTableSwitchInsn(low, keys[end - 1], next, table);
+
+						if (next != defaultLabel) {
+							method.visitLabel(next);
+						}
+					}
+				}
+
+				if (to == from || clusters[to] - clusters[to - 1] == 1) {
+					method.visitJumpInsn(Opcodes.GOTO, defaultLabel);
+				}
 			}
 			else {
-				lookupSwitch(arg, cases, continueLabel, joinLabel, line);
+				// if (key >= first key of the right half) goto right;
+				int middle = (from + to) / 2;
+				Label right = new Label();
+
+				loadExp(keyVarName, line);
+				intConstant(keys[clusters[middle]]);
+				method.visitJumpInsn(Opcodes.IF_ICMPGE, right);
+				switchTree(keyVarName, keys, labels, clusters, from, middle, defaultLabel, line);
+				method.visitLabel(right);
+				switchTree(keyVarName, keys, labels, clusters, middle, to, defaultLabel, line);
 			}
 		}
 
@@ -1612,7 +3051,7 @@ public class ClassCompiler {
 		 * lookpSwitch is best to call if the case labels are not consecutive integers, the total set of integers
 		 * is a sparse and/or more or less uniformally distributed set (like hashcode's of Strings for example).
 		 */
-		private void lookupSwitch(IConstructor arg, IList cases, LeveledLabel continueLabel, LeveledLabel joinLabel, int line) {
+		private void lookupSwitch(int[] keys, IList cases, LeveledLabel continueLabel, LeveledLabel joinLabel, int line) {
 			ArrayList<CaseLabel> labels = new ArrayList<>();
 			Label defaultLabel = new Label();
 			boolean hasDef = false;
@@ -1620,7 +3059,7 @@ public class ClassCompiler {
 			for (int i = 0; i < cases.length(); i++) {
 				IConstructor c = (IConstructor) cases.get(i);
 
-				if (AST.$is("default", c)) {
+				if (Dispatch.CASE.of(c) == CaseKind.DEFAULT) {
 					defaultLabel = new Label();
 					hasDef = true;
 
@@ -1629,14 +3068,10 @@ public class ClassCompiler {
 					}
 				}
 				else {
-					labels.add(new CaseLabel(AST.$getKey(c)));
+					labels.add(new CaseLabel(keys[i]));
 				}
 			}
 
-
-			// first put the key value on the stack
-			expr(arg, line);
-
 			@SuppressWarnings("unchecked")
 			ArrayList<CaseLabel> sorted = (ArrayList<CaseLabel>) labels.clone();
 			sorted.sort((a,b) -> Integer.compare(a.key, b.key));
@@ -1651,7 +3086,7 @@ public class ClassCompiler {
 			// the case code must be printed in the original order for fall-through semantics
 			for (int i = 0; i < cases.length(); i++) {
 				IConstructor c = (IConstructor) cases.get(i);
-				boolean isDef = AST.$is("default", c);
+				boolean isDef = Dispatch.CASE.of(c) == CaseKind.DEFAULT;
 
 				if (isDef) {
 					method.visitLabel(defaultLabel);
@@ -1685,7 +3120,7 @@ public class ClassCompiler {
 		 * tableSwitch is best to call if the case labels are consecutive integers and if there are not so many 
 		 * as to trigger cache misses all the time.
 		 */
-		private void tableSwitch(IConstructor arg, IList cases, LeveledLabel continueLabel, LeveledLabel joinLabel, int line) {
+		private void tableSwitch(int[] keys, IList cases, LeveledLabel continueLabel, LeveledLabel joinLabel, int line) {
 			int min = Integer.MAX_VALUE;
 			int max = Integer.MIN_VALUE;
 			boolean hasDefault = false;
@@ -1695,10 +3130,10 @@ public class ClassCompiler {
 			for (int i = 0; i < cases.length(); i++) {
 				IConstructor c = (IConstructor) cases.get(i);
 				boolean isLast = i == cases.length() - 1;
-				boolean isDefault = AST.$is("default", c);
+				boolean isDefault = Dispatch.CASE.of(c) == CaseKind.DEFAULT;
 
 				if (!isDefault) {
-					int key = AST.$getKey(c);
+					int key = keys[i];
 					min = Math.min(key, min);
 					max = Math.max(key, max);
 				}
@@ -1721,31 +3156,28 @@ public class ClassCompiler {
 			// unless there is case to jump to:
 			for (int j = 0; j < cases.length(); j++) {
 				IConstructor c = (IConstructor) cases.get(j);
-				if (AST.$is("default", c)) {
+				if (Dispatch.CASE.of(c) == CaseKind.DEFAULT) {
 					continue;
 				}
 				else {
 					// overwrite the default label with the case label
-					labels[AST.$getKey(c) - min] = newLabel();
+					labels[keys[j] - min] = newLabel();
 				}
 			}
 
-			// first put the key value on the stack
-			expr(arg, line);
-
 			// then we generate the switch tabel
 			method.visitTableSwitchInsn(min, max, defaultLabel, labels);
 
 			// here come the handlers
 			for (int i = 0; i < cases.length(); i++) {
 				IConstructor c = (IConstructor) cases.get(i);
-				boolean isDef = AST.$is("default", c);
+				boolean isDef = Dispatch.CASE.of(c) == CaseKind.DEFAULT;
 
 				if (isDef) {
 					method.visitLabel(defaultLabel);
 				}
 				else {
-					method.visitLabel(labels[AST.$getKey(c) - min]);
+					method.visitLabel(labels[keys[i] - min]);
 				}
 
 				LeveledLabel endCase = newLabel();
@@ -1778,11 +3210,25 @@ public class ClassCompiler {
 
 			String finallyVarName = null;
 			Builder<IConstructor> finallyCode = null;
+			Scope outerScope = locals.currentScope();
+			OutlinedFinally outlined = null;
+
+			if (!catches.isEmpty()) {
+				IConstructor last = (IConstructor) catches.get(catches.length() - 1);
+
+				if (Dispatch.HANDLER.of(last) == HandlerKind.FINALLY && isLargeFinally(AST.$getBlock(last))) {
+					// its bookkeeping variables live in the outer scope, where the shared finally block is generated
+					outlined = new OutlinedFinally(AST.$getBlock(last), continueLabel, breakLabel, line);
+				}
+			}
+
+			// the try block has its own scope; each handler gets another one
+			enterScope();
 
 			// produce handler registration for every catch block
 			for (int i = 0; i < catches.length(); i++) {
 				IConstructor catcher = (IConstructor) catches.get(i);
-				boolean isFinally = AST.$is("finally", catcher);
+				boolean isFinally = Dispatch.HANDLER.of(catcher) == HandlerKind.FINALLY;
 				boolean isLast = i == catches.length() - 1;
 				handlers[i] = newLabel();
 
@@ -1790,22 +3236,18 @@ public class ClassCompiler {
 					finallyVarName = "finally:" + UUID.randomUUID();
 					declareVariable(Types.throwableType(), finallyVarName, null, false, null, line);
 					finallyCode = () -> statements(AST.$getBlock(catcher), breakLabel, continueLabel, joinLabel, line);
-					pushFinally(finallyCode);
+					pushFinally(finallyCode, outerScope, outlined);
 				}
 				else if (isFinally) {
 					throw new IllegalArgumentException("finally block should be the last handler");
 				}
-				else {
-					IConstructor exceptionType = AST.$getType(catcher);
-					String varName = AST.$getName(catcher);
-					declareVariable(exceptionType, varName, null, false, null, line);
-				}
 			}
 
 			// the try block itself
 			method.visitLabel(tryStart);
 			statements(block, continueLabel, breakLabel, joinLabel, line);
 			method.visitLabel(tryEnd);
+			exitScope();
 
 			// jump over the catch blocks
 			method.visitJumpInsn(Opcodes.GOTO, joinLabel);
@@ -1813,21 +3255,33 @@ public class ClassCompiler {
 			// generate blocks for each handler
 			for (int i = 0; i < catches.length(); i++) {
 				IConstructor catcher = (IConstructor) catches.get(i);
-				boolean isFinally = AST.$is("finally", catcher);
+				boolean isFinally = Dispatch.HANDLER.of(catcher) == HandlerKind.FINALLY;
 				boolean isLast = i == catches.length() - 1;
 
 				if (isLast && isFinally) {
 					method.visitLabel(handlers[i]);
-					finallyCode.build();
-					popFinally();
+
+					if (outlined != null) {
+						popFinally();
+						outlined.emit(outerScope);
+					}
+					else {
+						enterScope();
+						finallyCode.build();
+						exitScope();
+						popFinally();
+					}
 				}
 				else { // normal catch handler
 					method.visitLabel(handlers[i]);
+					enterScope();
 					String varName = AST.$getName(catcher);
 					IConstructor exceptionType = AST.$getType(catcher);
 					String clsName = AST.$getRefClassFromType(exceptionType, classNode.name);
+					declareVariable(exceptionType, varName, null, false, null, line);
 					method.visitVarInsn(Opcodes.ASTORE, positionOf(varName));
 					statements(AST.$getBlock(catcher), continueLabel, breakLabel, joinLabel, getLineNumber(catcher, line));
+					exitScope();
 					method.visitTryCatchBlock(tryStart, tryEnd, handlers[i], clsName);
 
 					if (!isLast) { // jump over the other handlers
@@ -1838,11 +3292,137 @@ public class ClassCompiler {
 		}
 
 		private Builder<IConstructor> popFinally() {
+			outlinedFinallyLevel.remove(outlinedFinallyLevel.size() - 1);
 			return tryFinallyNestingLevel.remove(tryFinallyNestingLevel.size() - 1);
 		}
 
-		private boolean pushFinally(Builder<IConstructor> finallyCode) {
-			return tryFinallyNestingLevel.add(finallyCode);
+		/**
+		 * @param scope    the scope in which the names in the finally code must be resolved, regardless of
+		 *                 the nested scopes at the place where the finally code is emitted.
+		 * @param outlined if not null, then the exits jump to this shared copy of the finally code instead
+		 *                 of copying `finallyCode` to every exit
+		 */
+		private boolean pushFinally(Builder<IConstructor> finallyCode, Scope scope, OutlinedFinally outlined) {
+			outlinedFinallyLevel.add(outlined);
+
+			return tryFinallyNestingLevel.add(() -> {
+				locals.enterDetachedScope(scope);
+				finallyCode.build();
+				Label end = new Label();
+				method.visitLabel(end);
+				locals.exitScope(end);
+				return null;
+			});
+		}
+
+		/**
+		 * Finally code is copied to every return, break and continue which jumps out of its try block,
+		 * and nested finally blocks multiply these copies. Above the threshold of the `finallyOutlining`
+		 * option (or its default), a finally block is generated only once instead.
+		 */
+		private boolean isLargeFinally(IList block) {
+			return Simplifier.nodes(block) >= threshold("finallyOutlining", FINALLY_OUTLINING_THRESHOLD);
+		}
+
+		/**
+		 * A finally block which is generated only once, after the handlers of its try statement. Every
+		 * exit stores its own number in a local variable and jumps to the shared block, which ends with a
+		 * TABLESWITCH on that number to the rest of each exit. The rest of an exit runs the outer finally
+		 * blocks and then jumps to the target of the break or continue, or returns the value which the
+		 * return stored in a second local variable.
+		 */
+		private class OutlinedFinally {
+			private final IList block;
+			private final LeveledLabel continueLabel;
+			private final LeveledLabel breakLabel;
+			private final int line;
+			private final Label entry = new Label();
+			private final String exitVarName = "finally-exit:" + UUID.randomUUID();
+			private final String returnVarName = "finally-return:" + UUID.randomUUID();
+			private final List<Builder<IConstructor>> exits = new ArrayList<>();
+
+			public OutlinedFinally(IList block, LeveledLabel continueLabel, LeveledLabel breakLabel, int line) {
+				this.block = block;
+				this.continueLabel = continueLabel;
+				this.breakLabel = breakLabel;
+				this.line = line;
+
+				declareVariable(Types.integerType(), exitVarName, null, false, null, line);
+
+				if (Dispatch.TYPE.of(returnType) != TypeKind.VOID) {
+					// the verifier must see an initialized variable at the return after the shared block
+					declareVariable(returnType, returnVarName, null, true, null, line);
+				}
+			}
+
+			/**
+			 * Jumps from an exit to the shared finally block.
+			 * @param value the type of the return value on the stack, or null for break and continue
+			 */
+			public void enter(int toLevel, IConstructor value, Builder<IConstructor> exit) {
+				if (value != null) {
+					storeVariable(returnVarName);
+				}
+
+				int exitNumber = exits.size();
+				exits.add(() -> {
+					if (value != null) {
+						loadExp(returnVarName, line);
+					}
+					exitThroughFinally(toLevel, value, exit);
+					return null;
+				});
+
+				intConstant(exitNumber);
+				storeVariable(exitVarName);
+				method.visitJumpInsn(Opcodes.GOTO, entry);
+			}
+
+			/**
+			 * Generates the shared block, after all the exits which jump to it have been generated.
+			 * @param scope the scope of the try statement
+			 */
+			public void emit(Scope scope) {
+				if (exits.isEmpty()) {
+					return; // nobody jumps here
+				}
+
+				CompilerStatistics.count("finallyOutlining.blocks");
+				CompilerStatistics.add("finallyOutlining.exits", exits.size());
+
+				LeveledLabel end = newLabel();
+				method.visitLabel(entry);
+
+				// like the copies, the shared finally code does not run finally code for its own exits
+				boolean wasEmittingFinally = emittingFinally;
+				emittingFinally = true;
+				locals.enterDetachedScope(scope);
+				statements(block, breakLabel, continueLabel, end, line);
+				method.visitLabel(end);
+				Label scopeEnd = new Label();
+				method.visitLabel(scopeEnd);
+				locals.exitScope(scopeEnd);
+				emittingFinally = wasEmittingFinally;
+
+				if (exits.size() == 1) {
+					exits.get(0).build();
+					return;
+				}
+
+				Label[] continuations = new Label[exits.size()];
+				for (int i = 0; i < continuations.length; i++) {
+					continuations[i] = new Label();
+				}
+
+				// the last exit is the default case
+				loadExp(exitVarName, line);
+				method.visitTableSwitchInsn(0, continuations.length - 2, continuations[continuations.length - 1], Arrays.copyOf(continuations, continuations.length - 1));
+
+				for (int i = 0; i < continuations.length; i++) {
+					method.visitLabel(continuations[i]);
+					exits.get(i).build();
+				}
+			}
 		}
 
 
@@ -1865,6 +3445,7 @@ public class ClassCompiler {
 			method.visitTryCatchBlock(startExceptionBlock, endExceptionBlock, handlerStart, null);
 			method.visitTryCatchBlock(handlerStart, handlerEnd, handlerStart, null);
 
+			enterScope();
 			String lockVarName = "$lock:" + UUID.randomUUID().toString();
 			Builder<IConstructor> finallyCode = () -> {
 				lineNumber(line);
@@ -1887,7 +3468,7 @@ public class ClassCompiler {
 			// the block 
 			method.visitLabel(startExceptionBlock);
 			// register finally handlers for use by return, continue, break and throw:
-			pushFinally(finallyCode);
+			pushFinally(finallyCode, locals.currentScope(), null);
 			// compile the code in the block
 			statements(block, continueLabel, breakLabel, endExceptionBlock, line);
 			// unregister the finally handler
@@ -1906,6 +3487,7 @@ public class ClassCompiler {
 			method.visitInsn(Opcodes.MONITOREXIT); 
 			method.visitLabel(handlerEnd);
 			method.visitInsn(Opcodes.ATHROW); // rethrow
+			exitScope();
 		}
 
 		private void throwStat(IConstructor arg, int parentLine) {
@@ -1924,20 +3506,11 @@ public class ClassCompiler {
 			method.visitLabel(testConditional);
 			lineNumber(line, testConditional);
 
-			// deal efficiently with negated conditionals
-			int cmpCode = Opcodes.IFEQ;
-			if (cond.getConstructorType().getName().equals("neg")) {
-				cond = expr(AST.$getArg(cond), line);
-				cmpCode = Opcodes.IFNE;
-			}
-
-			expr(cond, line);
-			invertedConditionalFlow(0, cmpCode, 
-					() -> statements(body, testConditional, joinLabel, testConditional, line), 
-					() -> jumpTo(joinLabel) /* end of loop */, 
-					testConditional, getLineNumber(cond, line));
+			// end of loop
+			branch(cond, false, joinLabel, getLineNumber(cond, line));
 
-			jumpTo(testConditional); // this might be superfluous
+			statements(body, testConditional, joinLabel, testConditional, line);
+			jumpTo(testConditional);
 		}
 
 		private void doWhileStat(String label, IConstructor cond, IList body, LeveledLabel continueLabel, LeveledLabel breakLabel, LeveledLabel joinLabel, int line) {
@@ -1952,19 +3525,8 @@ public class ClassCompiler {
 
 			statements(body, nextIteration, joinLabel, nextIteration, line);
 
-			// deal efficiently with negated conditionals
-			int cmpCode = Opcodes.IFEQ;
-			if (cond.getConstructorType().getName().equals("neg")) {
-				cond = expr(AST.$getArg(cond), line);
-				cmpCode = Opcodes.IFNE;
-			}
-
-			// while(cond)
-			expr(cond, line);
-			invertedConditionalFlow(0, cmpCode, 
-					() -> jumpTo(nextIteration), 
-					null /* end of loop */, 
-					joinLabel, getLineNumber(cond, line));
+			// while(cond), or else the end of the loop
+			branch(cond, true, nextIteration, getLineNumber(cond, line));
 		}
 
 		private void breakStat(IConstructor stat, LeveledLabel join) {
@@ -1979,8 +3541,11 @@ public class ClassCompiler {
 				target = getLabel(tryFinallyNestingLevel.size(), "break:" + loopLabel);
 			}
 
-			emitFinally(target.getFinallyNestingLevel());
-			method.visitJumpInsn(Opcodes.GOTO, target);
+			LeveledLabel jump = target;
+			exitThroughFinally(target.getFinallyNestingLevel(), null, () -> {
+				method.visitJumpInsn(Opcodes.GOTO, jump);
+				return null;
+			});
 		}
 
 		private void continueStat(IConstructor stat, LeveledLabel join) {
@@ -1995,8 +3560,11 @@ public class ClassCompiler {
 				target = getLabel(tryFinallyNestingLevel.size(), "continue:" + loopLabel);
 			}
 
-			emitFinally(target.getFinallyNestingLevel());
-			method.visitJumpInsn(Opcodes.GOTO, target);
+			LeveledLabel jump = target;
+			exitThroughFinally(target.getFinallyNestingLevel(), null, () -> {
+				method.visitJumpInsn(Opcodes.GOTO, jump);
+				return null;
+			});
 		}
 
 		private LeveledLabel getLabel(int level, String label) {
@@ -2019,7 +3587,9 @@ public class ClassCompiler {
 				method.visitLabel(getOrCreateAsmLabel(label));
 			}
 			method.visitLabel(again);
+			enterScope();
 			statements(body, again, joinLabel, joinLabel, line);
+			exitScope();
 		}
 
 		private void declStat(IConstructor stat, LeveledLabel joinLabel, int line) {
@@ -2047,28 +3617,23 @@ public class ClassCompiler {
 				labels.put("continue:" + label, nextIterationLabel);
 			}
 
+			// the variables declared in init are visible until the end of the loop
+			enterScope();
 			statements(init, continueLabel /*outerloop*/, breakLabel /*outerloop*/, testConditional /*start of inner loop*/, line);
 
 			method.visitLabel(testConditional);
 
-			// deal efficiently with negated conditionals
-			int cmpCode = Opcodes.IFEQ;
-			if (cond.getConstructorType().getName().equals("neg")) {
-				cond = expr(AST.$getArg(cond), line);
-				cmpCode = Opcodes.IFNE;
-			}
+			// end of loop
+			branch(cond, false, joinLabel, getLineNumber(cond, line));
 
-			expr(cond, line);
-			invertedConditionalFlow(0, cmpCode, 
-					() -> statements(body, nextIterationLabel, joinLabel, nextIterationLabel, line), 
-					() -> jumpTo(joinLabel) /* end of loop */, 
-					nextIterationLabel, getLineNumber(cond, line));
+			statements(body, nextIterationLabel, joinLabel, nextIterationLabel, line);
 
 			method.visitLabel(nextIterationLabel);
 			LeveledLabel endNext = newLabel();
 			statements(next, continueLabel /*outerloop */, breakLabel /*outerloop*/, endNext, line);
 			method.visitLabel(endNext);
 			jumpTo(testConditional); // this might be superfluous
+			exitScope();
 		}
 
 		private IConstructor jumpTo(Label join) {
@@ -2087,35 +3652,198 @@ public class ClassCompiler {
 		}
 
 		private IConstructor ifThenElse(IConstructor cond, Builder<IConstructor> thenBuilder, Builder<IConstructor> elseBuilder, LeveledLabel continueLabel, LeveledLabel breakLabel, LeveledLabel joinLabel, int line) {
-			// here we special case for !=, ==, <=, >=, < and >, because
-			// there are special jump instructions for these operators on the JVM and we don't want to push
-			// a boolean on the stack and then conditionally have to jump on that boolean again:
+			switch (Dispatch.EXP.of(cond)) {
+			case TRUE:
+				return thenBuilder.build();
+			case FALSE:
+				return elseBuilder.build();
+			default:
+				return conditionalFlow(cond, thenBuilder, elseBuilder, joinLabel, getLineNumber(cond, line));
+			}
+		}
+
+		/**
+		 * Like {@link #invertedConditionalFlow}, but the condition is compiled by {@link #branch}, 
+		 * such that it jumps to the else part without pushing a boolean first.
+		 */
+		private IConstructor conditionalFlow(IConstructor cond, Builder<IConstructor> thenPart, Builder<IConstructor> elsePart, LeveledLabel joinLabel, int line) {
+			Label jump = newLabel();
+			Label next = joinLabel == null ? newLabel() : joinLabel;
+			IConstructor res1 = null, res2 = null;
+
+			lineNumber(line);
+			branch(cond, false, elsePart != null ? jump : next, line);
+			res1 = thenPart.build();
+
+			if (elsePart != null) {
+				jumpTo(next);
+				method.visitLabel(jump);
+				res2 = elsePart.build();
+			}
+
+			if (joinLabel == null) {
+				method.visitLabel(next);
+				lineNumber(line, next);
+			}
+
+			return merge(res1, res2);
+		}
+
+		/**
+		 * Compiles a condition to jumps: control goes to `target` if the condition is `jumpIfTrue`, and falls 
+		 * through otherwise. The boolean operators `sand`, `sor`, `neg` and `cond` pass on their own targets to 
+		 * their arguments, and the comparisons use the conditional jump instructions of the JVM, such that 
+		 * a condition never pushes an intermediate boolean to test it again.  
+		 */
+		private void branch(IConstructor cond, boolean jumpIfTrue, Label target, int line) {
+			switch (Dispatch.EXP.of(cond)) {
+			case TRUE:
+				if (jumpIfTrue) {
+					jumpTo(target);
+				}
+				return;
+			case FALSE:
+				if (!jumpIfTrue) {
+					jumpTo(target);
+				}
+				return;
+			case NEG:
+				branch(AST.$getArg(cond), !jumpIfTrue, target, line);
+				return;
+			case SAND:
+				if (jumpIfTrue) {
+					Label skip = newLabel();
+					branch(AST.$getLhs(cond), false, skip, line);
+					branch(AST.$getRhs(cond), true, target, line);
+					method.visitLabel(skip);
+				}
+				else {
+					branch(AST.$getLhs(cond), false, target, line);
+					branch(AST.$getRhs(cond), false, target, line);
+				}
+				return;
+			case SOR:
+				if (jumpIfTrue) {
+					branch(AST.$getLhs(cond), true, target, line);
+					branch(AST.$getRhs(cond), true, target, line);
+				}
+				else {
+					Label skip = newLabel();
+					branch(AST.$getLhs(cond), true, skip, line);
+					branch(AST.$getRhs(cond), false, target, line);
+					method.visitLabel(skip);
+				}
+				return;
+			case COND:
+				Label elseLabel = newLabel();
+				Label join = newLabel();
+				branch(AST.$getCondition(cond), false, elseLabel, line);
+				branch(AST.$getThenExp(cond), jumpIfTrue, target, line);
+				jumpTo(join);
+				method.visitLabel(elseLabel);
+				branch(AST.$getElseExp(cond), jumpIfTrue, target, line);
+				method.visitLabel(join);
+				return;
+			case EQ:
+				compareBranch(Opcodes.IF_ICMPEQ, AST.$getLhs(cond), AST.$getRhs(cond), jumpIfTrue, target, line);
+				return;
+			case NE:
+				compareBranch(Opcodes.IF_ICMPNE, AST.$getLhs(cond), AST.$getRhs(cond), jumpIfTrue, target, line);
+				return;
+			case LT:
+				compareBranch(Opcodes.IF_ICMPLT, AST.$getLhs(cond), AST.$getRhs(cond), jumpIfTrue, target, line);
+				return;
+			case LE:
+				compareBranch(Opcodes.IF_ICMPLE, AST.$getLhs(cond), AST.$getRhs(cond), jumpIfTrue, target, line);
+				return;
+			case GT:
+				compareBranch(Opcodes.IF_ICMPGT, AST.$getLhs(cond), AST.$getRhs(cond), jumpIfTrue, target, line);
+				return;
+			case GE:
+				compareBranch(Opcodes.IF_ICMPGE, AST.$getLhs(cond), AST.$getRhs(cond), jumpIfTrue, target, line);
+				return;
+			default:
+				expr(cond, line);
+				method.visitJumpInsn(jumpIfTrue ? Opcodes.IFNE : Opcodes.IFEQ, target);
+			}
+		}
+
+		/**
+		 * @param relation the IF_ICMPxx instruction of the comparison
+		 */
+		private void compareBranch(int relation, IConstructor lhs, IConstructor rhs, boolean jumpIfTrue, Label target, int line) {
+			boolean isEquality = relation == Opcodes.IF_ICMPEQ || relation == Opcodes.IF_ICMPNE;
+			int opcode = jumpIfTrue ? relation : negate(relation);
+
+			if (isEquality && (Dispatch.EXP.of(lhs) == ExpKind.NULL || Dispatch.EXP.of(rhs) == ExpKind.NULL)) {
+				expr(Dispatch.EXP.of(lhs) == ExpKind.NULL ? rhs : lhs, line);
+				lineNumber(line);
+				method.visitJumpInsn(opcode == Opcodes.IF_ICMPEQ ? Opcodes.IFNULL : Opcodes.IFNONNULL, target);
+				return;
+			}
+
+			IConstructor type = prepareArguments(lhs, rhs, line);
+			// the IFxx instruction with the same relation as IF_ICMPxx, for the result of a comparison instruction
+			int compared = opcode - Opcodes.IF_ICMPEQ + Opcodes.IFEQ;
+			// a comparison with NaN must be false, so it compares as greater for < and <=, and as less for > and >=
+			boolean nanIsGreater = relation == Opcodes.IF_ICMPLT || relation == Opcodes.IF_ICMPLE;
+
+			lineNumber(line);
+
+			switch (Dispatch.TYPE.of(type)) {
+			case BOOLEAN: case INTEGER: case SHORT: case BYTE: case CHARACTER:
+				method.visitJumpInsn(opcode, target);
+				return;
+			case FLOAT:
+				method.visitInsn(nanIsGreater ? Opcodes.FCMPG : Opcodes.FCMPL);
+				method.visitJumpInsn(compared, target);
+				return;
+			case DOUBLE:
+				method.visitInsn(nanIsGreater ? Opcodes.DCMPG : Opcodes.DCMPL);
+				method.visitJumpInsn(compared, target);
+				return;
+			case LONG:
+				method.visitInsn(Opcodes.LCMP);
+				method.visitJumpInsn(compared, target);
+				return;
+			case OBJECT: case ARRAY: case STRING:
+				if (isEquality) {
+					method.visitJumpInsn(opcode == Opcodes.IF_ICMPEQ ? Opcodes.IF_ACMPEQ : Opcodes.IF_ACMPNE, target);
+					return;
+				}
+				throw new IllegalArgumentException("ordering comparison on references");
+			default:
+				throw new IllegalArgumentException("comparison on " + type);
+			}
+		}
+
+		/**
+		 * @return the conditional jump with the opposite condition, for IFxx, IF_ICMPxx and IF_ACMPxx
+		 */
+		private static int negate(int opcode) {
+			// the instructions come in pairs: EQ and NE, LT and GE, GT and LE
+			return ((opcode + 1) ^ 1) - 1;
+		}
+
+		/**
+		 * Pushes the value of a boolean expression, which is compiled by {@link #branch}.
+		 */
+		private IConstructor booleanExp(IConstructor exp, int line) {
+			Label isFalse = newLabel();
+			Label join = newLabel();
+
+			branch(exp, false, isFalse, line);
+			trueExp();
+			jumpTo(join);
+			method.visitLabel(isFalse);
+			falseExp();
+			method.visitLabel(join);
 
-			switch (cond.getConstructorType().getName()) {
-			case "true":
-				return thenBuilder.build();
-			case "false":
-				return elseBuilder.build();
-			case "eq":
-				return eqExp(AST.$getLhs(cond), AST.$getRhs(cond), thenBuilder, elseBuilder, joinLabel, getLineNumber(cond, line));
-			case "ne":
-				return neExp(AST.$getLhs(cond), AST.$getRhs(cond), thenBuilder, elseBuilder, joinLabel, getLineNumber(cond, line));
-			case "le":
-				return leExp(AST.$getLhs(cond), AST.$getRhs(cond), thenBuilder, elseBuilder, joinLabel, getLineNumber(cond, line));
-			case "gt":
-				return gtExp(AST.$getLhs(cond), AST.$getRhs(cond), thenBuilder, elseBuilder, joinLabel, getLineNumber(cond, line));
-			case "ge":
-				return geExp(AST.$getLhs(cond), AST.$getRhs(cond), thenBuilder, elseBuilder, joinLabel, getLineNumber(cond, line));
-			case "lt":
-				return ltExp(AST.$getLhs(cond), AST.$getRhs(cond), thenBuilder, elseBuilder, joinLabel, getLineNumber(cond, line));
-			case "neg":
-				// if(!expr) is compiled to IFNE directly without intermediate (inefficient) negation code
-				expr(AST.$getArg(cond), line);
-				return invertedConditionalFlow(0, Opcodes.IFNE, thenBuilder, elseBuilder, joinLabel, getLineNumber(cond, line));
-			default:
-				expr(cond, line);
-				return invertedConditionalFlow(0, Opcodes.IFEQ, thenBuilder, elseBuilder, joinLabel, getLineNumber(cond, line));
+			if (nativeFrames) {
+				stackHint(Types.booleanType(), Types.booleanType());
 			}
+
+			return Types.booleanType();
 		}
 
 		private void putStaticStat(String cls, IConstructor type, String name, IConstructor arg, int parentLine) {
@@ -2130,10 +3858,19 @@ public class ClassCompiler {
 		}
 
 		private IConstructor storeStat(String name, IConstructor expression, int parentLine) {
-			int pos = positionOf(name);
 			expr(expression, parentLine);
+			storeVariable(name);
+			return null;
+		}
 
-			Switch.type0(variableTypes.get(pos),
+		/**
+		 * Stores the value on top of the stack in a variable.
+		 */
+		private void storeVariable(String name) {
+			Variable var = locals.lookup(name);
+			int pos = var.slot;
+
+			Switch.type0(var.type,
 					(z) -> { method.visitVarInsn(Opcodes.ISTORE, pos); },
 					(i) -> { method.visitVarInsn(Opcodes.ISTORE, pos); },
 					(s) -> { method.visitVarInsn(Opcodes.ISTORE, pos); },
@@ -2147,8 +3884,6 @@ public class ClassCompiler {
 					(a) -> { /* array */ method.visitVarInsn(Opcodes.ASTORE, pos); },
 					(S) -> { /* string */ method.visitVarInsn(Opcodes.ASTORE, pos); }
 					);
-
-			return null;
 		}
 
 		private void returnStat(IConstructor stat, int line) {
@@ -2161,38 +3896,60 @@ public class ClassCompiler {
 				// return, or break or continue from the finally block,
 				// must not execute current finally again (infinite loop),
 				// so pop that and push it back when done.
-				emitFinally(0);
-
-				lineNumber(getLineNumber(stat, line));
-				Switch.type0(type,
-						(z) -> { method.visitInsn(Opcodes.IRETURN); },
-						(i) -> { method.visitInsn(Opcodes.IRETURN); },
-						(s) -> { method.visitInsn(Opcodes.IRETURN); },
-						(b) -> { method.visitInsn(Opcodes.IRETURN); },
-						(c) -> { method.visitInsn(Opcodes.IRETURN); }, 
-						(f) -> { method.visitInsn(Opcodes.FRETURN); },
-						(d) -> { method.visitInsn(Opcodes.DRETURN); },
-						(l) -> { method.visitInsn(Opcodes.LRETURN); },
-						(v) -> { /* void  */ method.visitInsn(Opcodes.RETURN); },
-						(c) -> { /* class */ method.visitInsn(Opcodes.ARETURN); },
-						(a) -> { /* array */ method.visitInsn(Opcodes.ARETURN); },
-						(S) -> { /* string */ method.visitInsn(Opcodes.ARETURN); }
-						);
-			}
-		}
-
-		private void emitFinally(int toLevel) {
+				exitThroughFinally(0, type, () -> {
+					lineNumber(getLineNumber(stat, line));
+					returnValue(type);
+					return null;
+				});
+			}
+		}
+
+		private void returnValue(IConstructor type) {
+			Switch.type0(type,
+					(z) -> { method.visitInsn(Opcodes.IRETURN); },
+					(i) -> { method.visitInsn(Opcodes.IRETURN); },
+					(s) -> { method.visitInsn(Opcodes.IRETURN); },
+					(b) -> { method.visitInsn(Opcodes.IRETURN); },
+					(c) -> { method.visitInsn(Opcodes.IRETURN); },
+					(f) -> { method.visitInsn(Opcodes.FRETURN); },
+					(d) -> { method.visitInsn(Opcodes.DRETURN); },
+					(l) -> { method.visitInsn(Opcodes.LRETURN); },
+					(v) -> { /* void  */ method.visitInsn(Opcodes.RETURN); },
+					(c) -> { /* class */ method.visitInsn(Opcodes.ARETURN); },
+					(a) -> { /* array */ method.visitInsn(Opcodes.ARETURN); },
+					(S) -> { /* string */ method.visitInsn(Opcodes.ARETURN); }
+					);
+		}
+
+		/**
+		 * Emits the finally blocks from the innermost one up to the given level, followed by the exit itself.
+		 * An outlined finally block takes over the rest of the exit.
+		 *
+		 * @param value the type of the return value on the stack, or null for break and continue
+		 */
+		private void exitThroughFinally(int toLevel, IConstructor value, Builder<IConstructor> exit) {
 			// emit code for finally blocks in reverse order
 			// during this build, the finally stack must NOT be active itself
 			if (!emittingFinally) {
 				emittingFinally  = true;
 
 				for (int i = tryFinallyNestingLevel.size() - 1; i >= 0 && i >= toLevel; i--) {
+					OutlinedFinally outlined = outlinedFinallyLevel.get(i);
+
+					// inside an expression the stack may not be empty, so we can not jump to a shared block there
+					if (outlined != null && expressionNesting == 0) {
+						emittingFinally = false;
+						outlined.enter(toLevel, value, exit);
+						return;
+					}
+
 					tryFinallyNestingLevel.get(i).build();
 				}
 
 				emittingFinally = false;
 			}
+
+			exit.build();
 		}
 
 		private IConstructor doStat(IConstructor exp, int line) {
@@ -2236,104 +3993,110 @@ public class ClassCompiler {
 			int line = getLineNumber(exp, parentLine);
 
 			try {
-				switch (exp.getConstructorType().getName()) {
-				case "const" : 
+				switch (Dispatch.EXP.of(exp)) {
+				case CONST: 
 					return constExp(AST.$getType(exp), AST.$getConstant(exp), line); 
-				case "this" : 
+				case THIS: 
 					return loadExp("this", line);
-				case "newInstance":
+				case NEW_INSTANCE:
 					return newInstanceExp(exp, line);
-				case "newArray":
+				case NEW_ARRAY:
 					return newArrayExp(AST.$getType(exp), AST.$getSize(exp), line);
-				case "newInitArray":
+				case NEW_INIT_ARRAY:
 					return newArrayExp(AST.$getType(exp), AST.$getArgs(exp), line);
-				case "alength":
+				case ALENGTH:
 					return alengthExp(AST.$getArg(exp), line);
-				case "load" : 
+				case LOAD: 
 					return loadExp(AST.$getName(exp), line); 
-				case "aload" :
+				case ALOAD:
 					return aaloadExp(AST.$getArray(exp), AST.$getIndex(exp), line);
-				case "getStatic":
+				case GET_STATIC:
 					return getstaticExp(AST.$getRefClassFromType(AST.$getClass(exp), classNode.name), AST.$getType(exp), AST.$getName(exp), line);
-				case "invokeVirtual" : 
+				case INVOKE_VIRTUAL: 
 					return invokeVirtualExp(AST.$getRefClassFromType(AST.$getClass(exp), classNode.name), AST.$getDesc(exp), AST.$getReceiver(exp), AST.$getArgs(exp), line);
-				case "invokeInterface" : 
+				case INVOKE_INTERFACE: 
 					return invokeInterfaceExp(AST.$getRefClassFromType(AST.$getClass(exp), classNode.name), AST.$getDesc(exp), AST.$getReceiver(exp), AST.$getArgs(exp), line);
-				case "invokeSpecial" : 
+				case INVOKE_SPECIAL: 
 					return invokeSpecialExp(AST.$getRefClassFromType(AST.$getClass(exp), classNode.name), AST.$getDesc(exp), AST.$getReceiver(exp), AST.$getArgs(exp), line);
-				case "invokeStatic" : 
+				case INVOKE_STATIC: 
 					return invokeStaticExp(AST.$getRefClassFromType(AST.$getClass(exp), classNode.name), AST.$getDesc(exp), AST.$getArgs(exp), line);
-				case "invokeDynamic" : 
+				case INVOKE_DYNAMIC: 
 					return invokeDynamicExp(AST.$getHandle(exp), AST.$getDesc(exp), AST.$getArgs(exp), line);
-				case "getField":
+				case GET_FIELD:
 					return getfieldExp(AST.$getReceiver(exp), AST.$getRefClassFromType(AST.$getClass(exp), classNode.name), AST.$getType(exp), AST.$getName(exp), line);
-				case "instanceof":
+				case INSTANCEOF:
 					return instanceofExp(AST.$getArg(exp), AST.$getRefClassFromType(exp, classNode.name), line);
-				case "sblock":
+				case SBLOCK:
 					return sblockExp(AST.$getStatements(exp), AST.$getArg(exp), line);
-				case "null":
+				case NULL:
 					lineNumber(line);
 					return nullExp(); 
-				case "true":
+				case TRUE:
 					lineNumber(line);
 					return trueExp();
-				case "false":
+				case FALSE:
 					lineNumber(line);
 					return falseExp();
-				case "coerce":
+				case COERCE:
 					return coerceExp(AST.$getFrom(exp), AST.$getTo(exp), AST.$getArg(exp), line);
-				case "eq":
+				case EQ:
 					eqExp(AST.$getLhs(exp), AST.$getRhs(exp), pushTrue, pushFalse, null, line);
 					return Types.booleanType();
-				case "ne":
+				case NE:
 					neExp(AST.$getLhs(exp), AST.$getRhs(exp), (Builder<IConstructor>) pushTrue, (Builder<IConstructor>) pushFalse, null, line);
 					return Types.booleanType();
-				case "le":
+				case LE:
 					leExp(AST.$getLhs(exp), AST.$getRhs(exp), pushTrue, pushFalse, null, line);
 					return Types.booleanType();
-				case "gt":
+				case GT:
 					gtExp(AST.$getLhs(exp), AST.$getRhs(exp), pushTrue, pushFalse, null, line);
 					return Types.booleanType();
-				case "ge":
+				case GE:
 					geExp(AST.$getLhs(exp), AST.$getRhs(exp), pushTrue, pushFalse, null, line);
 					return Types.booleanType();
-				case "lt":
+				case LT:
 					ltExp(AST.$getLhs(exp), AST.$getRhs(exp), pushTrue, pushFalse, null, line);
 					return Types.booleanType();
-				case "add":
+				case ADD:
 					return addExp(AST.$getLhs(exp), AST.$getRhs(exp), line);
-				case "div":
+				case DIV:
 					return divExp(AST.$getLhs(exp), AST.$getRhs(exp), line);
-				case "rem":
+				case REM:
 					return remExp(AST.$getLhs(exp), AST.$getRhs(exp), line);
-				case "sub":
+				case SUB:
 					return subExp(AST.$getLhs(exp), AST.$getRhs(exp), line);
-				case "mul":
+				case MUL:
 					return mulExp(AST.$getLhs(exp), AST.$getRhs(exp), line);
-				case "and":
+				case AND:
 					return andExp(AST.$getLhs(exp), AST.$getRhs(exp), line);
-				case "sand":
-					return cond(AST.$getLhs(exp), AST.$getRhs(exp), falseExp(), line);
-				case "or":
+				case SAND:
+					return booleanExp(exp, line);
+				case OR:
 					return orExp(AST.$getLhs(exp), AST.$getRhs(exp), line);
-				case "sor":
-					return cond(AST.$getLhs(exp), trueExp(), AST.$getRhs(exp), line);
-				case "xor":
+				case SOR:
+					return booleanExp(exp, line);
+				case XOR:
 					return xorExp(AST.$getLhs(exp), AST.$getRhs(exp), line);
-				case "neg":
+				case NEG:
 					return negExp(AST.$getArg(exp), line);
-				case "inc":
+				case INC:
 					return incExp(AST.$getName(exp), AST.$getInc(exp), line);
-				case "shr":
+				case SHR:
 					return shrExp(AST.$getLhs(exp), AST.$getRhs(exp), line);
-				case "shl":
+				case SHL:
 					return shlExp(AST.$getLhs(exp), AST.$getRhs(exp), line);
-				case "ushr":
+				case USHR:
 					return ushrExp(AST.$getLhs(exp), AST.$getRhs(exp), line);
-				case "checkcast":
+				case CHECKCAST:
 					return checkCastExp(AST.$getArg(exp), AST.$getType(exp), line);
-				case "cond":
+				case COND:
 					return cond(AST.$getCondition(exp), AST.$getThenExp(exp), AST.$getElseExp(exp), line);
+				case CONCAT:
+					return concatExp(AST.$getArgs(exp), line);
+				case LAMBDA:
+					return lambdaExp(exp, line);
+				case CONSTANT_DYNAMIC:
+					return constantDynamicExp(AST.$getType(exp), AST.$getHandle(exp), line);
 				default: 
 					throw new IllegalArgumentException("unknown expression: " + exp);                                     
 				}
@@ -2345,11 +4108,315 @@ public class ClassCompiler {
 
 		private IConstructor cond(IConstructor cond, IConstructor thenExp, IConstructor elseExp, int line) {
 			LeveledLabel joinLabel = newLabel();
-			IConstructor res = ifThenElse(cond, () -> expr(thenExp, line), () -> expr(elseExp, line), null, null, joinLabel, line);
+			IConstructor[] types = new IConstructor[2];
+			IConstructor res = ifThenElse(cond, () -> types[0] = expr(thenExp, line), () -> types[1] = expr(elseExp, line), null, null, joinLabel, line);
 			method.visitLabel(joinLabel);
+
+			if (nativeFrames) {
+				stackHint(types[0], types[1]);
+			}
+
 			return res;
 		}
 
+		/**
+		 * Pushes the captured variables and creates the lambda with an invokedynamic to LambdaMetafactory.metafactory,
+		 * which links the call site to a constant instance if nothing is captured. The body is generated later, by {@link #lambdaMethods}.
+		 */
+		private IConstructor lambdaExp(IConstructor exp, int line) {
+			if (version < Opcodes.V1_7) {
+				throw new IllegalArgumentException("lambda requires at least JVM version v1_7()");
+			}
+
+			IConstructor type = AST.$getClass(exp);
+			IConstructor sig = AST.$getDesc(exp);
+			IList samFormals = AST.$getFormals(sig);
+			IList formals = AST.$getFormals(exp);
+
+			if (samFormals.length() != formals.length()) {
+				throw new IllegalArgumentException("type signature of lambda for " + AST.$getName(sig) + " has different number of types (" + samFormals.length() + ") from formal parameters (" + formals.length() + "), see: " + samFormals + " versus " + formals);
+			}
+
+			List<Variable> captures = new ArrayList<>();
+			StringBuilder captured = new StringBuilder();
+
+			for (IValue elem : AST.$getCaptures(exp)) {
+				String name = ((IString) elem).getValue();
+				Variable var = locals.find(name);
+
+				if (var == null) {
+					throw new IllegalArgumentException("lambda captures undeclared variable " + name);
+				}
+
+				captures.add(var);
+				captured.append(Signature.type(var.type));
+				loadExp(name, line);
+			}
+
+			StringBuilder params = new StringBuilder();
+			StringBuilder instantiated = new StringBuilder("(");
+
+			for (int i = 0; i < formals.length(); i++) {
+				IConstructor formalType = AST.$getType((IConstructor) formals.get(i));
+				params.append(Signature.type(formalType));
+				instantiated.append(instantiatedType((IConstructor) samFormals.get(i), formalType));
+			}
+
+			IConstructor ret = AST.$getReturn(sig);
+			String retType = Signature.type(ret);
+			instantiated.append(")").append(retType);
+
+			String name = lambdaPrefix + lambdaCount++;
+			String desc = "(" + captured + params + ")" + retType;
+			pendingLambdas.add(new LambdaBody(name, desc, captures, formals, AST.$getBlock(exp), ret, line));
+
+			lineNumber(line);
+			method.visitInvokeDynamicInsn(AST.$getName(sig), "(" + captured + ")" + Signature.type(type), LAMBDA_BOOTSTRAP, 
+					org.objectweb.asm.Type.getMethodType(Signature.method(sig)),
+					new Handle(Opcodes.H_INVOKESTATIC, classNode.name, name, desc, isInterface),
+					org.objectweb.asm.Type.getMethodType(instantiated.toString()));
+
+			return type;
+		}
+
+		/**
+		 * @return the type of a lambda parameter as the interface sees it: a primitive formal is boxed
+		 *         if the interface expects an object, and LambdaMetafactory unboxes it again for the body.
+		 */
+		private String instantiatedType(IConstructor samType, IConstructor formalType) {
+			String wrapper = wrapper(formalType);
+
+			if (wrapper != null && wrapper(samType) == null) {
+				return "L" + wrapper + ";";
+			}
+
+			return Signature.type(formalType);
+		}
+
+		private IConstructor concatExp(IList args, int line) {
+			List<Object> parts = concatParts(args);
+			lineNumber(line);
+
+			if (parts.isEmpty()) {
+				stringConstant("");
+			}
+			else if (parts.size() == 1 && parts.get(0) instanceof String) {
+				stringConstant((String) parts.get(0));
+			}
+			else if (version >= Opcodes.V9) {
+				indyConcat(parts, line);
+			}
+			else {
+				builderConcat(parts, line);
+			}
+
+			return Types.stringType();
+		}
+
+		/**
+		 * @return the arguments of a concatenation, where adjacent constants are folded into a single String, 
+		 *         and the other arguments are left as expressions
+		 */
+		private List<Object> concatParts(IList args) {
+			List<Object> parts = new ArrayList<>(args.length());
+
+			for (IValue elem : args) {
+				IConstructor arg = (IConstructor) elem;
+				String constant = concatConstant(arg);
+
+				if (constant == null) {
+					parts.add(arg);
+				}
+				else if (!parts.isEmpty() && parts.get(parts.size() - 1) instanceof String) {
+					parts.set(parts.size() - 1, parts.get(parts.size() - 1) + constant);
+				}
+				else {
+					parts.add(constant);
+				}
+			}
+
+			return parts;
+		}
+
+		/**
+		 * @return the string value of a constant argument of concat, or null if it can not be folded at compile-time.
+		 *         Floats and doubles are not folded, since their string representation depends on the JDK at run-time.
+		 */
+		private String concatConstant(IConstructor arg) {
+			switch (Dispatch.EXP.of(arg)) {
+			case NULL:
+				return "null";
+			case TRUE:
+				return "true";
+			case FALSE:
+				return "false";
+			case CONST:
+				IValue constant = AST.$getConstant(arg);
+
+				switch (Dispatch.TYPE.of(AST.$getType(arg))) {
+				case BOOLEAN:
+					return String.valueOf(AST.$getBooleanConstant(constant));
+				case INTEGER:
+				case SHORT:
+				case BYTE:
+					return String.valueOf(AST.$getIntegerConstant(constant));
+				case CHARACTER:
+					return String.valueOf((char) AST.$getIntegerConstant(constant));
+				case LONG:
+					return String.valueOf(AST.$getLongConstant(constant));
+				case STRING:
+					return AST.$getStringConstant(constant);
+				default:
+					return null;
+				}
+			default:
+				return null;
+			}
+		}
+
+		/**
+		 * Concatenates with a single invokedynamic to StringConcatFactory.makeConcatWithConstants. Constants
+		 * are folded into the recipe, except for the tag characters \1 and \2 which are passed as bootstrap
+		 * constants. Since a call site can take at most 200 argument slots, longer concatenations are
+		 * chained by passing the result of the previous call site as the first argument of the next.
+		 */
+		private void indyConcat(List<Object> parts, int line) {
+			StringBuilder recipe = new StringBuilder();
+			StringBuilder desc = new StringBuilder("(");
+			List<Object> constants = new ArrayList<>();
+			int slots = 0;
+
+			for (Object part : parts) {
+				if (part instanceof String) {
+					for (char ch : ((String) part).toCharArray()) {
+						if (ch == '\1' || ch == '\2') {
+							recipe.append('\2');
+							constants.add(String.valueOf(ch));
+						}
+						else {
+							recipe.append(ch);
+						}
+					}
+					continue;
+				}
+
+				if (slots > MAX_CONCAT_SLOTS - 2) {
+					// no room left for another long or double, so the next call site continues with this result
+					concatCallSite(recipe, desc, constants);
+					recipe.setLength(0);
+					recipe.append('\1');
+					desc.setLength(0);
+					desc.append("(Ljava/lang/String;");
+					constants.clear();
+					slots = 1;
+				}
+
+				IConstructor type = expr((IConstructor) part, line);
+				TypeKind kind = Dispatch.TYPE.of(type);
+				recipe.append('\1');
+				desc.append(concatArgumentType(type));
+				slots += kind == TypeKind.LONG || kind == TypeKind.DOUBLE ? 2 : 1;
+			}
+
+			concatCallSite(recipe, desc, constants);
+		}
+
+		private void concatCallSite(StringBuilder recipe, StringBuilder desc, List<Object> constants) {
+			Object[] bArgs = new Object[constants.size() + 1];
+			bArgs[0] = recipe.toString();
+
+			for (int i = 0; i < constants.size(); i++) {
+				bArgs[i + 1] = constants.get(i);
+			}
+
+			method.visitInvokeDynamicInsn("makeConcatWithConstants", desc + ")Ljava/lang/String;", CONCAT_BOOTSTRAP, bArgs);
+		}
+
+		private String concatArgumentType(IConstructor type) {
+			switch (Dispatch.TYPE.of(type)) {
+			case VOID:
+				return "Ljava/lang/Object;";
+			default:
+				return Signature.type(type);
+			}
+		}
+
+		/**
+		 * Concatenates with a StringBuilder for class files older than JDK 9, presized with the length 
+		 * of the constants plus an estimate for every other argument.
+		 */
+		private void builderConcat(List<Object> parts, int line) {
+			int capacity = 0;
+
+			for (Object part : parts) {
+				capacity += part instanceof String ? ((String) part).length() : CONCAT_ARGUMENT_ESTIMATE;
+			}
+
+			method.visitTypeInsn(Opcodes.NEW, "java/lang/StringBuilder");
+			method.visitInsn(Opcodes.DUP);
+			intConstant(capacity);
+			method.visitMethodInsn(Opcodes.INVOKESPECIAL, "java/lang/StringBuilder", "<init>", "(I)V", false);
+
+			for (Object part : parts) {
+				String desc;
+
+				if (part instanceof String) {
+					stringConstant((String) part);
+					desc = "Ljava/lang/String;";
+				}
+				else {
+					desc = appendArgumentType(expr((IConstructor) part, line));
+				}
+
+				method.visitMethodInsn(Opcodes.INVOKEVIRTUAL, "java/lang/StringBuilder", "append", "(" + desc + ")Ljava/lang/StringBuilder;", false);
+			}
+
+			method.visitMethodInsn(Opcodes.INVOKEVIRTUAL, "java/lang/StringBuilder", "toString", "()Ljava/lang/String;", false);
+		}
+
+		private String appendArgumentType(IConstructor type) {
+			switch (Dispatch.TYPE.of(type)) {
+			case BOOLEAN:
+				return "Z";
+			case INTEGER:
+			case SHORT:
+			case BYTE:
+				return "I";
+			case CHARACTER:
+				return "C";
+			case LONG:
+				return "J";
+			case FLOAT:
+				return "F";
+			case DOUBLE:
+				return "D";
+			case STRING:
+				return "Ljava/lang/String;";
+			default:
+				// arrays, including char[], are appended via String.valueOf(Object) like in Java
+				return "Ljava/lang/Object;";
+			}
+		}
+
+		/**
+		 * Tells the FrameEmitter the static type of the value which two branches leave on the stack at the label 
+		 * which was visited last, if they agree on it. The types of the values on the stack may be more precise.
+		 */
+		private void stackHint(IConstructor thenType, IConstructor elseType) {
+			// null has the void type, and either branch may be missing if the condition is constant
+			if (thenType == null || Dispatch.TYPE.of(thenType) == TypeKind.VOID) {
+				thenType = elseType;
+			}
+			else if (elseType != null && Dispatch.TYPE.of(elseType) != TypeKind.VOID && !thenType.equals(elseType)) {
+				return;
+			}
+
+			TypeKind kind = thenType == null ? TypeKind.VOID : Dispatch.TYPE.of(thenType);
+			if (kind == TypeKind.OBJECT || kind == TypeKind.ARRAY || kind == TypeKind.STRING) {
+				stackHints.put((LabelNode) method.instructions.getLast(), Signature.type(thenType));
+			}
+		}
+
 		private IConstructor shlExp(IConstructor lhs, IConstructor rhs, int line) {
 			IConstructor type = prepareShiftArguments(lhs, rhs, line);
 			lineNumber(line);
@@ -2590,15 +4657,9 @@ public class ClassCompiler {
 			lineNumber(line);
 			Switch.type0(type, 
 					(z) -> { 
-						// TODO: is there really not a better way to negate a boolean on the JVM?
-						Label zeroLabel = newLabel();
-						Label contLabel = newLabel();
-						method.visitJumpInsn(Opcodes.IFEQ, zeroLabel);
-						falseExp();
-						jumpTo(contLabel);
-						method.visitLabel(zeroLabel);
-						trueExp();
-						method.visitLabel(contLabel);
+						// booleans are 0 or 1
+						method.visitInsn(Opcodes.ICONST_1);
+						method.visitInsn(Opcodes.IXOR);
 					},
 					(i) -> method.visitInsn(Opcodes.INEG), 
 					(s) -> method.visitInsn(Opcodes.INEG), 
@@ -2648,15 +4709,15 @@ public class ClassCompiler {
 		}
 
 		private IConstructor checkCastExp(IConstructor arg, IConstructor type, int line) {
-			String cons = type.getConstructorType().getName();
+			TypeKind cons = Dispatch.TYPE.of(type);
 
 			expr(arg, line);
 			// weird inconsistency in CHECKCAST instruction?
-			if (cons == "object") {
+			if (cons == TypeKind.OBJECT) {
 				lineNumber(line);
 				method.visitTypeInsn(Opcodes.CHECKCAST, AST.$getName(type).replace('.','/'));
 			}
-			else if (cons == "array") {
+			else if (cons == TypeKind.ARRAY) {
 				lineNumber(line);
 				method.visitTypeInsn(Opcodes.CHECKCAST, Signature.type(type));
 			}
@@ -2677,7 +4738,7 @@ public class ClassCompiler {
 		private IConstructor newArrayExp(IConstructor type, IConstructor size, int line) {
 			expr(size, line);
 
-			if (!type.getConstructorType().getName().equals("array")) {
+			if (Dispatch.TYPE.of(type) != TypeKind.ARRAY) {
 				throw new IllegalArgumentException("arg should be an array type");
 			}
 
@@ -2688,11 +4749,19 @@ public class ClassCompiler {
 		private IConstructor newArrayExp(IConstructor type, IList elems, int line) {
 			lineNumber(line);
 
-			intConstant(elems.length());
-			if (!type.getConstructorType().getName().equals("array")) {
+			if (Dispatch.TYPE.of(type) != TypeKind.ARRAY) {
 				throw new IllegalArgumentException("arg should be an array type");
 			}
 
+			List<IValue> constants = constants(AST.$getArg(type), elems);
+
+			if (constants != null) {
+				ConstantArrays.load(method, classNode.name, AST.$getArg(type), constants, constants.size());
+				constantArrayStatistics(constants.size());
+				return type;
+			}
+
+			intConstant(elems.length());
 			newArrayWithSizeOnStack(AST.$getArg(type), line);
 
 			int i = 0;
@@ -2769,8 +4838,8 @@ public class ClassCompiler {
 					(s) -> invertedConditionalFlow(0, Opcodes.IF_ICMPLE, thenPart, elsePart, joinLabel, line), 
 					(b) -> invertedConditionalFlow(0, Opcodes.IF_ICMPLE, thenPart, elsePart, joinLabel, line), 
 					(c) -> invertedConditionalFlow(0, Opcodes.IF_ICMPLE, thenPart, elsePart, joinLabel, line), 
-					(f) -> invertedConditionalFlow(Opcodes.FCMPG, Opcodes.IFLE, thenPart, elsePart, joinLabel, line),
-					(d) -> invertedConditionalFlow(Opcodes.DCMPG, Opcodes.IFLE, thenPart, elsePart, joinLabel, line),
+					(f) -> invertedConditionalFlow(Opcodes.FCMPL, Opcodes.IFLE, thenPart, elsePart, joinLabel, line),
+					(d) -> invertedConditionalFlow(Opcodes.DCMPL, Opcodes.IFLE, thenPart, elsePart, joinLabel, line),
 					(l) -> invertedConditionalFlow(Opcodes.LCMP, Opcodes.IFLE, thenPart, elsePart, joinLabel, line),
 					(v) -> { throw new IllegalArgumentException("> on void"); }, 
 					(c) -> { throw new IllegalArgumentException("> on class"); }, 
@@ -2787,8 +4856,8 @@ public class ClassCompiler {
 					(s) -> invertedConditionalFlow(0, Opcodes.IF_ICMPLT, thenPart, elsePart, joinLabel, line), 
 					(b) -> invertedConditionalFlow(0, Opcodes.IF_ICMPLT, thenPart, elsePart, joinLabel, line), 
 					(c) -> invertedConditionalFlow(0, Opcodes.IF_ICMPLT, thenPart, elsePart, joinLabel, line), 
-					(f) -> invertedConditionalFlow(Opcodes.FCMPG, Opcodes.IFLT, thenPart, elsePart, joinLabel, line),
-					(d) -> invertedConditionalFlow(Opcodes.DCMPG, Opcodes.IFLT, thenPart, elsePart, joinLabel, line),
+					(f) -> invertedConditionalFlow(Opcodes.FCMPL, Opcodes.IFLT, thenPart, elsePart, joinLabel, line),
+					(d) -> invertedConditionalFlow(Opcodes.DCMPL, Opcodes.IFLT, thenPart, elsePart, joinLabel, line),
 					(l) -> invertedConditionalFlow(Opcodes.LCMP, Opcodes.IFLT, thenPart, elsePart, joinLabel, line),
 					(v) -> { throw new IllegalArgumentException(">= on void"); }, 
 					(c) -> { throw new IllegalArgumentException(">= on class"); }, 
@@ -2798,10 +4867,10 @@ public class ClassCompiler {
 		}
 
 		private IConstructor eqExp(IConstructor lhs, IConstructor rhs, Builder<IConstructor> thenPart, Builder<IConstructor> elsePart, LeveledLabel joinLabel, int line) {
-			if (lhs.getConstructorType().getName().equals("null")) {
+			if (Dispatch.EXP.of(lhs) == ExpKind.NULL) {
 				return isNullTest(rhs, thenPart, elsePart, joinLabel, line);
 			}
-			else if (rhs.getConstructorType().getName().equals("null")) {
+			else if (Dispatch.EXP.of(rhs) == ExpKind.NULL) {
 				return isNullTest(lhs, thenPart, elsePart, joinLabel, line);
 			}
 
@@ -2885,10 +4954,10 @@ public class ClassCompiler {
 			if (res2 == null) {
 				return res1;
 			}
-			if (AST.$is("void", res1)) {
+			if (Dispatch.TYPE.of(res1) == TypeKind.VOID) {
 				return res2;
 			}
-			if (AST.$is("void", res2)) {
+			if (Dispatch.TYPE.of(res2) == TypeKind.VOID) {
 				return res1;
 			}
 			return res1;
@@ -2905,10 +4974,10 @@ public class ClassCompiler {
 		}
 
 		private IConstructor neExp(IConstructor lhs, IConstructor rhs, Builder<IConstructor> thenPart, Builder<IConstructor> elsePart, LeveledLabel joinLabel, int line) {
-			if (lhs.getConstructorType().getName().equals("null")) {
+			if (Dispatch.EXP.of(lhs) == ExpKind.NULL) {
 				return isNonNullTest(rhs, thenPart, elsePart, joinLabel, line);
 			}
-			else if (rhs.getConstructorType().getName().equals("null")) {
+			else if (Dispatch.EXP.of(rhs) == ExpKind.NULL) {
 				return isNonNullTest(lhs, thenPart, elsePart, joinLabel, line);
 			}
 
@@ -3261,7 +5330,9 @@ public class ClassCompiler {
 
 		private IConstructor sblockExp(IList block, IConstructor arg, int line) {
 			LeveledLabel blockEnd = newLabel();
+			expressionNesting++;
 			statements(block, null, null, blockEnd, line);
+			expressionNesting--;
 			method.visitLabel(blockEnd);
 			IConstructor type = expr(arg, line);
 			return type;
@@ -3348,82 +5419,130 @@ public class ClassCompiler {
 			return AST.$getReturn(sig);
 		}
 
+		/**
+		 * Loads a dynamic constant, which the JVM computes with the bootstrap method only when the instruction
+		 * is first executed. From then on the constant pool entry holds the value, which the JIT treats as a constant.
+		 */
+		private IConstructor constantDynamicExp(IConstructor type, IConstructor handler, int line) {
+			if (version < Opcodes.V11) {
+				throw new IllegalArgumentException("constantDynamic requires at least JVM version v11()");
+			}
+
+			lineNumber(line);
+			method.visitLdcInsn(new ConstantDynamic("_", Signature.type(type), bootstrapHandler(handler), bootstrapArgs(handler)));
+			return type;
+		}
+
+		/**
+		 * @return the static arguments of a bootstrap method as the constants which ASM writes to the constant pool:
+		 *         the JVM resolves classes, method types and method handles before it calls the bootstrap method.
+		 */
 		private Object[] bootstrapArgs(IConstructor handler) {
 			IList args = AST.$getArgs(handler);
 			Object[] results = new Object[args.length()];
-			Class<?> clzTmp;
+			int i = 0;
 
-			try {
-				int i = 0;
-				for (IValue elem : args) {
-					IConstructor cons = (IConstructor) elem;
-
-					switch(cons.getConstructorType().getName()) {
-					case "stringInfo":
-						results[i++] = ((IString) cons.get("s")).getValue();
-						break;
-					case "classInfo":
-						results[i++] = Signature.forName(((IString) cons.get("name")).getValue());
-						break;
-					case "integerInfo":
-						results[i++] = ((IInteger) cons.get("i")).intValue();
-						break;
-					case "longInfo":
-						results[i++] = ((IInteger) cons.get("l")).longValue();
-						break;
-					case "floatInfo":
-						results[i++] = ((IReal) cons.get("f")).floatValue();
-						break;
-					case "doubleInfo":
-						results[i++] = ((IReal) cons.get("d")).doubleValue();
-						break;
-					case "virtualHandle": 
-						clzTmp = Class.forName(AST.$getRefClassFromType(AST.$getClass(cons), classNode.name));
-						results[i++] = MethodHandles.lookup().findVirtual(clzTmp, AST.$getName(cons), Signature.methodType(AST.$getDesc(cons)));
-						break;
-					case "specialHandle": 
-						clzTmp = Class.forName(AST.$getRefClassFromType(AST.$getClass(cons), classNode.name));
-						Class<?> specialTmp = Class.forName(AST.$getRefClassFromType(AST.$getSpecial(cons), classNode.name));
-						results[i++] = MethodHandles.lookup().findSpecial(clzTmp, AST.$getName(cons), Signature.methodType(AST.$getDesc(cons)), specialTmp);
-						break;
-					case "getterHandle": 
-						clzTmp = Class.forName(AST.$getRefClassFromType(AST.$getClass(cons), classNode.name));
-						results[i++] = MethodHandles.lookup().findGetter(clzTmp, AST.$getName(cons), Signature.binaryClass(AST.$getType(cons)));
-						break;
-					case "setterHandle": 
-						clzTmp = Class.forName(AST.$getRefClassFromType(AST.$getClass(cons), classNode.name));
-						results[i++] = MethodHandles.lookup().findSetter(clzTmp, AST.$getName(cons), Signature.binaryClass(AST.$getType(cons)));
-						break;
-					case "staticGetterHandle": 
-						clzTmp = Class.forName(AST.$getRefClassFromType(AST.$getClass(cons), classNode.name));
-						results[i++] = MethodHandles.lookup().findStaticGetter(clzTmp, AST.$getName(cons), Signature.binaryClass(AST.$getType(cons)));
-						break;
-					case "staticSetterHandle": 
-						clzTmp = Class.forName(AST.$getRefClassFromType(AST.$getClass(cons), classNode.name));
-						results[i++] = MethodHandles.lookup().findStaticSetter(clzTmp, AST.$getName(cons), Signature.binaryClass(AST.$getType(cons)));
-						break;
-					case "constructorHandle": 	
-						clzTmp = Class.forName(AST.$getRefClassFromType(AST.$getClass(cons), classNode.name));
-						results[i++] = MethodHandles.lookup().findConstructor(clzTmp, Signature.constructorType(AST.$getDesc(cons)));
-						break;
-					case "methodTypeInfo":
-						results[i++] = Signature.methodType(AST.$getDesc(cons));
-						break;
-					}
+			for (IValue elem : args) {
+				IConstructor cons = (IConstructor) elem;
+
+				switch(cons.getConstructorType().getName()) {
+				case "stringInfo":
+					results[i++] = ((IString) cons.get("s")).getValue();
+					break;
+				case "classInfo":
+					results[i++] = org.objectweb.asm.Type.getObjectType(((IString) cons.get("name")).getValue().replace('.', '/'));
+					break;
+				case "integerInfo":
+					results[i++] = ((IInteger) cons.get("i")).intValue();
+					break;
+				case "longInfo":
+					results[i++] = ((IInteger) cons.get("l")).longValue();
+					break;
+				case "floatInfo":
+					results[i++] = ((IReal) cons.get("f")).floatValue();
+					break;
+				case "doubleInfo":
+					results[i++] = ((IReal) cons.get("d")).doubleValue();
+					break;
+				case "virtualHandle": 
+					results[i++] = methodHandle(Opcodes.H_INVOKEVIRTUAL, cons);
+					break;
+				case "specialHandle": 
+					results[i++] = methodHandle(Opcodes.H_INVOKESPECIAL, cons);
+					break;
+				case "staticHandle": 
+					results[i++] = methodHandle(Opcodes.H_INVOKESTATIC, cons);
+					break;
+				case "getterHandle": 
+					results[i++] = fieldHandle(Opcodes.H_GETFIELD, cons);
+					break;
+				case "setterHandle": 
+					results[i++] = fieldHandle(Opcodes.H_PUTFIELD, cons);
+					break;
+				case "staticGetterHandle": 
+					results[i++] = fieldHandle(Opcodes.H_GETSTATIC, cons);
+					break;
+				case "staticSetterHandle": 
+					results[i++] = fieldHandle(Opcodes.H_PUTSTATIC, cons);
+					break;
+				case "constructorHandle": 	
+					results[i++] = new Handle(Opcodes.H_NEWINVOKESPECIAL, AST.$getRefClassFromType(AST.$getClass(cons), classNode.name), "<init>", Signature.constructor(AST.$getDesc(cons)), false);
+					break;
+				case "methodTypeInfo":
+					results[i++] = org.objectweb.asm.Type.getMethodType(Signature.method(AST.$getDesc(cons)));
+					break;
+				default:
+					throw new IllegalArgumentException("unknown bootstrap argument: " + cons);
 				}
-			} catch (NoSuchMethodException | IllegalAccessException | ClassNotFoundException | NoSuchFieldException e) {
-				throw new IllegalArgumentException("Could not construct the right type for building argument for bootstrap method", e);
-			} 
+			}
 
 			return results;
 		}
 
+		/**
+		 * A handle to a method of an interface must say so, and a virtual one must use invokeinterface,
+		 * otherwise the bootstrap fails with an IncompatibleClassChangeError.
+		 */
+		private Handle methodHandle(int tag, IConstructor cons) {
+			String owner = AST.$getRefClassFromType(AST.$getClass(cons), classNode.name);
+			boolean itf = isInterface(owner);
+
+			if (itf && tag == Opcodes.H_INVOKEVIRTUAL) {
+				tag = Opcodes.H_INVOKEINTERFACE;
+			}
+
+			return new Handle(tag, owner, AST.$getName(cons), Signature.method(AST.$getDesc(cons)), itf);
+		}
+
+		/**
+		 * @param internalName a class of this batch or of the classpath
+		 * @return true if it is known to be an interface
+		 */
+		private boolean isInterface(String internalName) {
+			if (internalName.equals(classNode.name)) {
+				return isInterface;
+			}
+
+			if (hierarchy != null) {
+				HierarchyIndex.Header header = hierarchy.lookup(internalName);
+				return header != null && header.isInterface;
+			}
+
+			return false;
+		}
+
+		private Handle fieldHandle(int tag, IConstructor cons) {
+			return new Handle(tag, AST.$getRefClassFromType(AST.$getClass(cons), classNode.name), AST.$getName(cons), Signature.type(AST.$getType(cons)), false);
+		}
+
 		private Handle bootstrapHandler(IConstructor handler) {
+			String owner = AST.$getRefClassFromType(AST.$getClass(handler), classNode.name);
+
 			return new Handle(Opcodes.H_INVOKESTATIC,
-					AST.$getRefClassFromType(AST.$getClass(handler), classNode.name),
+					owner,
 					AST.$getName(handler),
 					Signature.method(AST.$getDesc(handler)),
-					false
+					isInterface(owner)
 					);
 		}
 
@@ -3463,8 +5582,9 @@ public class ClassCompiler {
 		}
 
 		private IConstructor loadExp(String name, int line) {
-			int pos = positionOf(name);
-			IConstructor type = variableTypes.get(pos);
+			Variable var = locals.lookup(name);
+			int pos = var.slot;
+			IConstructor type = var.type;
 
 			lineNumber(line);
 
@@ -3488,6 +5608,7 @@ public class ClassCompiler {
 
 		private void intConstant(int constant) {
 			switch (constant) {
+			case -1: method.visitInsn(Opcodes.ICONST_M1); return;
 			case 0: method.visitInsn(Opcodes.ICONST_0); return;
 			case 1: method.visitInsn(Opcodes.ICONST_1); return;
 			case 2: method.visitInsn(Opcodes.ICONST_2); return;
@@ -3496,10 +5617,10 @@ public class ClassCompiler {
 			case 5: method.visitInsn(Opcodes.ICONST_5); return;
 			}
 
-			if (constant < Byte.MAX_VALUE) {
+			if (constant >= Byte.MIN_VALUE && constant <= Byte.MAX_VALUE) {
 				method.visitIntInsn(Opcodes.BIPUSH, constant);
 			}
-			else if (constant < Short.MAX_VALUE) {
+			else if (constant >= Short.MIN_VALUE && constant <= Short.MAX_VALUE) {
 				method.visitIntInsn(Opcodes.SIPUSH, constant);
 			}
 			else {
@@ -3551,13 +5672,7 @@ public class ClassCompiler {
 		}
 
 		private int positionOf(String name) {
-			for (int pos = 0; pos < variableNames.size(); pos++) {
-				if (name.equals(variableNames.get(pos))) {
-					return pos;
-				}
-			}
-
-			throw new IllegalArgumentException("name not found: " + name);
+			return locals.lookup(name).slot;
 		}
 
 		private IConstructor constExp(IConstructor type, IValue constant, int line) {
@@ -3604,15 +5719,57 @@ public class ClassCompiler {
 			}
 		}
 
+		/**
+		 * @return the values of the elements of an array initializer if they are all constants of the element type,
+		 *         and there are enough of them to encode them in a string, otherwise null
+		 */
+		private List<IValue> constants(IConstructor type, IList elems) {
+			if (!encodesConstantArray(type, elems.length())) {
+				return null;
+			}
+
+			List<IValue> constants = new ArrayList<>(elems.length());
+
+			for (IValue elem : elems) {
+				IConstructor exp = (IConstructor) elem;
+
+				if (Dispatch.EXP.of(exp) != ExpKind.CONST || Dispatch.TYPE.of(AST.$getType(exp)) != Dispatch.TYPE.of(type)) {
+					return null;
+				}
+
+				constants.add(AST.$getConstant(exp));
+			}
+
+			return constants;
+		}
+
+		private boolean encodesConstantArray(IConstructor type, int length) {
+			return !isInterface 
+					&& ConstantArrays.isEncodable(type) 
+					&& length >= threshold("constantArrays", CONSTANT_ARRAYS_THRESHOLD);
+		}
+
+		private void constantArrayStatistics(int length) {
+			CompilerStatistics.count("constantArrays.arrays");
+			CompilerStatistics.add("constantArrays.elements", length);
+		}
+
 		private void constantArray(IConstructor type, IList constant, int line) {
+			if (encodesConstantArray(type, constant.length())) {
+				lineNumber(line);
+				ConstantArrays.load(method, classNode.name, type, constant, constant.length());
+				constantArrayStatistics(constant.length());
+				return;
+			}
+
 			intConstant(constant.length());
 			newArrayWithSizeOnStack(type, line);
 			int index = 0;
 
 			for (IValue elem : constant) {
 				dup();
-				intConstant(index);
-				constExp((IConstructor) elem, elem, line);
+				intConstant(index++);
+				constExp(type, elem, line);
 				arrayStoreExpWithArrayIndexValueOnStack(type);
 			}
 		}
@@ -3653,7 +5810,7 @@ public class ClassCompiler {
 			if (kws.hasParameter("init")) {
 				IConstructor defaultExpr = (IConstructor) kws.getParameter("init");
 
-				if (!AST.$is("const", defaultExpr)) {
+				if (Dispatch.EXP.of(defaultExpr) != ExpKind.CONST) {
 					if ((access & Opcodes.ACC_STATIC) != 0) {
 						// later code will be generated into the static init block
 						staticFieldInitializers.put(name, cons);
@@ -3863,6 +6020,14 @@ public class ClassCompiler {
 			return ((IInteger) exp.get("key")).intValue();
 		}
 
+		public static String $getStringKey(IConstructor exp) {
+			return ((IString) exp.get("stringKey")).getValue();
+		}
+
+		public static long $getLongKey(IConstructor exp) {
+			return ((IInteger) exp.get("longKey")).longValue();
+		}
+
 		public static int $getMin(IConstructor exp) {
 			return ((IInteger) exp.get("min")).intValue();
 		}
@@ -3951,10 +6116,6 @@ public class ClassCompiler {
 			return ((IString) stat.get("label")).getValue();
 		}
 
-		public static boolean $is(String string, IConstructor parameter) {
-			return parameter.getConstructorType().getName().equals(string);
-		}
-
 		public static IConstructor $getDefault(IConstructor var) {
 			IWithKeywordParameters<? extends IConstructor> kws = var.asWithKeywordParameters();
 
@@ -4137,6 +6298,10 @@ public class ClassCompiler {
 			return (IList) sig.get("formals");
 		}
 
+		public static IList $getCaptures(IConstructor cons) {
+			return (IList) cons.get("captures");
+		}
+
 		public static IList $getBlock(IConstructor cons) {
 			return (IList) cons.get("block");
 		}
@@ -4216,41 +6381,41 @@ public class ClassCompiler {
 		 * @param type
 		 */
 		public static void type0(IConstructor type, Consumer<IConstructor> bools, Consumer<IConstructor> ints, Consumer<IConstructor> shorts, Consumer<IConstructor> bytes, Consumer<IConstructor> chars, Consumer<IConstructor> floats, Consumer<IConstructor> doubles, Consumer<IConstructor> longs, Consumer<IConstructor> voids, Consumer<IConstructor> classes, Consumer<IConstructor> arrays, Consumer<IConstructor> strings) {
-			switch (AST.$getConstructorName(type)) {
-			case "boolean": 
+			switch (Dispatch.TYPE.of(type)) {
+			case BOOLEAN: 
 				bools.accept(type);
 				break;
-			case "integer": 
+			case INTEGER: 
 				ints.accept(type);
 				break;
-			case "short":
+			case SHORT:
 				shorts.accept(type);
 				break;
-			case "byte":
+			case BYTE:
 				bytes.accept(type);
 				break;
-			case "character":
+			case CHARACTER:
 				chars.accept(type);
 				break;
-			case "float":
+			case FLOAT:
 				floats.accept(type);
 				break;
-			case "double":
+			case DOUBLE:
 				doubles.accept(type);
 				break;
-			case "long":
+			case LONG:
 				longs.accept(type);
 				break;
-			case "void" :
+			case VOID:
 				voids.accept(type);
 				break;
-			case "object" :
+			case OBJECT:
 				classes.accept(type);
 				break;
-			case "array" :
+			case ARRAY:
 				arrays.accept(type);
 				break;
-			case "string":
+			case STRING:
 				strings.accept(type);
 				break;
 			default:
@@ -4263,30 +6428,30 @@ public class ClassCompiler {
 		 * @param type
 		 */
 		public static <T> T type(IConstructor type, Function<IConstructor, T> bools, Function<IConstructor, T> ints, Function<IConstructor, T> shorts, Function<IConstructor, T> bytes, Function<IConstructor, T> chars, Function<IConstructor, T> floats, Function<IConstructor, T> doubles, Function<IConstructor, T> longs, Function<IConstructor, T> voids, Function<IConstructor, T> classes, Function<IConstructor, T> arrays, Function<IConstructor, T> strings) {
-			switch (AST.$getConstructorName(type)) {
-			case "boolean" :
+			switch (Dispatch.TYPE.of(type)) {
+			case BOOLEAN:
 				return bools.apply(type);
-			case "integer": 
+			case INTEGER: 
 				return ints.apply(type);
-			case "short":
+			case SHORT:
 				return shorts.apply(type);
-			case "byte":
+			case BYTE:
 				return bytes.apply(type);
-			case "character":
+			case CHARACTER:
 				return chars.apply(type);
-			case "float":
+			case FLOAT:
 				return floats.apply(type);
-			case "double":
+			case DOUBLE:
 				return doubles.apply(type);
-			case "long":
+			case LONG:
 				return longs.apply(type);
-			case "void" :
+			case VOID:
 				return voids.apply(type);
-			case "object" :
+			case OBJECT:
 				return classes.apply(type);
-			case "array" :
+			case ARRAY:
 				return arrays.apply(type);
-			case "string":
+			case STRING:
 				return strings.apply(type);
 			default:
 				throw new IllegalArgumentException("type not supported: " + type);
@@ -4352,6 +6517,10 @@ public class ClassCompiler {
 		private static final IConstructor INTEGER_CONS = vf.constructor(INTEGER);
 		private static final Type VOID = tf.constructor(store, TYPE, "void");
 		private static final IConstructor VOID_CONS = vf.constructor(VOID);
+		private static final Type LONG = tf.constructor(store, TYPE, "long");
+		private static final IConstructor LONG_CONS = vf.constructor(LONG);
+		private static final Type STRING = tf.constructor(store, TYPE, "string");
+		private static final IConstructor STRING_CONS = vf.constructor(STRING);
 		private static final Type REF = tf.constructor(store, TYPE, "object", tf.stringType(), "name");
 
 		static IConstructor booleanType() {
@@ -4366,6 +6535,14 @@ public class ClassCompiler {
 			return VOID_CONS;
 		}
 
+		static IConstructor longType() {
+			return LONG_CONS;
+		}
+
+		static IConstructor stringType() {
+			return STRING_CONS;
+		}
+
 		static String throwableName() {
 			return "java/lang/Throwable";
 		}
@@ -0,0 +1,57 @@
+/*
+ * Copyright (c) 2022, NWO-I CWI 
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package lang.flybytes.internal;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+
+/**
+ * The default training run of a shared archive: loads every class of a class list, without initializing 
+ * them, such that the JVM archives all of them when it exits. This class is copied into the JAR of the archive,
+ * so it must not depend on anything else of flybytes.
+ */
+public class ClassListLoader {
+	/**
+	 * @param args the file name of the class list, with one internal class name per line
+	 */
+	public static void main(String[] args) throws IOException, ClassNotFoundException {
+		ClassLoader loader = ClassListLoader.class.getClassLoader();
+
+		try (BufferedReader list = Files.newBufferedReader(Paths.get(args[0]), StandardCharsets.UTF_8)) {
+			String line;
+
+			while ((line = list.readLine()) != null) {
+				if (!line.isEmpty()) {
+					Class.forName(line.replace('/', '.'), false, loader);
+				}
+			}
+		}
+	}
+}
@@ -0,0 +1,140 @@
+/*
+ * Copyright (c) 2022, NWO-I CWI 
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package lang.flybytes.internal;
+
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+
+import org.rascalmpl.uri.URIUtil;
+import org.rascalmpl.uri.classloaders.SourceLocationClassLoader;
+
+import io.usethesource.vallang.IList;
+import io.usethesource.vallang.IListWriter;
+import io.usethesource.vallang.IValue;
+import io.usethesource.vallang.IValueFactory;
+
+/**
+ * A bounded pool of the class loaders of classpaths. A new SourceLocationClassLoader for every loaded class 
+ * would find, read and define the same library classes again and again, and a class from the classpath would 
+ * be a different Class object for every generated class that refers to it.
+ * 
+ * The classpaths are canonicalized first: duplicate entries are removed, and `|system:///|` is added at the end 
+ * when it is not on the classpath yet. Like the classpaths of the HierarchyIndex, a loader is dropped when a jar
+ * or class file on its classpath changes (see ClasspathStamps), such that recompiled library classes are seen. 
+ * The stamps are checked at most once per second, so a change is seen up to that much later. The least recently 
+ * used loaders are dropped when there are more than LIMIT of them, and `invalidate` drops all of them.
+ */
+public class ClasspathLoaders {
+	private static final int LIMIT = 16;
+	private static final Map<IList, Pooled> loaders = new LinkedHashMap<IList, Pooled>(16, 0.75f, true /* access order */) {
+		private static final long serialVersionUID = 1L;
+
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<IList, Pooled> eldest) {
+			return size() > LIMIT;
+		}
+	};
+
+	private static class Pooled {
+		private final ClassLoader loader;
+		private final ClassLoader parent;
+		private final ClasspathStamps stamps;
+
+		Pooled(IList classpath, ClassLoader parent) {
+			this.loader = new SourceLocationClassLoader(classpath, parent);
+			this.parent = parent;
+			this.stamps = new ClasspathStamps(classpath);
+		}
+
+		boolean isCurrent() {
+			return stamps.isCurrent();
+		}
+	}
+
+	/**
+	 * @return the shared class loader of a classpath, which delegates to `parent` first
+	 */
+	public static ClassLoader get(IValueFactory vf, IList classpath, ClassLoader parent) {
+		IList key = canonical(vf, classpath);
+		Pooled entry;
+
+		synchronized (loaders) {
+			entry = loaders.get(key);
+		}
+
+		// checking the stamps may walk whole folders, so that happens outside of the lock
+		if (entry != null && entry.parent == parent && entry.isCurrent()) {
+			CompilerStatistics.count("classLoaders.hits");
+			return entry.loader;
+		}
+
+		Pooled fresh = new Pooled(key, parent);
+
+		synchronized (loaders) {
+			Pooled current = loaders.get(key);
+
+			if (current != null && current != entry && current.parent == parent) {
+				// another thread has replaced it in the meantime
+				CompilerStatistics.count("classLoaders.hits");
+				return current.loader;
+			}
+
+			CompilerStatistics.count(entry == null ? "classLoaders.misses" : "classLoaders.invalidations");
+			loaders.put(key, fresh);
+			return fresh.loader;
+		}
+	}
+
+	/**
+	 * Drops all pooled loaders. Classes which were loaded before are not unloaded by this, but the next
+	 * loads with the same classpath do not see them anymore.
+	 */
+	public static void invalidate() {
+		synchronized (loaders) {
+			loaders.clear();
+		}
+	}
+
+	/**
+	 * @return the classpath without duplicate entries, and with `|system:///|` as its last entry if it was not on it
+	 */
+	public static IList canonical(IValueFactory vf, IList classpath) {
+		Set<IValue> entries = new LinkedHashSet<>();
+
+		for (IValue entry : classpath) {
+			entries.add(entry);
+		}
+
+		entries.add(URIUtil.rootLocation("system"));
+
+		IListWriter w = vf.listWriter();
+		w.appendAll(entries);
+		return w.done();
+	}
+}
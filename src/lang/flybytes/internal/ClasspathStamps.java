@@ -0,0 +1,107 @@
+/*
+ * Copyright (c) 2022, NWO-I CWI 
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package lang.flybytes.internal;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.rascalmpl.uri.URIResolverRegistry;
+
+import io.usethesource.vallang.IList;
+import io.usethesource.vallang.ISourceLocation;
+
+/**
+ * The last modified times of the entries of a classpath, to find out whether the classes on it have changed.
+ * A jar file is stamped with its own time. A folder is stamped with the newest time in its whole tree, because 
+ * rewriting a class file in a package does not change the time of the classpath folder itself; the times of the
+ * folders in the tree are included, such that removed class files are noticed as well. The `system` classpath
+ * of the JVM itself does not change, so it is not stamped.
+ * 
+ * Stamping a folder walks its whole tree, and the class loaders and the HierarchyIndex ask for every load and
+ * compilation whether their classpath is still current. So the entries are stamped again at most once per 
+ * CHECK_INTERVAL, and a change is seen up to that much later.
+ */
+public final class ClasspathStamps {
+	private static final long CHECK_INTERVAL = TimeUnit.SECONDS.toNanos(1);
+	private final ISourceLocation[] entries;
+	private final long[] stamps;
+	private volatile long checked = System.nanoTime();
+
+	public ClasspathStamps(IList classpath) {
+		this.entries = new ISourceLocation[classpath.length()];
+		this.stamps = new long[classpath.length()];
+
+		for (int i = 0; i < entries.length; i++) {
+			entries[i] = (ISourceLocation) classpath.get(i);
+			stamps[i] = stamp(entries[i]);
+		}
+	}
+
+	/**
+	 * @return true if no entry of the classpath has changed since the stamps were taken
+	 */
+	public boolean isCurrent() {
+		long now = System.nanoTime();
+
+		if (now - checked < CHECK_INTERVAL) {
+			return true;
+		}
+
+		for (int i = 0; i < entries.length; i++) {
+			if (stamps[i] != stamp(entries[i])) {
+				return false;
+			}
+		}
+
+		checked = now;
+		return true;
+	}
+
+	private static long stamp(ISourceLocation entry) {
+		if ("system".equals(entry.getScheme())) {
+			return 0;
+		}
+
+		try {
+			URIResolverRegistry reg = URIResolverRegistry.getInstance();
+			return reg.isDirectory(entry) ? newest(reg, entry) : reg.lastModified(entry);
+		}
+		catch (IOException e) {
+			return -1;
+		}
+	}
+
+	private static long newest(URIResolverRegistry reg, ISourceLocation folder) throws IOException {
+		long result = reg.lastModified(folder);
+
+		for (ISourceLocation child : reg.list(folder)) {
+			result = Math.max(result, reg.isDirectory(child) ? newest(reg, child) : reg.lastModified(child));
+		}
+
+		return result;
+	}
+}
@@ -0,0 +1,75 @@
+/*
+ * Copyright (c) 2022, NWO-I CWI 
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package lang.flybytes.internal;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+import io.usethesource.vallang.IMap;
+import io.usethesource.vallang.IMapWriter;
+import io.usethesource.vallang.IValueFactory;
+
+/**
+ * Global counters for the compiler, such as bytecode cache hits and misses. The
+ * counters are shared by all compiler instances and safe to update from parallel 
+ * compilation jobs. Rascal code can read them with `compilerStatistics()`.
+ */
+public class CompilerStatistics {
+	private static final Map<String, LongAdder> counters = new ConcurrentHashMap<>();
+
+	private CompilerStatistics() { }
+
+	public static void count(String key) {
+		add(key, 1);
+	}
+
+	public static void add(String key, long amount) {
+		counters.computeIfAbsent(key, k -> new LongAdder()).add(amount);
+	}
+
+	public static long get(String key) {
+		LongAdder counter = counters.get(key);
+		return counter == null ? 0 : counter.sum();
+	}
+
+	public static void reset() {
+		counters.clear();
+	}
+
+	public static IMap toMap(IValueFactory vf) {
+		IMapWriter w = vf.mapWriter();
+
+		// sorted for readability of the printed map
+		for (Map.Entry<String, LongAdder> e : new TreeMap<>(counters).entrySet()) {
+			w.put(vf.string(e.getKey()), vf.integer(e.getValue().sum()));
+		}
+
+		return w.done();
+	}
+}
@@ -0,0 +1,412 @@
+/*
+ * Copyright (c) 2022, NWO-I CWI 
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package lang.flybytes.internal;
+
+import java.util.LinkedHashSet;
+import java.util.Set;
+
+import org.objectweb.asm.Label;
+import org.objectweb.asm.MethodVisitor;
+import org.objectweb.asm.Opcodes;
+import org.objectweb.asm.tree.AbstractInsnNode;
+import org.objectweb.asm.tree.ClassNode;
+import org.objectweb.asm.tree.MethodInsnNode;
+import org.objectweb.asm.tree.MethodNode;
+
+import io.usethesource.vallang.IConstructor;
+import io.usethesource.vallang.IValue;
+import lang.flybytes.internal.ClassCompiler.AST;
+import lang.flybytes.internal.Dispatch.TypeKind;
+
+/**
+ * Packs large constant arrays of primitives and strings into a String constant, which a generated 
+ * private static method decodes with a loop at run-time. An array of n elements otherwise costs n times a 
+ * `DUP; index; value; xASTORE` sequence, such that a table of 10k entries alone is larger than the 64KB 
+ * which the JVM allows for a method, and it runs in the interpreter at class initialization time.
+ * 
+ * The encoding starts with the length of the array, followed by the elements. Every number is a zigzag 
+ * encoded varint of 6-bit groups, lowest group first: the last group of a number is the character `group + 1`, 
+ * the groups before it are `group + 65`. Floats and doubles are encoded by their bits, and strings by their
+ * length followed by their characters.
+ */
+public class ConstantArrays {
+	public static final String DECODER_PREFIX = "$decode$";
+	private static final String VARINT = DECODER_PREFIX + "varint";
+	private static final String VARINT_DESC = "(Ljava/lang/String;[I)J";
+
+	/**
+	 * The constant pool stores strings as modified UTF-8 of at most 65535 bytes, and a char takes at most 3 of those.
+	 */
+	private static final int CHUNK = 20000;
+
+	private ConstantArrays() { }
+
+	/**
+	 * @return true if arrays with elements of this type can be encoded
+	 */
+	public static boolean isEncodable(IConstructor elemType) {
+		switch (Dispatch.TYPE.of(elemType)) {
+			case BOOLEAN: case INTEGER: case SHORT: case BYTE: case CHARACTER: 
+			case FLOAT: case DOUBLE: case LONG: case STRING:
+				return true;
+			default:
+				return false;
+		}
+	}
+
+	/**
+	 * Pushes the array of constants, by calling the decoder for its element type on the encoded string. 
+	 * Use {@link #missingDecoders(ClassNode)} to add the decoders to the class later.
+	 */
+	public static void load(MethodVisitor method, String owner, IConstructor elemType, Iterable<IValue> constants, int length) {
+		String encoded = encode(elemType, constants, length);
+
+		method.visitLdcInsn(encoded.substring(0, Math.min(CHUNK, encoded.length())));
+
+		for (int i = CHUNK; i < encoded.length(); i += CHUNK) {
+			method.visitLdcInsn(encoded.substring(i, Math.min(i + CHUNK, encoded.length())));
+			method.visitMethodInsn(Opcodes.INVOKEVIRTUAL, "java/lang/String", "concat", "(Ljava/lang/String;)Ljava/lang/String;", false);
+		}
+
+		TypeKind kind = Dispatch.TYPE.of(elemType);
+		method.visitMethodInsn(Opcodes.INVOKESTATIC, owner, DECODER_PREFIX + suffix(kind), "(Ljava/lang/String;)[" + elementDesc(kind), false);
+	}
+
+	static String encode(IConstructor elemType, Iterable<IValue> constants, int length) {
+		TypeKind kind = Dispatch.TYPE.of(elemType);
+		StringBuilder b = new StringBuilder(length * 2 + 4);
+		varint(b, length);
+
+		for (IValue c : constants) {
+			switch (kind) {
+				case BOOLEAN:
+					varint(b, AST.$getBooleanConstant(c) ? 1 : 0);
+					break;
+				case INTEGER: case SHORT: case BYTE: case CHARACTER:
+					varint(b, AST.$getIntegerConstant(c));
+					break;
+				case LONG:
+					varint(b, AST.$getLongConstant(c));
+					break;
+				case FLOAT:
+					varint(b, Float.floatToRawIntBits(AST.$getFloatConstant(c)));
+					break;
+				case DOUBLE:
+					varint(b, Double.doubleToRawLongBits(AST.$getDoubleConstant(c)));
+					break;
+				case STRING:
+					String s = AST.$getStringConstant(c);
+					varint(b, s.length());
+					b.append(s);
+					break;
+				default:
+					throw new IllegalArgumentException("can not encode array of " + elemType);
+			}
+		}
+
+		return b.toString();
+	}
+
+	private static void varint(StringBuilder b, long value) {
+		long v = (value << 1) ^ (value >> 63);
+
+		while ((v >>> 6) != 0) {
+			b.append((char) (65 + (v & 63)));
+			v >>>= 6;
+		}
+
+		b.append((char) (1 + v));
+	}
+
+	/**
+	 * @return the names of the decoders which the methods of this class call, but which it does not have yet
+	 */
+	public static Set<String> missingDecoders(ClassNode cn) {
+		Set<String> called = new LinkedHashSet<>();
+
+		for (MethodNode m : cn.methods) {
+			for (AbstractInsnNode insn = m.instructions.getFirst(); insn != null; insn = insn.getNext()) {
+				if (insn instanceof MethodInsnNode) {
+					MethodInsnNode call = (MethodInsnNode) insn;
+
+					if (call.owner.equals(cn.name) && call.name.startsWith(DECODER_PREFIX)) {
+						called.add(call.name);
+					}
+				}
+			}
+		}
+
+		if (!called.isEmpty()) {
+			called.add(VARINT);
+		}
+
+		for (MethodNode m : cn.methods) {
+			called.remove(m.name);
+		}
+
+		return called;
+	}
+
+	/**
+	 * @return a private static method which implements the decoder with the given name
+	 */
+	public static MethodNode decoder(String owner, String name) {
+		if (name.equals(VARINT)) {
+			return varintDecoder(owner);
+		}
+
+		for (TypeKind kind : TypeKind.values()) {
+			if (name.equals(DECODER_PREFIX + suffix(kind))) {
+				return arrayDecoder(owner, name, kind);
+			}
+		}
+
+		throw new IllegalArgumentException("unknown decoder " + name);
+	}
+
+	private static String suffix(TypeKind kind) {
+		switch (kind) {
+			case BOOLEAN: return "Z";
+			case INTEGER: return "I";
+			case SHORT: return "S";
+			case BYTE: return "B";
+			case CHARACTER: return "C";
+			case FLOAT: return "F";
+			case DOUBLE: return "D";
+			case LONG: return "J";
+			case STRING: return "String";
+			default: return kind.name();
+		}
+	}
+
+	private static String elementDesc(TypeKind kind) {
+		return kind == TypeKind.STRING ? "Ljava/lang/String;" : suffix(kind);
+	}
+
+	/**
+	 * Generates `static T[] $decode$T(String s)`, with locals s, p (the position in s), arr, n, i and len.
+	 */
+	private static MethodNode arrayDecoder(String owner, String name, TypeKind kind) {
+		MethodNode m = new MethodNode(Opcodes.ACC_PRIVATE | Opcodes.ACC_STATIC | Opcodes.ACC_SYNTHETIC, name, "(Ljava/lang/String;)[" + elementDesc(kind), null, null);
+		Label loop = new Label();
+		Label done = new Label();
+
+		m.visitCode();
+
+		// int[] p = new int[1];
+		m.visitInsn(Opcodes.ICONST_1);
+		m.visitIntInsn(Opcodes.NEWARRAY, Opcodes.T_INT);
+		m.visitVarInsn(Opcodes.ASTORE, 1);
+
+		// int n = (int) varint(s, p);
+		nextVarint(m, owner);
+		m.visitInsn(Opcodes.L2I);
+		m.visitVarInsn(Opcodes.ISTORE, 3);
+
+		// T[] arr = new T[n];
+		m.visitVarInsn(Opcodes.ILOAD, 3);
+		switch (kind) {
+			case BOOLEAN: m.visitIntInsn(Opcodes.NEWARRAY, Opcodes.T_BOOLEAN); break;
+			case INTEGER: m.visitIntInsn(Opcodes.NEWARRAY, Opcodes.T_INT); break;
+			case SHORT: m.visitIntInsn(Opcodes.NEWARRAY, Opcodes.T_SHORT); break;
+			case BYTE: m.visitIntInsn(Opcodes.NEWARRAY, Opcodes.T_BYTE); break;
+			case CHARACTER: m.visitIntInsn(Opcodes.NEWARRAY, Opcodes.T_CHAR); break;
+			case FLOAT: m.visitIntInsn(Opcodes.NEWARRAY, Opcodes.T_FLOAT); break;
+			case DOUBLE: m.visitIntInsn(Opcodes.NEWARRAY, Opcodes.T_DOUBLE); break;
+			case LONG: m.visitIntInsn(Opcodes.NEWARRAY, Opcodes.T_LONG); break;
+			case STRING: m.visitTypeInsn(Opcodes.ANEWARRAY, "java/lang/String"); break;
+			default: throw new IllegalArgumentException("can not decode array of " + kind);
+		}
+		m.visitVarInsn(Opcodes.ASTORE, 2);
+
+		// for (int i = 0; i < n; i++)
+		m.visitInsn(Opcodes.ICONST_0);
+		m.visitVarInsn(Opcodes.ISTORE, 4);
+		m.visitLabel(loop);
+		m.visitVarInsn(Opcodes.ILOAD, 4);
+		m.visitVarInsn(Opcodes.ILOAD, 3);
+		m.visitJumpInsn(Opcodes.IF_ICMPGE, done);
+
+		// arr[i] = next element;
+		m.visitVarInsn(Opcodes.ALOAD, 2);
+		m.visitVarInsn(Opcodes.ILOAD, 4);
+
+		switch (kind) {
+			case BOOLEAN: case BYTE:
+				nextVarint(m, owner);
+				m.visitInsn(Opcodes.L2I);
+				m.visitInsn(Opcodes.BASTORE);
+				break;
+			case SHORT:
+				nextVarint(m, owner);
+				m.visitInsn(Opcodes.L2I);
+				m.visitInsn(Opcodes.SASTORE);
+				break;
+			case CHARACTER:
+				nextVarint(m, owner);
+				m.visitInsn(Opcodes.L2I);
+				m.visitInsn(Opcodes.CASTORE);
+				break;
+			case INTEGER:
+				nextVarint(m, owner);
+				m.visitInsn(Opcodes.L2I);
+				m.visitInsn(Opcodes.IASTORE);
+				break;
+			case LONG:
+				nextVarint(m, owner);
+				m.visitInsn(Opcodes.LASTORE);
+				break;
+			case FLOAT:
+				nextVarint(m, owner);
+				m.visitInsn(Opcodes.L2I);
+				m.visitMethodInsn(Opcodes.INVOKESTATIC, "java/lang/Float", "intBitsToFloat", "(I)F", false);
+				m.visitInsn(Opcodes.FASTORE);
+				break;
+			case DOUBLE:
+				nextVarint(m, owner);
+				m.visitMethodInsn(Opcodes.INVOKESTATIC, "java/lang/Double", "longBitsToDouble", "(J)D", false);
+				m.visitInsn(Opcodes.DASTORE);
+				break;
+			default: // STRING
+				// int len = (int) varint(s, p);
+				nextVarint(m, owner);
+				m.visitInsn(Opcodes.L2I);
+				m.visitVarInsn(Opcodes.ISTORE, 5);
+
+				// s.substring(p[0], p[0] + len)
+				m.visitVarInsn(Opcodes.ALOAD, 0);
+				m.visitVarInsn(Opcodes.ALOAD, 1);
+				m.visitInsn(Opcodes.ICONST_0);
+				m.visitInsn(Opcodes.IALOAD);
+				m.visitInsn(Opcodes.DUP);
+				m.visitVarInsn(Opcodes.ILOAD, 5);
+				m.visitInsn(Opcodes.IADD);
+				m.visitMethodInsn(Opcodes.INVOKEVIRTUAL, "java/lang/String", "substring", "(II)Ljava/lang/String;", false);
+
+				// p[0] += len;
+				m.visitVarInsn(Opcodes.ALOAD, 1);
+				m.visitInsn(Opcodes.ICONST_0);
+				m.visitInsn(Opcodes.DUP2);
+				m.visitInsn(Opcodes.IALOAD);
+				m.visitVarInsn(Opcodes.ILOAD, 5);
+				m.visitInsn(Opcodes.IADD);
+				m.visitInsn(Opcodes.IASTORE);
+
+				m.visitInsn(Opcodes.AASTORE);
+				break;
+		}
+
+		m.visitIincInsn(4, 1);
+		m.visitJumpInsn(Opcodes.GOTO, loop);
+
+		// return arr;
+		m.visitLabel(done);
+		m.visitVarInsn(Opcodes.ALOAD, 2);
+		m.visitInsn(Opcodes.ARETURN);
+		m.visitMaxs(0, 0);
+		m.visitEnd();
+		return m;
+	}
+
+	private static void nextVarint(MethodVisitor m, String owner) {
+		m.visitVarInsn(Opcodes.ALOAD, 0);
+		m.visitVarInsn(Opcodes.ALOAD, 1);
+		m.visitMethodInsn(Opcodes.INVOKESTATIC, owner, VARINT, VARINT_DESC, false);
+	}
+
+	/**
+	 * Generates `static long $decode$varint(String s, int[] p)`, with locals s, p, v, shift and c, which 
+	 * reads the number at position p[0] and moves p[0] beyond it.
+	 */
+	private static MethodNode varintDecoder(String owner) {
+		MethodNode m = new MethodNode(Opcodes.ACC_PRIVATE | Opcodes.ACC_STATIC | Opcodes.ACC_SYNTHETIC, VARINT, VARINT_DESC, null, null);
+		Label loop = new Label();
+		Label last = new Label();
+
+		m.visitCode();
+
+		// long v = 0; int shift = 0;
+		m.visitInsn(Opcodes.LCONST_0);
+		m.visitVarInsn(Opcodes.LSTORE, 2);
+		m.visitInsn(Opcodes.ICONST_0);
+		m.visitVarInsn(Opcodes.ISTORE, 4);
+
+		// int c = s.charAt(p[0]++);
+		m.visitLabel(loop);
+		m.visitVarInsn(Opcodes.ALOAD, 0);
+		m.visitVarInsn(Opcodes.ALOAD, 1);
+		m.visitInsn(Opcodes.ICONST_0);
+		m.visitInsn(Opcodes.DUP2);
+		m.visitInsn(Opcodes.IALOAD);
+		m.visitInsn(Opcodes.DUP_X2);
+		m.visitInsn(Opcodes.ICONST_1);
+		m.visitInsn(Opcodes.IADD);
+		m.visitInsn(Opcodes.IASTORE);
+		m.visitMethodInsn(Opcodes.INVOKEVIRTUAL, "java/lang/String", "charAt", "(I)C", false);
+		m.visitVarInsn(Opcodes.ISTORE, 5);
+
+		// if (c < 65) goto last;
+		m.visitVarInsn(Opcodes.ILOAD, 5);
+		m.visitIntInsn(Opcodes.BIPUSH, 65);
+		m.visitJumpInsn(Opcodes.IF_ICMPLT, last);
+
+		// v |= (long) (c - 65) << shift; shift += 6;
+		groupInto(m, 65);
+		m.visitIincInsn(4, 6);
+		m.visitJumpInsn(Opcodes.GOTO, loop);
+
+		// v |= (long) (c - 1) << shift;
+		m.visitLabel(last);
+		groupInto(m, 1);
+
+		// return (v >>> 1) ^ -(v & 1);
+		m.visitVarInsn(Opcodes.LLOAD, 2);
+		m.visitInsn(Opcodes.ICONST_1);
+		m.visitInsn(Opcodes.LUSHR);
+		m.visitVarInsn(Opcodes.LLOAD, 2);
+		m.visitInsn(Opcodes.LCONST_1);
+		m.visitInsn(Opcodes.LAND);
+		m.visitInsn(Opcodes.LNEG);
+		m.visitInsn(Opcodes.LXOR);
+		m.visitInsn(Opcodes.LRETURN);
+		m.visitMaxs(0, 0);
+		m.visitEnd();
+		return m;
+	}
+
+	private static void groupInto(MethodVisitor m, int offset) {
+		m.visitVarInsn(Opcodes.LLOAD, 2);
+		m.visitVarInsn(Opcodes.ILOAD, 5);
+		m.visitIntInsn(Opcodes.BIPUSH, offset);
+		m.visitInsn(Opcodes.ISUB);
+		m.visitInsn(Opcodes.I2L);
+		m.visitVarInsn(Opcodes.ILOAD, 4);
+		m.visitInsn(Opcodes.LSHL);
+		m.visitInsn(Opcodes.LOR);
+		m.visitVarInsn(Opcodes.LSTORE, 2);
+	}
+}
@@ -0,0 +1,177 @@
+/*
+ * Copyright (c) 2022, NWO-I CWI 
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package lang.flybytes.internal;
+
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.function.Function;
+
+import io.usethesource.vallang.IConstructor;
+import io.usethesource.vallang.type.Type;
+
+/**
+ * Maps the constructors of the flybytes AST to Java enum constants, such that the compiler
+ * can use a Java switch on an ordinal instead of a switch on the name of every node.
+ * 
+ * The map is keyed on the identity of the vallang constructor Type, which is shared
+ * by all nodes with the same constructor. Every constructor type is looked up by name only once; 
+ * after that dispatch costs a single identity hash lookup. Constructors which are unknown to the 
+ * compiler map to the OTHER constant of each enum.
+ */
+public final class Dispatch<K extends Enum<K>> {
+	/** Stat constructors */
+	public enum StatKind {
+		INCR, INVOKE_SUPER, DECL, BLOCK, DO, STORE, ASTORE, PUT_FIELD,
+		PUT_STATIC, RETURN, BREAK, CONTINUE, IF, FOR, WHILE, DO_WHILE,
+		THROW, MONITOR, ACQUIRE, RELEASE, TRY, SWITCH, ASM, OTHER;
+	}
+
+	/** Exp constructors */
+	public enum ExpKind {
+		CONST, THIS, NEW_INSTANCE, NEW_ARRAY, NEW_INIT_ARRAY, ALENGTH, LOAD, ALOAD,
+		GET_STATIC, INVOKE_VIRTUAL, INVOKE_INTERFACE, INVOKE_SPECIAL, INVOKE_STATIC, INVOKE_DYNAMIC, GET_FIELD, INSTANCEOF,
+		SBLOCK, NULL, TRUE, FALSE, COERCE, EQ, NE, LE,
+		GT, GE, LT, ADD, DIV, REM, SUB, MUL,
+		AND, SAND, OR, SOR, XOR, NEG, INC, SHR,
+		SHL, USHR, CHECKCAST, COND, CONCAT, LAMBDA, CONSTANT_DYNAMIC, OTHER;
+	}
+
+	/** Instruction constructors, which are named after their opcodes, except exp and stat */
+	public enum InstructionKind {
+		EXP, STAT, NOP, ACONST_NULL, ICONST_M1, ICONST_0, ICONST_1, ICONST_2, ICONST_3, ICONST_4,
+		ICONST_5, LCONST_0, LCONST_1, FCONST_0, FCONST_1, FCONST_2, DCONST_0, DCONST_1, IALOAD, LALOAD,
+		FALOAD, DALOAD, AALOAD, BALOAD, CALOAD, SALOAD, IASTORE, LASTORE, FASTORE, DASTORE,
+		AASTORE, BASTORE, CASTORE, SASTORE, POP, POP2, DUP, DUP_X1, DUP_X2, DUP2,
+		DUP2_X1, DUP2_X2, SWAP, IADD, LADD, FADD, DADD, ISUB, LSUB, FSUB,
+		DSUB, IMUL, LMUL, FMUL, DMUL, IDIV, LDIV, FDIV, DDIV, IREM,
+		LREM, FREM, DREM, INEG, LNEG, FNEG, DNEG, ISHL, LSHL, ISHR,
+		LSHR, IUSHR, LUSHR, IAND, LAND, IOR, LOR, IXOR, LXOR, I2L,
+		I2F, I2D, L2I, L2F, L2D, F2I, F2L, F2D, D2I, D2L,
+		D2F, I2B, I2C, I2S, LCMP, FCMPL, FCMPG, DCMPL, DCMPG, IRETURN,
+		LRETURN, FRETURN, DRETURN, ARETURN, RETURN, ARRAYLENGTH, ATHROW, MONITORENTER, MONITOREXIT, ILOAD,
+		LLOAD, FLOAD, DLOAD, ALOAD, ISTORE, LSTORE, FSTORE, DSTORE, ASTORE, RET,
+		BIPUSH, SIPUSH, NEWARRAY, LDC, IINC, LABEL, LINENUMBER, IFEQ, IFNE, IFLT,
+		IFGE, IFGT, IFLE, IF_ICMPEQ, IF_ICMPNE, IF_ICMPLT, IF_ICMPGE, IF_ICMPGT, IF_ICMPLE, IF_ACMPEQ,
+		IF_ACMPNE, GOTO, JSR, IFNULL, IFNONNULL, TABLESWITCH, LOOKUPSWITCH, GETSTATIC, PUTSTATIC, GETFIELD,
+		PUTFIELD, INVOKEVIRTUAL, INVOKESPECIAL, INVOKESTATIC, INVOKEINTERFACE, NEW, ANEWARRAY, CHECKCAST, INSTANCEOF, MULTIANEWARRAY,
+		INVOKEDYNAMIC, LOCALVARIABLE, OTHER;
+	}
+
+	/** Type constructors */
+	public enum TypeKind {
+		BOOLEAN, INTEGER, SHORT, BYTE, CHARACTER, FLOAT, DOUBLE, LONG,
+		VOID, OBJECT, ARRAY, STRING, OTHER;
+	}
+
+	/** Case constructors */
+	public enum CaseKind {
+		CASE, LONG_CASE, STRING_CASE, DEFAULT, OTHER;
+	}
+
+	/** Handler constructors */
+	public enum HandlerKind {
+		CATCH, FINALLY, OTHER;
+	}
+
+	/** Class constructors */
+	public enum ClassKind {
+		CLASS, INTERFACE, OTHER;
+	}
+
+	/** Method constructors */
+	public enum MethodKind {
+		METHOD, PROCEDURE, STATIC, OTHER;
+	}
+
+	public static final Dispatch<StatKind> STAT = new Dispatch<>(StatKind.class, StatKind.OTHER, Dispatch::camelCase);
+	public static final Dispatch<ExpKind> EXP = new Dispatch<>(ExpKind.class, ExpKind.OTHER, Dispatch::camelCase);
+	public static final Dispatch<TypeKind> TYPE = new Dispatch<>(TypeKind.class, TypeKind.OTHER, Dispatch::camelCase);
+	public static final Dispatch<CaseKind> CASE = new Dispatch<>(CaseKind.class, CaseKind.OTHER, Dispatch::camelCase);
+	public static final Dispatch<HandlerKind> HANDLER = new Dispatch<>(HandlerKind.class, HandlerKind.OTHER, Dispatch::camelCase);
+	public static final Dispatch<ClassKind> CLASS = new Dispatch<>(ClassKind.class, ClassKind.OTHER, Dispatch::camelCase);
+	public static final Dispatch<MethodKind> METHOD = new Dispatch<>(MethodKind.class, MethodKind.OTHER, Dispatch::camelCase);
+	public static final Dispatch<InstructionKind> INSTRUCTION = new Dispatch<>(InstructionKind.class, InstructionKind.OTHER, 
+			k -> k == InstructionKind.EXP || k == InstructionKind.STAT ? k.name().toLowerCase() : k.name());
+
+	private final Map<String, K> byName = new HashMap<>();
+	private final K other;
+
+	/**
+	 * Copy-on-write, such that the lookups on the hot path do not need any locking.
+	 * The map only grows when the compiler meets a constructor type for the first time.
+	 */
+	private volatile Map<Type, K> byType = new IdentityHashMap<>();
+
+	private Dispatch(Class<K> kinds, K other, Function<K, String> rascalName) {
+		this.other = other;
+
+		for (K kind : kinds.getEnumConstants()) {
+			if (kind != other) {
+				byName.put(rascalName.apply(kind), kind);
+			}
+		}
+	}
+
+	public K of(IConstructor cons) {
+		Type type = cons.getConstructorType();
+		K kind = byType.get(type);
+
+		if (kind == null) {
+			kind = register(type);
+		}
+
+		return kind;
+	}
+
+	private synchronized K register(Type type) {
+		K kind = byType.get(type);
+
+		if (kind == null) {
+			kind = byName.getOrDefault(type.getName(), other);
+			Map<Type, K> copy = new IdentityHashMap<>(byType);
+			copy.put(type, kind);
+			byType = copy;
+		}
+
+		return kind;
+	}
+
+	/**
+	 * INVOKE_SUPER becomes invokeSuper 
+	 */
+	private static String camelCase(Enum<?> kind) {
+		String[] parts = kind.name().toLowerCase().split("_");
+		StringBuilder b = new StringBuilder(parts[0]);
+
+		for (int i = 1; i < parts.length; i++) {
+			b.append(Character.toUpperCase(parts[i].charAt(0))).append(parts[i].substring(1));
+		}
+
+		return b.toString();
+	}
+}
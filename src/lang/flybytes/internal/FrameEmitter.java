@@ -0,0 +1,679 @@
+/*
+ * Copyright (c) 2022, NWO-I CWI 
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package lang.flybytes.internal;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.objectweb.asm.ClassReader;
+import org.objectweb.asm.ClassWriter;
+import org.objectweb.asm.Label;
+import org.objectweb.asm.Opcodes;
+import org.objectweb.asm.Type;
+import org.objectweb.asm.commons.AnalyzerAdapter;
+import org.objectweb.asm.tree.AbstractInsnNode;
+import org.objectweb.asm.tree.ClassNode;
+import org.objectweb.asm.tree.FrameNode;
+import org.objectweb.asm.tree.IincInsnNode;
+import org.objectweb.asm.tree.InsnList;
+import org.objectweb.asm.tree.JumpInsnNode;
+import org.objectweb.asm.tree.LabelNode;
+import org.objectweb.asm.tree.LocalVariableNode;
+import org.objectweb.asm.tree.LookupSwitchInsnNode;
+import org.objectweb.asm.tree.MethodNode;
+import org.objectweb.asm.tree.TableSwitchInsnNode;
+import org.objectweb.asm.tree.TryCatchBlockNode;
+import org.objectweb.asm.tree.VarInsnNode;
+
+/**
+ * Emits the stack map frames and the maxs of a method from what the compiler already knows, instead of 
+ * having ASM compute them with ClassWriter.COMPUTE_FRAMES. ASM has to merge the types of all paths which meet at
+ * a branch target, and it loads classes to find the common super class of two reference types. The compiler 
+ * knows the declared type of every local variable, so for the emitter:
+ * 
+ * - the locals of a frame are the variables which are live at the branch target, with their declared type
+ *   from the local variable table;
+ * - the operand stack is simulated by an {@link AnalyzerAdapter}, once per basic block which starts at a branch
+ *   target. If two paths meet with different reference types on the stack, which only conditional 
+ *   expressions do, then the compiler provides the static type of the expression as a hint;
+ * - unreachable code is removed, instead of replaced by NOP ... ATHROW.
+ * 
+ * Methods with JSR/RET or explicit frames, or for which the paths do not agree on a type without a hint, are 
+ * left alone. For those the compiler falls back to {@link #computeFrames(ClassNode, Collection, HierarchyIndex)}.
+ */
+public class FrameEmitter {
+	private final String owner;
+	private final MethodNode method;
+	private final Map<LabelNode, String> hints;
+	private final Map<Object, Object> uninitialized = new HashMap<>();
+	private final Deque<Point> work = new ArrayDeque<>();
+	private AbstractInsnNode[] insns;
+	private Point[] points; // by the index of the first label in front of the instruction
+	private boolean[] reachable;
+	private BitSet[] liveIn;
+	private int[] handlerStart, handlerEnd;
+	private Point[] handlers;
+	private String[] handlerTypes;
+	private int[] declStart, declEnd;
+	private int maxStack;
+
+	/**
+	 * A branch target or an exception handler, which needs a frame
+	 */
+	private static class Point {
+		final int start;
+		final int insn;
+		final BitSet inherited = new BitSet(); // slots with the type of the incoming path, for lack of a declaration 
+		List<Object> locals; // in the format of the AnalyzerAdapter, with a TOP after every long and double
+		List<Object> stack;
+		Object hint;
+
+		Point(int start, int insn) {
+			this.start = start;
+			this.insn = insn;
+		}
+	}
+
+	private FrameEmitter(String owner, MethodNode method, Map<LabelNode, String> hints) {
+		this.owner = owner;
+		this.method = method;
+		this.hints = hints;
+	}
+
+	/**
+	 * Adds expanded frames to the method and computes its maxs, or leaves the method unchanged.
+	 * 
+	 * @param owner  the internal name of the class of the method
+	 * @param hints  the static types (descriptors) of the values on top of the stack at some of the labels
+	 * @return false if ASM has to compute the frames of this method instead
+	 */
+	public static boolean emit(String owner, MethodNode method, Map<LabelNode, String> hints) {
+		if (method.instructions.size() == 0) {
+			return true;
+		}
+
+		FrameEmitter emitter = new FrameEmitter(owner, method, hints);
+
+		if (!emitter.analyze()) {
+			CompilerStatistics.count("nativeFrames.fallbacks");
+			return false;
+		}
+
+		emitter.rewrite();
+		CompilerStatistics.count("nativeFrames.methods");
+		return true;
+	}
+
+	/**
+	 * Lets ASM compute the frames and maxs of the given methods of a class, via a scratch class which is 
+	 * written and read back with expanded frames.
+	 * 
+	 * @param hierarchy the index to find common super classes with, or null to let ASM load the classes
+	 * @return the analyzed version of every given method
+	 */
+	public static Map<MethodNode, MethodNode> computeFrames(ClassNode cn, Collection<MethodNode> methods, HierarchyIndex hierarchy) {
+		ClassNode scratch = new ClassNode();
+		scratch.version = cn.version;
+		scratch.access = cn.access;
+		scratch.name = cn.name;
+		scratch.superName = cn.superName;
+		scratch.interfaces = cn.interfaces;
+		scratch.methods.addAll(methods);
+
+		ClassWriter cw = hierarchy != null ? hierarchy.writer(ClassWriter.COMPUTE_FRAMES) : new ClassWriter(ClassWriter.COMPUTE_FRAMES);
+		scratch.accept(cw);
+
+		ClassNode analyzed = new ClassNode();
+		new ClassReader(cw.toByteArray()).accept(analyzed, ClassReader.EXPAND_FRAMES);
+
+		Map<String, MethodNode> byName = new HashMap<>();
+		for (MethodNode m : analyzed.methods) {
+			byName.put(m.name + m.desc, m);
+		}
+
+		Map<MethodNode, MethodNode> result = new IdentityHashMap<>();
+		for (MethodNode m : methods) {
+			result.put(m, byName.get(m.name + m.desc));
+		}
+
+		return result;
+	}
+
+	private boolean analyze() {
+		InsnList list = method.instructions;
+
+		for (AbstractInsnNode insn : list.toArray()) {
+			int op = insn.getOpcode();
+
+			if (op == Opcodes.JSR || op == Opcodes.RET || insn instanceof FrameNode) {
+				return false;
+			}
+
+			if (op == Opcodes.NEW && !labelled(insn)) {
+				// the label identifies the uninitialized object in frames
+				list.insertBefore(insn, new LabelNode());
+			}
+		}
+
+		insns = list.toArray();
+		points = new Point[insns.length];
+		reachable = new boolean[insns.length];
+		liveIn = liveness(RegisterAllocator.successors(method, insns));
+		declarations();
+
+		for (AbstractInsnNode insn : insns) {
+			for (LabelNode label : targets(insn)) {
+				point(label);
+			}
+		}
+
+		int handlerCount = method.tryCatchBlocks.size();
+		handlerStart = new int[handlerCount];
+		handlerEnd = new int[handlerCount];
+		handlers = new Point[handlerCount];
+		handlerTypes = new String[handlerCount];
+
+		for (int h = 0; h < handlerCount; h++) {
+			TryCatchBlockNode tcb = method.tryCatchBlocks.get(h);
+			handlerStart[h] = list.indexOf(tcb.start);
+			handlerEnd[h] = list.indexOf(tcb.end);
+			handlers[h] = point(tcb.handler);
+			handlerTypes[h] = tcb.type == null ? "java/lang/Throwable" : tcb.type;
+		}
+
+		AnalyzerAdapter entry = adapter();
+		if (!walk(0, null, entry.locals, entry.stack)) {
+			return false;
+		}
+
+		while (!work.isEmpty()) {
+			Point p = work.poll();
+
+			if (!walk(p.start, p, p.locals, p.stack)) {
+				return false;
+			}
+		}
+
+		return true;
+	}
+
+	private AnalyzerAdapter adapter() {
+		AnalyzerAdapter adapter = new AnalyzerAdapter(owner, method.access, method.name, method.desc, null);
+
+		// NEW and the call to its constructor may be in different blocks
+		adapter.uninitializedTypes = uninitialized;
+		return adapter;
+	}
+
+	/**
+	 * Simulates the instructions of a basic block, and propagates the resulting state to the 
+	 * branch targets and exception handlers it reaches.
+	 */
+	private boolean walk(int from, Point self, List<Object> locals, List<Object> stack) {
+		AnalyzerAdapter adapter = adapter();
+		adapter.locals = new ArrayList<>(locals);
+		adapter.stack = new ArrayList<>(stack);
+		maxStack = Math.max(maxStack, stack.size());
+
+		for (int i = from; i < insns.length; i++) {
+			AbstractInsnNode insn = insns[i];
+			int op = insn.getOpcode();
+
+			if (points[i] != null && points[i] != self) {
+				// falls through into a branch target
+				return merge(points[i], adapter.locals, adapter.stack);
+			}
+
+			if (op == -1) {
+				// labels are remembered by the adapter, for the NEW instructions which follow them
+				insn.accept(adapter);
+				continue;
+			}
+
+			reachable[i] = true;
+
+			for (int h = 0; h < handlers.length; h++) {
+				if (handlerStart[h] <= i && i < handlerEnd[h] && !merge(handlers[h], adapter.locals, Collections.singletonList(handlerTypes[h]))) {
+					return false;
+				}
+			}
+
+			if (op == Opcodes.GOTO) {
+				return merge(point(((JumpInsnNode) insn).label), adapter.locals, adapter.stack);
+			}
+			else if (insn instanceof TableSwitchInsnNode || insn instanceof LookupSwitchInsnNode) {
+				List<Object> rest = adapter.stack.subList(0, adapter.stack.size() - 1);
+
+				for (LabelNode target : targets(insn)) {
+					if (!merge(point(target), adapter.locals, rest)) {
+						return false;
+					}
+				}
+
+				return true;
+			}
+			else if ((op >= Opcodes.IRETURN && op <= Opcodes.RETURN) || op == Opcodes.ATHROW) {
+				return true;
+			}
+
+			insn.accept(adapter);
+			maxStack = Math.max(maxStack, adapter.stack.size());
+
+			if (insn instanceof JumpInsnNode && !merge(point(((JumpInsnNode) insn).label), adapter.locals, adapter.stack)) {
+				return false;
+			}
+		}
+
+		return true;
+	}
+
+	/**
+	 * Registers a path which arrives at a branch target. The first path determines the frame, 
+	 * and every other path has to agree with it.
+	 */
+	private boolean merge(Point p, List<Object> locals, List<Object> stack) {
+		if (p == null) {
+			// a branch to the end of the code
+			return false;
+		}
+
+		if (p.stack == null) {
+			p.hint = hint(p);
+			p.stack = new ArrayList<>(stack);
+
+			int top = p.stack.size() - 1;
+			if (p.hint != null && top >= 0 && isReference(p.stack.get(top))) {
+				p.stack.set(top, p.hint);
+			}
+
+			p.locals = frameLocals(p, locals);
+
+			if (p.locals == null) {
+				return false;
+			}
+
+			work.add(p);
+			return true;
+		}
+
+		if (stack.size() != p.stack.size()) {
+			return false;
+		}
+
+		for (int k = 0; k < stack.size(); k++) {
+			Object type = stack.get(k);
+
+			if (!type.equals(p.stack.get(k)) && !(k == stack.size() - 1 && p.hint != null && isReference(type))) {
+				return false;
+			}
+		}
+
+		BitSet inherited = p.inherited;
+		for (int s = inherited.nextSetBit(0); s >= 0; s = inherited.nextSetBit(s + 1)) {
+			if (!local(locals, s).equals(p.locals.get(s))) {
+				return false;
+			}
+		}
+
+		return true;
+	}
+
+	/**
+	 * The locals of a frame are the live variables, with their declared types. Only uninitialized objects and 
+	 * temporaries without a declaration get their type from the incoming path.
+	 */
+	private List<Object> frameLocals(Point p, List<Object> incoming) {
+		BitSet live = (BitSet) liveIn[p.insn].clone();
+		List<Object> locals = new ArrayList<>();
+
+		// the verifier demands that `this` stays uninitialized until the super constructor is called, live or not
+		for (int s = 0; s < incoming.size(); s++) {
+			if (Opcodes.UNINITIALIZED_THIS.equals(incoming.get(s))) {
+				live.set(s);
+			}
+		}
+
+		for (int s = live.nextSetBit(0); s >= 0; s = live.nextSetBit(s + 1)) {
+			Object actual = local(incoming, s);
+			Object type = null;
+
+			if (!Opcodes.UNINITIALIZED_THIS.equals(actual) && !(actual instanceof Label)) {
+				type = declaredType(s, p.insn);
+
+				// register allocation keeps the whole scope of variables which share a slot, so the declaration 
+				// may belong to another variable than the one which flows in here
+				if (type != null && !sameKind(type, actual)) {
+					type = null;
+				}
+			}
+
+			if (type == null) {
+				type = actual;
+				p.inherited.set(s);
+			}
+
+			if (Opcodes.TOP.equals(type)) {
+				return null;
+			}
+
+			while (locals.size() <= s) {
+				locals.add(Opcodes.TOP);
+			}
+			locals.set(s, type);
+
+			if (Opcodes.LONG.equals(type) || Opcodes.DOUBLE.equals(type)) {
+				if (live.get(s + 1)) {
+					return null;
+				}
+
+				locals.add(Opcodes.TOP);
+			}
+		}
+
+		return locals;
+	}
+
+	private static Object local(List<Object> locals, int slot) {
+		return slot < locals.size() ? locals.get(slot) : Opcodes.TOP;
+	}
+
+	/**
+	 * @return true if a value of the incoming type can be described by the declared type in a frame
+	 */
+	private static boolean sameKind(Object declared, Object actual) {
+		return declared.equals(actual) || (declared instanceof String && isReference(actual));
+	}
+
+	private static boolean isReference(Object type) {
+		return type instanceof String || Opcodes.NULL.equals(type);
+	}
+
+	private Object hint(Point p) {
+		for (int i = p.start; i < p.insn; i++) {
+			String desc = hints.get(insns[i]);
+
+			if (desc != null) {
+				return frameType(desc);
+			}
+		}
+
+		return null;
+	}
+
+	/**
+	 * @return the declared type of the variable in the given slot at the given instruction, or null
+	 */
+	private Object declaredType(int slot, int at) {
+		LocalVariableNode found = null;
+		int foundStart = -1;
+
+		for (int v = 0; v < declStart.length; v++) {
+			LocalVariableNode lv = method.localVariables.get(v);
+
+			// with register allocation, the newest declaration of a slot is the live one
+			if (lv.index == slot && declStart[v] <= at && at < declEnd[v] && declStart[v] > foundStart) {
+				found = lv;
+				foundStart = declStart[v];
+			}
+		}
+
+		return found != null ? frameType(found.desc) : null;
+	}
+
+	private void declarations() {
+		List<LocalVariableNode> vars = method.localVariables != null ? method.localVariables : Collections.emptyList();
+		declStart = new int[vars.size()];
+		declEnd = new int[vars.size()];
+
+		for (int v = 0; v < vars.size(); v++) {
+			declStart[v] = method.instructions.indexOf(vars.get(v).start);
+			declEnd[v] = method.instructions.indexOf(vars.get(v).end);
+		}
+	}
+
+	private static Object frameType(String desc) {
+		Type type = Type.getType(desc);
+
+		switch (type.getSort()) {
+		case Type.BOOLEAN:
+		case Type.CHAR:
+		case Type.BYTE:
+		case Type.SHORT:
+		case Type.INT:
+			return Opcodes.INTEGER;
+		case Type.FLOAT:
+			return Opcodes.FLOAT;
+		case Type.LONG:
+			return Opcodes.LONG;
+		case Type.DOUBLE:
+			return Opcodes.DOUBLE;
+		default:
+			return type.getInternalName();
+		}
+	}
+
+	/**
+	 * @return the frame point of the instruction which follows the label, or null if there is no instruction
+	 */
+	private Point point(LabelNode label) {
+		int insn = method.instructions.indexOf(label);
+
+		while (insn < insns.length && insns[insn].getOpcode() == -1) {
+			insn++;
+		}
+
+		if (insn == insns.length) {
+			return null;
+		}
+
+		int start = insn;
+		while (start > 0 && insns[start - 1].getOpcode() == -1) {
+			start--;
+		}
+
+		if (points[start] == null) {
+			points[start] = new Point(start, insn);
+		}
+
+		return points[start];
+	}
+
+	private static List<LabelNode> targets(AbstractInsnNode insn) {
+		if (insn instanceof JumpInsnNode) {
+			return Collections.singletonList(((JumpInsnNode) insn).label);
+		}
+		else if (insn instanceof TableSwitchInsnNode) {
+			TableSwitchInsnNode sw = (TableSwitchInsnNode) insn;
+			List<LabelNode> result = new ArrayList<>(sw.labels);
+			result.add(sw.dflt);
+			return result;
+		}
+		else if (insn instanceof LookupSwitchInsnNode) {
+			LookupSwitchInsnNode sw = (LookupSwitchInsnNode) insn;
+			List<LabelNode> result = new ArrayList<>(sw.labels);
+			result.add(sw.dflt);
+			return result;
+		}
+
+		return Collections.emptyList();
+	}
+
+	private static boolean labelled(AbstractInsnNode insn) {
+		for (AbstractInsnNode prev = insn.getPrevious(); prev != null && prev.getOpcode() == -1; prev = prev.getPrevious()) {
+			if (prev instanceof LabelNode) {
+				return true;
+			}
+		}
+
+		return false;
+	}
+
+	/**
+	 * A backward liveness analysis on slots, which are only used here to decide which locals appear in a frame.
+	 */
+	private BitSet[] liveness(int[][] successors) {
+		int n = insns.length;
+		BitSet[] in = new BitSet[n];
+
+		for (int i = 0; i < n; i++) {
+			in[i] = new BitSet();
+		}
+
+		boolean changed = true;
+		while (changed) {
+			changed = false;
+
+			for (int i = n - 1; i >= 0; i--) {
+				BitSet live = new BitSet();
+				for (int s : successors[i]) {
+					live.or(in[s]);
+				}
+
+				AbstractInsnNode insn = insns[i];
+				int op = insn.getOpcode();
+
+				if (insn instanceof VarInsnNode) {
+					if (op >= Opcodes.ISTORE && op <= Opcodes.ASTORE) {
+						live.clear(((VarInsnNode) insn).var);
+					}
+					else {
+						live.set(((VarInsnNode) insn).var);
+					}
+				}
+				else if (insn instanceof IincInsnNode) {
+					live.set(((IincInsnNode) insn).var);
+				}
+
+				if (!live.equals(in[i])) {
+					in[i] = live;
+					changed = true;
+				}
+			}
+		}
+
+		return in;
+	}
+
+	private void rewrite() {
+		InsnList list = method.instructions;
+		Map<Label, LabelNode> labelNodes = new IdentityHashMap<>();
+		int frames = 0;
+
+		for (AbstractInsnNode insn : insns) {
+			if (insn instanceof LabelNode) {
+				labelNodes.put(((LabelNode) insn).getLabel(), (LabelNode) insn);
+			}
+		}
+
+		for (Point p : points) {
+			if (p != null && p.stack != null) {
+				Object[] locals = frame(p.locals, labelNodes, true);
+				Object[] stack = frame(p.stack, labelNodes, false);
+				list.insertBefore(insns[p.insn], new FrameNode(Opcodes.F_NEW, locals.length, locals, stack.length, stack));
+				frames++;
+			}
+		}
+
+		// try blocks which only cover unreachable code are removed with it
+		List<TryCatchBlockNode> covering = new ArrayList<>();
+		for (int h = 0; h < handlers.length; h++) {
+			boolean covers = false;
+
+			for (int i = handlerStart[h]; i < handlerEnd[h] && !covers; i++) {
+				covers = reachable[i];
+			}
+
+			if (covers) {
+				covering.add(method.tryCatchBlocks.get(h));
+			}
+		}
+		method.tryCatchBlocks.retainAll(covering);
+
+		int maxLocals = (Type.getArgumentsAndReturnSizes(method.desc) >> 2) - ((method.access & Opcodes.ACC_STATIC) != 0 ? 1 : 0);
+
+		for (int i = 0; i < insns.length; i++) {
+			AbstractInsnNode insn = insns[i];
+
+			if (insn.getOpcode() == -1) {
+				continue;
+			}
+			else if (!reachable[i]) {
+				list.remove(insn);
+				CompilerStatistics.count("nativeFrames.unreachable");
+			}
+			else if (insn instanceof VarInsnNode) {
+				int op = insn.getOpcode();
+				boolean wide = op == Opcodes.LLOAD || op == Opcodes.DLOAD || op == Opcodes.LSTORE || op == Opcodes.DSTORE;
+				maxLocals = Math.max(maxLocals, ((VarInsnNode) insn).var + (wide ? 2 : 1));
+			}
+			else if (insn instanceof IincInsnNode) {
+				maxLocals = Math.max(maxLocals, ((IincInsnNode) insn).var + 1);
+			}
+		}
+
+		if (method.localVariables != null) {
+			for (LocalVariableNode lv : method.localVariables) {
+				maxLocals = Math.max(maxLocals, lv.index + Type.getType(lv.desc).getSize());
+			}
+		}
+
+		method.maxStack = maxStack;
+		method.maxLocals = maxLocals;
+		CompilerStatistics.add("nativeFrames.frames", frames);
+	}
+
+	/**
+	 * Converts the state of the adapter to an expanded frame, where longs and doubles take a single element 
+	 * and uninitialized objects are identified by the label node of their NEW instruction.
+	 */
+	private static Object[] frame(List<Object> types, Map<Label, LabelNode> labelNodes, boolean trim) {
+		List<Object> result = new ArrayList<>(types.size());
+
+		for (int i = 0; i < types.size(); i++) {
+			Object type = types.get(i);
+			result.add(type instanceof Label ? labelNodes.get(type) : type);
+
+			if (Opcodes.LONG.equals(type) || Opcodes.DOUBLE.equals(type)) {
+				i++;
+			}
+		}
+
+		while (trim && !result.isEmpty() && Opcodes.TOP.equals(result.get(result.size() - 1))) {
+			result.remove(result.size() - 1);
+		}
+
+		return result.toArray();
+	}
+}
@@ -0,0 +1,177 @@
+/*
+ * Copyright (c) 2022, NWO-I CWI 
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package lang.flybytes.internal;
+
+import java.lang.invoke.MethodHandles.Lookup;
+import java.lang.reflect.Array;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.objectweb.asm.ClassWriter;
+import org.objectweb.asm.MethodVisitor;
+import org.objectweb.asm.Opcodes;
+
+/**
+ * Defines generated classes as hidden classes, with MethodHandles.Lookup.defineHiddenClass. A hidden class
+ * is not registered with its class loader, so the JVM unloads it as soon as the class itself is unreachable,
+ * instead of when its loader and all the other classes of that loader are. This keeps the metaspace flat when
+ * the same classes are generated and loaded again and again.
+ * 
+ * A hidden class is defined in the package and the class loader of the lookup which defines it. So for every
+ * package this defines an empty public host class, in one class loader per classpath, and uses its full privilege 
+ * lookup. The hidden classes are no nestmates of their host: that would only give them access to the private 
+ * members of an empty class.
+ * 
+ * Hidden classes can not be found by name, so other classes can not refer to them. Within the class itself, the 
+ * name refers to the hidden class as usual.
+ * 
+ * The API exists from JDK 15 on; since the compiler itself targets JDK 11, it is looked up reflectively.
+ */
+public class HiddenClasses {
+	private static final String HOST = "$FlybytesHost";
+	private static final Method DEFINE_HIDDEN_CLASS;
+	private static final Object NO_OPTIONS;
+
+	static {
+		Method define = null;
+		Object options = null;
+
+		try {
+			Class<?> option = Class.forName("java.lang.invoke.MethodHandles$Lookup$ClassOption");
+			options = Array.newInstance(option, 0);
+			define = Lookup.class.getMethod("defineHiddenClass", byte[].class, boolean.class, options.getClass());
+		}
+		catch (ClassNotFoundException | NoSuchMethodException e) {
+			// this JVM is older than JDK 15
+		}
+
+		DEFINE_HIDDEN_CLASS = define;
+		NO_OPTIONS = options;
+	}
+
+	private final HostLoader loader;
+	private final Map<String, Lookup> hosts = new ConcurrentHashMap<>();
+
+	/**
+	 * @param parent the loader which the hidden classes resolve the other classes they refer to with
+	 */
+	public HiddenClasses(ClassLoader parent) {
+		this.loader = new HostLoader(parent);
+	}
+
+	/**
+	 * @return the loader which the hidden classes resolve the other classes they refer to with
+	 */
+	public ClassLoader parent() {
+		return loader.getParent();
+	}
+
+	/**
+	 * @return true if this JVM can define hidden classes
+	 */
+	public static boolean isSupported() {
+		return DEFINE_HIDDEN_CLASS != null;
+	}
+
+	/**
+	 * Defines and initializes a hidden class.
+	 * @param className the binary name of the class, with dots
+	 */
+	public Class<?> define(String className, byte[] bytes) {
+		if (!isSupported()) {
+			throw new UnsupportedOperationException("hidden classes require at least JDK 15");
+		}
+
+		Lookup host = hosts.computeIfAbsent(packageName(className), this::host);
+
+		try {
+			return ((Lookup) DEFINE_HIDDEN_CLASS.invoke(host, bytes, true, NO_OPTIONS)).lookupClass();
+		}
+		catch (InvocationTargetException e) {
+			Throwable cause = e.getCause();
+
+			if (cause instanceof RuntimeException) {
+				throw (RuntimeException) cause;
+			}
+			else if (cause instanceof Error) {
+				throw (Error) cause;
+			}
+
+			throw new IllegalArgumentException("could not define " + className + " as a hidden class", cause);
+		}
+		catch (IllegalAccessException e) {
+			throw new IllegalArgumentException("could not define " + className + " as a hidden class", e);
+		}
+	}
+
+	private static String packageName(String className) {
+		int dot = className.lastIndexOf('.');
+		return dot == -1 ? "" : className.substring(0, dot);
+	}
+
+	private Lookup host(String packageName) {
+		String name = packageName.isEmpty() ? HOST : packageName + "." + HOST;
+
+		try {
+			Class<?> host = loader.define(name, hostClass(name.replace('.', '/')));
+			return (Lookup) host.getMethod("lookup").invoke(null);
+		}
+		catch (ReflectiveOperationException e) {
+			throw new IllegalArgumentException("could not define a host class for hidden classes in package " + packageName, e);
+		}
+	}
+
+	/**
+	 * @return a class with a single method `public static Lookup lookup()`, which returns its own full privilege lookup 
+	 */
+	private static byte[] hostClass(String internalName) {
+		ClassWriter cw = new ClassWriter(ClassWriter.COMPUTE_MAXS);
+		cw.visit(Opcodes.V11, Opcodes.ACC_PUBLIC | Opcodes.ACC_FINAL | Opcodes.ACC_SUPER, internalName, null, "java/lang/Object", null);
+
+		MethodVisitor mv = cw.visitMethod(Opcodes.ACC_PUBLIC | Opcodes.ACC_STATIC, "lookup", "()Ljava/lang/invoke/MethodHandles$Lookup;", null, null);
+		mv.visitCode();
+		mv.visitMethodInsn(Opcodes.INVOKESTATIC, "java/lang/invoke/MethodHandles", "lookup", "()Ljava/lang/invoke/MethodHandles$Lookup;", false);
+		mv.visitInsn(Opcodes.ARETURN);
+		mv.visitMaxs(0, 0);
+		mv.visitEnd();
+
+		cw.visitEnd();
+		return cw.toByteArray();
+	}
+
+	private static class HostLoader extends ClassLoader {
+		HostLoader(ClassLoader parent) {
+			super(parent);
+		}
+
+		Class<?> define(String name, byte[] bytes) {
+			return defineClass(name, bytes, 0, bytes.length);
+		}
+	}
+}
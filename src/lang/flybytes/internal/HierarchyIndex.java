@@ -0,0 +1,347 @@
+/*
+ * Copyright (c) 2022, NWO-I CWI 
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package lang.flybytes.internal;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.objectweb.asm.ClassReader;
+import org.objectweb.asm.ClassWriter;
+import org.objectweb.asm.Opcodes;
+import org.rascalmpl.uri.URIResolverRegistry;
+import org.rascalmpl.uri.URIUtil;
+
+import io.usethesource.vallang.IConstructor;
+import io.usethesource.vallang.IList;
+import io.usethesource.vallang.ISourceLocation;
+import io.usethesource.vallang.IValue;
+import io.usethesource.vallang.IWithKeywordParameters;
+import lang.flybytes.internal.ClassCompiler.AST;
+import lang.flybytes.internal.Dispatch.ClassKind;
+
+/**
+ * An index of the super class and the interfaces of classes, for ASM's computation of stack map frames.
+ * By default ClassWriter.getCommonSuperClass loads both classes with Class.forName on the class loader of
+ * the compiler, which is slow and can not see the classes of the current batch or of the classpath 
+ * of the compilation at all. The index has three layers, which are searched in this order:
+ * 
+ * - the Class ASTs of the current batch, with their `super` and `interfaces` fields;
+ * - the classpath locations of the compilation, from which class files are parsed header-only by a ClassReader;
+ * - the resources of the parent class loader, for the JDK and the other libraries of the compiler itself.
+ * 
+ * The last two layers are shared by all compilations with the same classpath, and are dropped as soon as a
+ * class file on one of the classpath entries changes (see ClasspathStamps, which checks at most once per second).
+ */
+public class HierarchyIndex {
+	private static final String OBJECT = "java/lang/Object";
+	private static final int LIMIT = 16;
+	private static final Map<IList, Classpath> classpaths = new LinkedHashMap<IList, Classpath>(16, 0.75f, true /* access order */) {
+		private static final long serialVersionUID = 1L;
+
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<IList, Classpath> eldest) {
+			return size() > LIMIT;
+		}
+	};
+
+	private final Map<String, Header> batch;
+	private final Classpath classpath;
+
+	/**
+	 * The part of a class file which is relevant for the type hierarchy
+	 */
+	public static final class Header {
+		private static final Header MISSING = new Header(null, new String[0], false);
+
+		public final String superName; 
+		public final String[] interfaces;
+		public final boolean isInterface;
+
+		public Header(String superName, String[] interfaces, boolean isInterface) {
+			this.superName = superName;
+			this.interfaces = interfaces;
+			this.isInterface = isInterface;
+		}
+	}
+
+	/**
+	 * A ClassWriter which asks the index for common super classes, and only falls back to
+	 * loading classes for types which the index does not know.
+	 */
+	public static class Writer extends ClassWriter {
+		private final HierarchyIndex index;
+
+		public Writer(HierarchyIndex index, int flags) {
+			super(flags);
+			this.index = index;
+		}
+
+		@Override
+		protected String getCommonSuperClass(String type1, String type2) {
+			String common = index.commonSuperClass(type1, type2);
+
+			if (common == null) {
+				CompilerStatistics.count("hierarchy.fallbacks");
+				return super.getCommonSuperClass(type1, type2);
+			}
+
+			return common;
+		}
+	}
+
+	private HierarchyIndex(Map<String, Header> batch, Classpath classpath) {
+		this.batch = batch;
+		this.classpath = classpath;
+	}
+
+	/**
+	 * @param classpath the list of locations the compiled classes are loaded with
+	 * @param parent    the class loader of the compiler
+	 * @param classes   the Class ASTs of the current batch
+	 */
+	public static HierarchyIndex of(IList classpath, ClassLoader parent, IList classes) {
+		Map<String, Header> batch = new HashMap<>();
+
+		for (IValue elem : classes) {
+			IConstructor cls = (IConstructor) elem;
+			batch.put(AST.$getName(AST.$getType(cls)).replace('.', '/'), header(cls));
+		}
+
+		return new HierarchyIndex(batch, classpath(classpath, parent));
+	}
+
+	private static Header header(IConstructor cls) {
+		IWithKeywordParameters<? extends IConstructor> kws = cls.asWithKeywordParameters();
+		String superName = kws.hasParameter("super") ? AST.$getSuper(kws) : OBJECT;
+		String[] interfaces = new String[0];
+
+		if (kws.hasParameter("interfaces")) {
+			IList list = AST.$getInterfaces(kws);
+			interfaces = new String[list.length()];
+
+			for (int i = 0; i < interfaces.length; i++) {
+				interfaces[i] = AST.$getName((IConstructor) list.get(i)).replace('.', '/');
+			}
+		}
+
+		return new Header(superName, interfaces, Dispatch.CLASS.of(cls) == ClassKind.INTERFACE);
+	}
+
+	private static Classpath classpath(IList entries, ClassLoader parent) {
+		Classpath cp;
+
+		synchronized (classpaths) {
+			cp = classpaths.get(entries);
+		}
+
+		// checking the stamps may walk whole folders, so that happens outside of the lock
+		if (cp != null && cp.parent == parent && cp.isCurrent()) {
+			return cp;
+		}
+
+		Classpath fresh = new Classpath(entries, parent);
+
+		synchronized (classpaths) {
+			Classpath current = classpaths.get(entries);
+
+			if (current != null && current != cp && current.parent == parent) {
+				// another thread has replaced it in the meantime
+				return current;
+			}
+
+			if (cp != null) {
+				CompilerStatistics.count("hierarchy.invalidations");
+			}
+
+			classpaths.put(entries, fresh);
+			return fresh;
+		}
+	}
+
+	public ClassWriter writer(int flags) {
+		return new Writer(this, flags);
+	}
+
+	/**
+	 * @return the header of the given internal class name, or null if it can not be found
+	 */
+	public Header lookup(String name) {
+		Header header = batch.get(name);
+		return header != null ? header : classpath.lookup(name);
+	}
+
+	/**
+	 * Follows the semantics of ClassWriter.getCommonSuperClass: interfaces meet at java.lang.Object, 
+	 * and otherwise the result is the first super class of `type1` which `type2` is assignable to.
+	 * 
+	 * @return the common super class, or null if part of the hierarchy is unknown
+	 */
+	public String commonSuperClass(String type1, String type2) {
+		if (type1.equals(type2)) {
+			return type1;
+		}
+
+		Set<String> supers1 = supertypes(type1);
+		Set<String> supers2 = supertypes(type2);
+
+		if (supers1 == null || supers2 == null) {
+			return null;
+		}
+
+		if (supers2.contains(type1)) {
+			return type1;
+		}
+
+		if (supers1.contains(type2)) {
+			return type2;
+		}
+
+		if (lookup(type1).isInterface || lookup(type2).isInterface) {
+			return OBJECT;
+		}
+
+		for (String c = type1; c != null; c = lookup(c).superName) {
+			if (supers2.contains(c)) {
+				return c;
+			}
+		}
+
+		return OBJECT;
+	}
+
+	/**
+	 * @return the type itself and all its super classes and interfaces, or null if one of them is unknown
+	 */
+	private Set<String> supertypes(String type) {
+		Set<String> result = new HashSet<>();
+		Deque<String> todo = new ArrayDeque<>();
+		todo.push(type);
+
+		while (!todo.isEmpty()) {
+			String current = todo.pop();
+
+			if (!result.add(current)) {
+				continue;
+			}
+
+			Header header = lookup(current);
+
+			if (header == null) {
+				return null;
+			}
+
+			if (header.superName != null) {
+				todo.push(header.superName);
+			}
+
+			for (String i : header.interfaces) {
+				todo.push(i);
+			}
+		}
+
+		return result;
+	}
+
+	/**
+	 * The headers of the class files on a classpath, which are parsed on demand
+	 */
+	private static class Classpath {
+		private final ISourceLocation[] entries;
+		private final ClasspathStamps stamps;
+		private final ClassLoader parent;
+		private final Map<String, Header> headers = new ConcurrentHashMap<>();
+
+		Classpath(IList entries, ClassLoader parent) {
+			this.entries = new ISourceLocation[entries.length()];
+			this.stamps = new ClasspathStamps(entries);
+			this.parent = parent;
+
+			for (int i = 0; i < this.entries.length; i++) {
+				this.entries[i] = root((ISourceLocation) entries.get(i));
+			}
+		}
+
+		/**
+		 * A jar file on the classpath is searched through the jar scheme
+		 */
+		private static ISourceLocation root(ISourceLocation entry) {
+			if (entry.getPath() != null && entry.getPath().endsWith(".jar")) {
+				return URIUtil.correctLocation("jar+" + entry.getScheme(), entry.getAuthority(), entry.getPath() + "!/");
+			}
+
+			return entry;
+		}
+
+		boolean isCurrent() {
+			return stamps.isCurrent();
+		}
+
+		Header lookup(String name) {
+			Header header = headers.computeIfAbsent(name, this::read);
+			return header != Header.MISSING ? header : null;
+		}
+
+		private Header read(String name) {
+			String file = name + ".class";
+			URIResolverRegistry reg = URIResolverRegistry.getInstance();
+
+			try {
+				for (ISourceLocation entry : entries) {
+					ISourceLocation loc = URIUtil.getChildLocation(entry, file);
+
+					if (reg.exists(loc)) {
+						try (InputStream in = reg.getInputStream(loc)) {
+							return header(in);
+						}
+					}
+				}
+
+				try (InputStream in = parent.getResourceAsStream(file)) {
+					return in != null ? header(in) : Header.MISSING;
+				}
+			}
+			catch (IOException e) {
+				return Header.MISSING;
+			}
+		}
+
+		private static Header header(InputStream in) throws IOException {
+			// the constructor only indexes the constant pool, the rest of the class file is not parsed
+			ClassReader reader = new ClassReader(in);
+			CompilerStatistics.count("hierarchy.reads");
+			return new Header(reader.getSuperName(), reader.getInterfaces(), (reader.getAccess() & Opcodes.ACC_INTERFACE) != 0);
+		}
+	}
+}
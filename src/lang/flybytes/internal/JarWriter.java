@@ -0,0 +1,118 @@
+/*
+ * Copyright (c) 2022, NWO-I CWI 
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package lang.flybytes.internal;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.jar.Attributes;
+import java.util.jar.JarEntry;
+import java.util.jar.JarOutputStream;
+import java.util.jar.Manifest;
+
+/**
+ * Streams compiled classes into a single JAR file, instead of writing every class to a file of its own. 
+ * The entries are written through a buffer on the writable channel of the location, one by one as soon 
+ * as they are compiled, so the JAR never has to be kept in memory as a whole.
+ * 
+ * The manifest is the first entry. With an index, the last entry is a `META-INF/INDEX.LIST` with the
+ * packages of the JAR, which class loaders before JDK 18 use to find a class without opening the JAR.
+ */
+public class JarWriter implements Closeable {
+	private static final int BUFFER_SIZE = 1 << 16;
+
+	private final JarOutputStream jar;
+	private final String jarName;
+	private final boolean index;
+	private final Set<String> packages = new TreeSet<>();
+
+	/**
+	 * @param channel   the channel to write the JAR to, which is closed when the writer is closed
+	 * @param jarName   the file name of the JAR, for the index
+	 * @param mainClass the binary name of the Main-Class of the manifest, or null
+	 * @param index     if true, a META-INF/INDEX.LIST is written
+	 */
+	public JarWriter(WritableByteChannel channel, String jarName, String mainClass, boolean index) throws IOException {
+		Manifest manifest = new Manifest();
+		Attributes attributes = manifest.getMainAttributes();
+		attributes.put(Attributes.Name.MANIFEST_VERSION, "1.0");
+		attributes.put(new Attributes.Name("Created-By"), "flybytes");
+
+		if (mainClass != null) {
+			attributes.put(Attributes.Name.MAIN_CLASS, mainClass);
+		}
+
+		this.jar = new JarOutputStream(new BufferedOutputStream(Channels.newOutputStream(channel), BUFFER_SIZE), manifest);
+		this.jarName = jarName;
+		this.index = index;
+	}
+
+	/**
+	 * @param className the binary name of the class, with dots
+	 */
+	public void write(String className, byte[] bytes) throws IOException {
+		String path = className.replace('.', '/');
+		int slash = path.lastIndexOf('/');
+		// the index lists the classes of the default package by their file name
+		packages.add(slash == -1 ? path + ".class" : path.substring(0, slash));
+
+		jar.putNextEntry(new JarEntry(path + ".class"));
+		jar.write(bytes);
+		jar.closeEntry();
+	}
+
+	@Override
+	public void close() throws IOException {
+		try {
+			if (index) {
+				writeIndex();
+			}
+		}
+		finally {
+			jar.close();
+		}
+	}
+
+	private void writeIndex() throws IOException {
+		StringBuilder list = new StringBuilder("JarIndex-Version: 1.0\n\n").append(jarName).append('\n');
+
+		for (String pkg : packages) {
+			list.append(pkg).append('\n');
+		}
+
+		list.append('\n');
+
+		jar.putNextEntry(new JarEntry("META-INF/INDEX.LIST"));
+		jar.write(list.toString().getBytes(StandardCharsets.UTF_8));
+		jar.closeEntry();
+	}
+}
@@ -0,0 +1,150 @@
+/*
+ * Copyright (c) 2022, NWO-I CWI 
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package lang.flybytes.internal;
+
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.objectweb.asm.tree.ClassNode;
+import org.objectweb.asm.tree.MethodNode;
+
+import io.usethesource.vallang.IConstructor;
+
+/**
+ * An in-memory memo of compiled methods, for the incremental mode of the compiler. A method is
+ * stored after its stack map frames and maximum stack sizes have been computed, under a key which 
+ * consists of the structural hash of the Method AST and the hash of the class context it was compiled in.
+ * The class context is the entire Class AST minus its methods, so field initializers, the super class and the 
+ * interface flag are all included.
+ * 
+ * When only one method of a large class changes, then only that method is generated and analyzed again;
+ * the other methods are copied from the memo and the class is written without recomputing any frames.
+ */
+public class MethodCache {
+	private static final int LIMIT = 1 << 16;
+	private static final MethodCache INSTANCE = new MethodCache();
+
+	private final LinkedHashMap<String, MethodNode> methods = new LinkedHashMap<String, MethodNode>(16, 0.75f, true /* access order */) {
+		private static final long serialVersionUID = 1L;
+
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<String, MethodNode> eldest) {
+			return size() > LIMIT;
+		}
+	};
+
+	private MethodCache() { }
+
+	public static MethodCache getInstance() {
+		return INSTANCE;
+	}
+
+	/**
+	 * The key of the class context which all methods of a class depend on.
+	 */
+	public static String context(IConstructor cls, int version, boolean debug) {
+		IConstructor withoutMethods = cls.asWithKeywordParameters().unsetParameter("methods");
+		return BytecodeCache.key(withoutMethods, version, debug);
+	}
+
+	public static String key(String context, IConstructor method) {
+		return BytecodeCache.key(method, context);
+	}
+
+	/**
+	 * Key for methods which the compiler generates itself, such as default constructors.
+	 */
+	public static String key(String context, String generated) {
+		return context + ":" + generated;
+	}
+
+	/**
+	 * @return a private copy of the memoized method, or null if it was not compiled before
+	 */
+	public MethodNode get(String key) {
+		MethodNode cached;
+
+		synchronized (this) {
+			cached = methods.get(key);
+		}
+
+		if (cached == null) {
+			CompilerStatistics.count("incremental.compiled");
+			return null;
+		}
+
+		CompilerStatistics.count("incremental.reused");
+		return copy(cached);
+	}
+
+	/**
+	 * Computes frames and maxs for the freshly generated methods of a class, and replaces them in the class
+	 * by their analyzed versions. Afterwards every method in the class has expanded frames, so the class 
+	 * can be written by a ClassWriter that does not compute anything.
+	 * 
+	 * @param cn     a class in which all methods are either fresh or copied from this cache
+	 * @param fresh  the freshly generated methods of the class, with their keys
+	 * @param framed if true, the fresh methods already have their frames and maxs from the {@link FrameEmitter}
+	 * @param hierarchy the index to find common super classes with, or null to let ASM load the classes
+	 */
+	public void complete(ClassNode cn, Map<MethodNode, String> fresh, boolean framed, HierarchyIndex hierarchy) {
+		if (fresh.isEmpty()) {
+			return;
+		}
+
+		Map<MethodNode, MethodNode> analyzed = framed ? null : FrameEmitter.computeFrames(cn, fresh.keySet(), hierarchy);
+
+		List<MethodNode> methods = cn.methods;
+		for (int i = 0; i < methods.size(); i++) {
+			String key = fresh.get(methods.get(i));
+
+			if (key != null) {
+				MethodNode done = framed ? methods.get(i) : analyzed.get(methods.get(i));
+
+				synchronized (this) {
+					this.methods.put(key, done);
+				}
+
+				// the memo keeps its own instance, such that writing this class can not interfere with later copies
+				methods.set(i, copy(done));
+			}
+		}
+	}
+
+	private static MethodNode copy(MethodNode m) {
+		MethodNode copy = new MethodNode(m.access, m.name, m.desc, m.signature, m.exceptions.toArray(new String[m.exceptions.size()]));
+
+		// copying reuses the Label objects of the source, which we must reset for every copy
+		synchronized (m) {
+			m.instructions.resetLabels();
+			m.accept(copy);
+		}
+
+		return copy;
+	}
+}
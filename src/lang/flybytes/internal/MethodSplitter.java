@@ -0,0 +1,451 @@
+/*
+ * Copyright (c) 2022, NWO-I CWI 
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package lang.flybytes.internal;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.objectweb.asm.Opcodes;
+import org.objectweb.asm.tree.AbstractInsnNode;
+import org.objectweb.asm.tree.IincInsnNode;
+import org.objectweb.asm.tree.IntInsnNode;
+import org.objectweb.asm.tree.LookupSwitchInsnNode;
+import org.objectweb.asm.tree.MethodNode;
+import org.objectweb.asm.tree.TableSwitchInsnNode;
+import org.objectweb.asm.tree.VarInsnNode;
+
+import io.usethesource.vallang.IConstructor;
+import io.usethesource.vallang.IList;
+import io.usethesource.vallang.IString;
+import io.usethesource.vallang.IValue;
+import lang.flybytes.internal.ClassCompiler.AST;
+
+/**
+ * Finds the parts of a method body which can be moved to helper methods, when the method is too large. 
+ * The JVM rejects methods with more than 64KB of bytecode, and the JIT compiler does not compile methods 
+ * above 8000 bytes.
+ * 
+ * A part is the block of a `block` statement, or the statements of a `case` minus its final `break()`. 
+ * A part can be moved when control flow can only leave it at its end: it contains no `return`, 
+ * no `break` or `continue` to a loop or block outside of it, no `asm` and no `invokeSuper`. A case part
+ * may also not declare variables outside of a nested scope, because the next cases can still see those.
+ * 
+ * The compiler passes the local variables which the part uses to the helper method, and copies the ones 
+ * which the part assigns back after the call. A part which needs more than {@link #MAX_PARAMETER_SLOTS} 
+ * slots for those parameters stays where it is, and the compiler selects the parts again without it.
+ */
+public class MethodSplitter {
+	/**
+	 * Parts smaller than this are not worth the call and the copying of variables
+	 */
+	private static final int MIN_PART_NODES = 16;
+
+	/**
+	 * The JVM allows at most 255 slots for the parameters of a method, where longs and doubles take two
+	 */
+	public static final int MAX_PARAMETER_SLOTS = 255;
+
+	private MethodSplitter() { }
+
+	/**
+	 * @return an estimate, from above, of the number of bytes in the Code attribute of a method.
+	 */
+	public static int codeSize(MethodNode m) {
+		int size = 0;
+
+		for (AbstractInsnNode insn = m.instructions.getFirst(); insn != null; insn = insn.getNext()) {
+			switch (insn.getType()) {
+			case AbstractInsnNode.LABEL:
+			case AbstractInsnNode.LINE:
+			case AbstractInsnNode.FRAME:
+				break;
+			case AbstractInsnNode.INSN:
+				size += 1;
+				break;
+			case AbstractInsnNode.INT_INSN:
+				size += ((IntInsnNode) insn).getOpcode() == Opcodes.SIPUSH ? 3 : 2;
+				break;
+			case AbstractInsnNode.VAR_INSN:
+				int slot = ((VarInsnNode) insn).var;
+				size += slot < 4 ? 1 : slot < 256 ? 2 : 4;
+				break;
+			case AbstractInsnNode.IINC_INSN:
+				IincInsnNode iinc = (IincInsnNode) insn;
+				size += iinc.var < 256 && iinc.incr >= Byte.MIN_VALUE && iinc.incr <= Byte.MAX_VALUE ? 3 : 6;
+				break;
+			case AbstractInsnNode.LDC_INSN:
+				size += 3; // LDC_W or LDC2_W in the worst case
+				break;
+			case AbstractInsnNode.JUMP_INSN:
+				size += 3;
+				break;
+			case AbstractInsnNode.TABLESWITCH_INSN:
+				size += 1 + 3 + 12 + 4 * ((TableSwitchInsnNode) insn).labels.size();
+				break;
+			case AbstractInsnNode.LOOKUPSWITCH_INSN:
+				size += 1 + 3 + 8 + 8 * ((LookupSwitchInsnNode) insn).labels.size();
+				break;
+			case AbstractInsnNode.METHOD_INSN:
+			case AbstractInsnNode.INVOKE_DYNAMIC_INSN:
+				size += insn.getOpcode() == Opcodes.INVOKEINTERFACE || insn.getOpcode() == Opcodes.INVOKEDYNAMIC ? 5 : 3;
+				break;
+			case AbstractInsnNode.MULTIANEWARRAY_INSN:
+				size += 4;
+				break;
+			default: // TYPE_INSN, FIELD_INSN
+				size += 3;
+			}
+		}
+
+		return size;
+	}
+
+	/**
+	 * Selects the parts to move out of a method body, the largest first, until the estimated size of
+	 * the rest of the method is below the threshold.
+	 * 
+	 * @param body      the statements of the method
+	 * @param size      the size of the code which was generated for the body
+	 * @param threshold the size to reduce the method to
+	 * @param excluded  parts which may not be moved, though their nested parts may
+	 * @return a set of `block` statements and `case` blocks, compared by identity
+	 */
+	public static Set<IValue> parts(IList body, int size, int threshold, Set<IValue> excluded) {
+		List<IValue> candidates = new ArrayList<>();
+		IdentityHashMap<IValue, IValue> parents = new IdentityHashMap<>();
+		candidates(body, null, candidates, parents);
+
+		IdentityHashMap<IValue, Integer> nodes = new IdentityHashMap<>();
+		for (IValue c : candidates) {
+			nodes.put(c, Simplifier.nodes(c));
+		}
+
+		candidates.removeIf(c -> nodes.get(c) < MIN_PART_NODES || excluded.contains(c));
+		candidates.sort((a, b) -> Integer.compare(nodes.get(b), nodes.get(a)));
+
+		double bytesPerNode = (double) size / Math.max(1, Simplifier.nodes(body));
+		Set<IValue> parts = Collections.newSetFromMap(new IdentityHashMap<>());
+		double remaining = size;
+
+		for (IValue c : candidates) {
+			if (remaining <= threshold) {
+				break;
+			}
+
+			if (hasAncestorIn(c, parents, parts)) {
+				continue; // already moved with its ancestor
+			}
+
+			parts.add(c);
+			remaining -= nodes.get(c) * bytesPerNode;
+		}
+
+		return parts;
+	}
+
+	private static boolean hasAncestorIn(IValue c, IdentityHashMap<IValue, IValue> parents, Set<IValue> parts) {
+		for (IValue p = parents.get(c); p != null; p = parents.get(p)) {
+			if (parts.contains(p)) {
+				return true;
+			}
+		}
+
+		return false;
+	}
+
+	/**
+	 * Collects the candidate parts of a tree, and the nearest candidate which contains each of them.
+	 */
+	private static void candidates(IValue v, IValue parent, List<IValue> candidates, IdentityHashMap<IValue, IValue> parents) {
+		if (v instanceof IList) {
+			for (IValue elem : (IList) v) {
+				candidates(elem, parent, candidates, parents);
+			}
+			return;
+		}
+
+		if (!(v instanceof IConstructor)) {
+			return;
+		}
+
+		IConstructor node = (IConstructor) v;
+		String adt = node.getConstructorType().getAbstractDataType().getName();
+
+		if (adt.equals("Type") || adt.equals("Signature")) {
+			return;
+		}
+
+		if (adt.equals("Stat") && node.getName().equals("block") && isMovable(node)) {
+			candidates.add(node);
+			parents.put(node, parent);
+			parent = node;
+		}
+		else if (adt.equals("Case")) {
+			IList block = AST.$getBlock(node);
+
+			if (isMovable(block)) {
+				candidates.add(block);
+				parents.put(block, parent);
+				parent = block;
+			}
+		}
+
+		for (IValue child : node.getChildren()) {
+			candidates(child, parent, candidates, parents);
+		}
+
+		if (node.mayHaveKeywordParameters()) {
+			for (IValue child : node.asWithKeywordParameters().getParameters().values()) {
+				candidates(child, parent, candidates, parents);
+			}
+		}
+	}
+
+	/**
+	 * @return the statements of a case part which move to the helper method, without the final `break()`.
+	 */
+	public static IList prefix(IList caseBlock) {
+		if (!caseBlock.isEmpty() && isUnlabeled((IConstructor) caseBlock.get(caseBlock.length() - 1), "break")) {
+			return caseBlock.sublist(0, caseBlock.length() - 1);
+		}
+
+		return caseBlock;
+	}
+
+	private static boolean isMovable(IConstructor block) {
+		Deque<String> labels = new ArrayDeque<>();
+		return flowStaysInside(block, labels, 0, 0);
+	}
+
+	private static boolean isMovable(IList caseBlock) {
+		IList prefix = prefix(caseBlock);
+
+		if (prefix.isEmpty() || declaresOutsideScope(prefix)) {
+			return false;
+		}
+
+		return flowStaysInside(prefix, new ArrayDeque<>(), 0, 0);
+	}
+
+	/**
+	 * @param labels the labels of the loops and blocks inside the part around the current node
+	 * @param loops  the number of loops inside the part around the current node
+	 * @param breaks the number of loops, blocks and switches inside the part around the current node
+	 */
+	private static boolean flowStaysInside(IValue v, Deque<String> labels, int loops, int breaks) {
+		if (v instanceof IList) {
+			for (IValue elem : (IList) v) {
+				if (!flowStaysInside(elem, labels, loops, breaks)) {
+					return false;
+				}
+			}
+			return true;
+		}
+
+		if (!(v instanceof IConstructor)) {
+			return true;
+		}
+
+		IConstructor node = (IConstructor) v;
+		String adt = node.getConstructorType().getAbstractDataType().getName();
+
+		if (adt.equals("Type") || adt.equals("Signature")) {
+			return true;
+		}
+
+		boolean pushed = false;
+
+		if (adt.equals("Stat")) {
+			switch (node.getName()) {
+			case "return":
+			case "asm":
+			case "invokeSuper":
+				return false;
+			case "break":
+				return label(node) != null ? labels.contains(label(node)) : breaks > 0;
+			case "continue":
+				return label(node) != null ? labels.contains(label(node)) : loops > 0;
+			case "for":
+			case "while":
+			case "doWhile":
+				loops++;
+				breaks++;
+				pushed = push(node, labels);
+				break;
+			case "block":
+				breaks++;
+				pushed = push(node, labels);
+				break;
+			case "switch":
+				breaks++;
+				break;
+			}
+		}
+
+		try {
+			for (IValue child : node.getChildren()) {
+				if (!flowStaysInside(child, labels, loops, breaks)) {
+					return false;
+				}
+			}
+
+			if (node.mayHaveKeywordParameters()) {
+				for (IValue child : node.asWithKeywordParameters().getParameters().values()) {
+					if (!flowStaysInside(child, labels, loops, breaks)) {
+						return false;
+					}
+				}
+			}
+
+			return true;
+		}
+		finally {
+			if (pushed) {
+				labels.pop();
+			}
+		}
+	}
+
+	private static boolean push(IConstructor node, Deque<String> labels) {
+		String label = label(node);
+
+		if (label != null) {
+			labels.push(label);
+			return true;
+		}
+
+		return false;
+	}
+
+	private static String label(IConstructor node) {
+		IValue label = node.asWithKeywordParameters().getParameter("label");
+		return label != null && !((IString) label).getValue().isEmpty() ? ((IString) label).getValue() : null;
+	}
+
+	private static boolean isUnlabeled(IConstructor stat, String name) {
+		return stat.getName().equals(name) && label(stat) == null;
+	}
+
+	/**
+	 * `if` branches do not open a scope, so their declarations are visible in the rest of the case and in the next cases.
+	 */
+	private static boolean declaresOutsideScope(IList stats) {
+		for (IValue elem : stats) {
+			IConstructor stat = (IConstructor) elem;
+
+			switch (stat.getName()) {
+			case "decl":
+				return true;
+			case "if":
+				for (IValue child : stat.getChildren()) {
+					if (child instanceof IList && declaresOutsideScope((IList) child)) {
+						return true;
+					}
+				}
+				break;
+			}
+		}
+
+		return false;
+	}
+
+	/**
+	 * @return the names of the variables which a part loads or assigns, including the ones it declares itself
+	 */
+	public static Set<String> used(IValue part) {
+		Set<String> names = new LinkedHashSet<>();
+		names(part, names, false);
+		return names;
+	}
+
+	/**
+	 * @return the names of the variables which a part assigns, including the ones it declares itself
+	 */
+	public static Set<String> assigned(IValue part) {
+		Set<String> names = new LinkedHashSet<>();
+		names(part, names, true);
+		return names;
+	}
+
+	private static void names(IValue v, Set<String> names, boolean assigned) {
+		if (v instanceof IList) {
+			for (IValue elem : (IList) v) {
+				names(elem, names, assigned);
+			}
+			return;
+		}
+
+		if (!(v instanceof IConstructor)) {
+			return;
+		}
+
+		IConstructor node = (IConstructor) v;
+		String adt = node.getConstructorType().getAbstractDataType().getName();
+
+		if (adt.equals("Type") || adt.equals("Signature")) {
+			return;
+		}
+
+		if (adt.equals("Exp") || adt.equals("Stat")) {
+			switch (node.getName()) {
+			case "load":
+				if (!assigned) {
+					names.add(AST.$getName(node));
+				}
+				break;
+			case "store":
+			case "inc":
+				names.add(AST.$getName(node));
+				break;
+			case "lambda":
+				// the body of a lambda has its own variables, and only reads the captured ones
+				if (!assigned) {
+					for (IValue capture : (IList) node.get("captures")) {
+						names.add(((IString) capture).getValue());
+					}
+				}
+				return;
+			}
+		}
+
+		for (IValue child : node.getChildren()) {
+			names(child, names, assigned);
+		}
+
+		if (node.mayHaveKeywordParameters()) {
+			for (IValue child : node.asWithKeywordParameters().getParameters().values()) {
+				names(child, names, assigned);
+			}
+		}
+	}
+}
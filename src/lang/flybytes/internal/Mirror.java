@@ -89,7 +89,7 @@ public class Mirror {
 	 * The keys are weak to make sure that irrelevant mirrors are not kept
 	 * in memory here.
 	 */
-	private final Map<IConstructor, Class<?>> unreflectClass = new WeakHashMap<>();
+	private final Map<IConstructor, ClassSource> unreflectClass = new WeakHashMap<>();
 	private final Map<IConstructor, Object> unreflectObject = new WeakHashMap<>();
 
 	public Mirror(IRascalValueFactory rvf, TypeStore store, PrintWriter out) {
@@ -116,7 +116,24 @@ public class Mirror {
 		this.nullCons = store.lookupConstructor(Mirror, "null").iterator().next();
 	}
 
+	/**
+	 * Produces the JVM class of a mirror on demand, such that a class
+	 * can be mirrored before it has been loaded (or even compiled).
+	 */
+	@FunctionalInterface
+	public interface ClassSource {
+		Class<?> get() throws ClassNotFoundException;
+	}
+
 	public IConstructor mirrorClass(String className, Class<?> cls) {
+		return mirrorClass(className, () -> cls);
+	}
+	
+	/**
+	 * Mirrors a class which is resolved only when one of the mirror's
+	 * callbacks is used for the first time.
+	 */
+	public IConstructor mirrorClass(String className, ClassSource cls) {
 		IConstructor result= vf.constructor(classCons, 
 				vf.string(className),
 				invokeStatic(className, cls),
@@ -344,13 +361,13 @@ public class Mirror {
 		});
 	}
 	
-	private IValue newInstance(String className, Class<?> cls) {
+	private IValue newInstance(String className, ClassSource cls) {
 		return vf.function(newInstanceFunc, (actuals, keywordParameters) -> {
 			try {
 				IConstructor signature = (IConstructor) actuals[0];
 				IList args = (IList) actuals[1];
 				
-				Constructor<?> meth = getDeclaredConstructor(cls, signature);
+				Constructor<?> meth = getDeclaredConstructor(cls.get(), signature);
 				Object object = meth.newInstance(unreflect(args));
 				return mirrorObject(object);
 			} catch (IllegalAccessException | IllegalArgumentException
@@ -360,26 +377,26 @@ public class Mirror {
 		});
 	}
 	
-	private IValue getStatic(String className, Class<?> cls) {
+	private IValue getStatic(String className, ClassSource cls) {
 		return vf.function(getStaticFunc, (actuals, keywordParameters) -> {
 			try { 
 				String name = ((IString) actuals[0]).getValue();
-				Field field = cls.getField(name);
+				Field field = cls.get().getField(name);
 				Object result = field.get(null); 
 				return mirrorObject(result);
 			} catch (IllegalAccessException | IllegalArgumentException
-					| SecurityException | NoSuchFieldException e) {
+					| SecurityException | NoSuchFieldException | ClassNotFoundException e) {
 				throw new RuntimeException(e);
 			}
 		});
 	}
 	
 	@SuppressWarnings({"rawtypes","unchecked"})
-	private IValue getAnnotation(String className, Class<?> cls) {
+	private IValue getAnnotation(String className, ClassSource cls) {
 		return vf.function(getAnnotationFunc, (actuals, keywordParameters) -> {
 			try {
 				Class annoClass = Signature.binaryClass((IConstructor) actuals[0]);
-				Annotation annoObject = cls.getAnnotation(annoClass);
+				Annotation annoObject = cls.get().getAnnotation(annoClass);
 				
 				return mirrorObject(annoObject);
 			} catch (IllegalArgumentException | SecurityException | ClassNotFoundException e) {
@@ -420,12 +437,12 @@ public class Mirror {
 		});
 	}
 	
-	private IValue invokeStatic(String className, Class<?> cls) {
+	private IValue invokeStatic(String className, ClassSource cls) {
 		return vf.function(invokeStaticFunc, (actuals, keywordParameters) -> {
 			try {
 				IConstructor signature = (IConstructor) actuals[0];
 				IList args = (IList) actuals[1];
-				Method meth = getMethod(cls, signature);
+				Method meth = getMethod(cls.get(), signature);
 				meth.setAccessible(true);
 				Object obj = meth.invoke(null, unreflect(args));
 				return mirrorObject(obj);
@@ -500,11 +517,15 @@ public class Mirror {
 		case "null": 
 			return null; 
 		case "class": 
-			Class<?> cls = unreflectClass.get(mirror);
+			ClassSource cls = unreflectClass.get(mirror);
 			if (cls == null) {
 				throw RuntimeExceptionFactory.illegalArgument(mirror);
 			}
-			return cls;
+			try {
+				return cls.get();
+			} catch (ClassNotFoundException e) {
+				throw new RuntimeException(e);
+			}
 		case "object": 
 		case "array":
 			Object obj = unreflectObject.get(mirror);
@@ -0,0 +1,532 @@
+/*
+ * Copyright (c) 2022, NWO-I CWI 
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package lang.flybytes.internal;
+
+import java.util.ArrayDeque;
+import java.util.BitSet;
+import java.util.Deque;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+
+import org.objectweb.asm.Opcodes;
+import org.objectweb.asm.Type;
+import org.objectweb.asm.tree.AbstractInsnNode;
+import org.objectweb.asm.tree.FieldInsnNode;
+import org.objectweb.asm.tree.FrameNode;
+import org.objectweb.asm.tree.InsnList;
+import org.objectweb.asm.tree.InsnNode;
+import org.objectweb.asm.tree.IntInsnNode;
+import org.objectweb.asm.tree.JumpInsnNode;
+import org.objectweb.asm.tree.LabelNode;
+import org.objectweb.asm.tree.LdcInsnNode;
+import org.objectweb.asm.tree.LookupSwitchInsnNode;
+import org.objectweb.asm.tree.MethodInsnNode;
+import org.objectweb.asm.tree.MethodNode;
+import org.objectweb.asm.tree.TableSwitchInsnNode;
+import org.objectweb.asm.tree.TryCatchBlockNode;
+import org.objectweb.asm.tree.TypeInsnNode;
+import org.objectweb.asm.tree.VarInsnNode;
+
+/**
+ * A peephole optimizer for the generated bytecode of a method. Every rewrite keeps the method equivalent
+ * and makes it shorter, such that more methods stay below the inlining limits of the JIT compiler:
+ * 
+ * - jumps to a GOTO are threaded to the final target, and a GOTO to a return instruction is replaced by a copy of it;
+ * - a GOTO to the next instruction is removed, as is a conditional jump over a GOTO, by inverting the condition;
+ * - a constant condition, such as `ICONST_0; IFEQ`, becomes a GOTO or disappears;
+ * - a value which is pushed without side-effects and popped right away, such as `DUP; POP`, is not pushed at all;
+ * - `xSTORE n; xLOAD n` becomes `DUP; xSTORE n`;
+ * - a CHECKCAST is removed if the static type of the value is already known to be the same;
+ * - code which can not be reached is removed, with the try blocks that cover no code anymore.
+ * 
+ * Two instructions are only rewritten together if no jump, switch or exception handler can arrive in 
+ * between them. The pass runs before the frames and the maxs are computed, just like the {@link RegisterAllocator},
+ * and it also leaves methods with JSR/RET alone.
+ */
+public class Peephole {
+	private static final int MAX_ROUNDS = 8;
+
+	private final MethodNode method;
+	private final InsnList list;
+	private Set<LabelNode> targets;
+	private final Set<AbstractInsnNode> removed = new HashSet<>();
+
+	private int jumps;
+	private int gotos;
+	private int branches;
+	private int pops;
+	private int stores;
+	private int checkcasts;
+	private int unreachable;
+
+	private Peephole(MethodNode method) {
+		this.method = method;
+		this.list = method.instructions;
+	}
+
+	public static void optimize(MethodNode method) {
+		if (method.instructions.size() == 0) {
+			return;
+		}
+
+		for (AbstractInsnNode insn : method.instructions.toArray()) {
+			int op = insn.getOpcode();
+
+			if (op == Opcodes.JSR || op == Opcodes.RET || insn instanceof FrameNode) {
+				return;
+			}
+		}
+
+		Peephole p = new Peephole(method);
+		p.run();
+
+		CompilerStatistics.count("peephole.methods");
+		CompilerStatistics.add("peephole.jumps", p.jumps);
+		CompilerStatistics.add("peephole.gotos", p.gotos);
+		CompilerStatistics.add("peephole.branches", p.branches);
+		CompilerStatistics.add("peephole.pops", p.pops);
+		CompilerStatistics.add("peephole.stores", p.stores);
+		CompilerStatistics.add("peephole.checkcasts", p.checkcasts);
+		CompilerStatistics.add("peephole.unreachable", p.unreachable);
+	}
+
+	private void run() {
+		boolean changed = true;
+
+		// every rewrite shrinks the method, but one may enable another, so we iterate a few times
+		for (int round = 0; changed && round < MAX_ROUNDS; round++) {
+			targets = targets();
+			changed = thread();
+			changed |= rewrite();
+			changed |= removeUnreachable();
+		}
+	}
+
+	/**
+	 * @return the labels where control may arrive from elsewhere, or where a try block starts or ends
+	 */
+	private Set<LabelNode> targets() {
+		Set<LabelNode> result = new HashSet<>();
+
+		for (AbstractInsnNode insn = list.getFirst(); insn != null; insn = insn.getNext()) {
+			if (insn instanceof JumpInsnNode) {
+				result.add(((JumpInsnNode) insn).label);
+			}
+			else if (insn instanceof TableSwitchInsnNode) {
+				result.add(((TableSwitchInsnNode) insn).dflt);
+				result.addAll(((TableSwitchInsnNode) insn).labels);
+			}
+			else if (insn instanceof LookupSwitchInsnNode) {
+				result.add(((LookupSwitchInsnNode) insn).dflt);
+				result.addAll(((LookupSwitchInsnNode) insn).labels);
+			}
+		}
+
+		for (TryCatchBlockNode tcb : method.tryCatchBlocks) {
+			result.add(tcb.start);
+			result.add(tcb.end);
+			result.add(tcb.handler);
+		}
+
+		return result;
+	}
+
+	/**
+	 * Redirects jumps to a GOTO to the final target of the chain.
+	 */
+	private boolean thread() {
+		boolean changed = false;
+
+		for (AbstractInsnNode insn : list.toArray()) {
+			if (insn instanceof JumpInsnNode) {
+				JumpInsnNode jump = (JumpInsnNode) insn;
+				LabelNode target = finalTarget(jump.label);
+
+				if (target != jump.label) {
+					jump.label = target;
+					jumps++;
+					changed = true;
+				}
+
+				AbstractInsnNode at = real(target);
+
+				// not for ATHROW, which could land in a different exception handler from here
+				if (jump.getOpcode() == Opcodes.GOTO && at != null && at.getOpcode() >= Opcodes.IRETURN && at.getOpcode() <= Opcodes.RETURN) {
+					list.set(jump, new InsnNode(at.getOpcode()));
+					jumps++;
+					changed = true;
+				}
+			}
+			else if (insn instanceof TableSwitchInsnNode) {
+				TableSwitchInsnNode sw = (TableSwitchInsnNode) insn;
+				changed |= thread(sw.labels);
+				LabelNode dflt = finalTarget(sw.dflt);
+				if (dflt != sw.dflt) {
+					sw.dflt = dflt;
+					jumps++;
+					changed = true;
+				}
+			}
+			else if (insn instanceof LookupSwitchInsnNode) {
+				LookupSwitchInsnNode sw = (LookupSwitchInsnNode) insn;
+				changed |= thread(sw.labels);
+				LabelNode dflt = finalTarget(sw.dflt);
+				if (dflt != sw.dflt) {
+					sw.dflt = dflt;
+					jumps++;
+					changed = true;
+				}
+			}
+		}
+
+		return changed;
+	}
+
+	private boolean thread(List<LabelNode> labels) {
+		boolean changed = false;
+
+		for (int i = 0; i < labels.size(); i++) {
+			LabelNode target = finalTarget(labels.get(i));
+
+			if (target != labels.get(i)) {
+				labels.set(i, target);
+				jumps++;
+				changed = true;
+			}
+		}
+
+		return changed;
+	}
+
+	private LabelNode finalTarget(LabelNode label) {
+		Set<LabelNode> seen = new HashSet<>();
+		AbstractInsnNode at = real(label);
+
+		// an infinite loop of GOTOs ends at the label we saw before
+		while (at != null && at.getOpcode() == Opcodes.GOTO && seen.add(label)) {
+			label = ((JumpInsnNode) at).label;
+			at = real(label);
+		}
+
+		return label;
+	}
+
+	/**
+	 * Rewrites the patterns of (pairs of) instructions.
+	 */
+	private boolean rewrite() {
+		boolean changed = false;
+
+		for (AbstractInsnNode insn : list.toArray()) {
+			if (insn.getOpcode() < 0 || removed.contains(insn)) {
+				continue; // removed by an earlier rewrite
+			}
+
+			changed |= rewrite(insn);
+		}
+
+		return changed;
+	}
+
+	private boolean rewrite(AbstractInsnNode insn) {
+		int op = insn.getOpcode();
+		AbstractInsnNode next = following(insn);
+		int nextOp = next != null ? next.getOpcode() : -1;
+
+		if (op == Opcodes.GOTO) {
+			LabelNode label = ((JumpInsnNode) insn).label;
+
+			if (isNext(insn, label)) {
+				remove(insn);
+				gotos++;
+				return true;
+			}
+		}
+
+		if (insn instanceof JumpInsnNode && op != Opcodes.GOTO && nextOp == Opcodes.GOTO) {
+			// IFxx L1; GOTO L2; L1: becomes IFnotxx L2; L1:
+			JumpInsnNode jump = (JumpInsnNode) insn;
+			JumpInsnNode jumpOver = (JumpInsnNode) next;
+
+			if (isNext(next, jump.label)) {
+				replace(jump, new JumpInsnNode(inverse(op), jumpOver.label));
+				remove(jumpOver);
+				branches++;
+				return true;
+			}
+		}
+
+		if ((nextOp == Opcodes.IFEQ || nextOp == Opcodes.IFNE) && isIntConstant(insn)) {
+			boolean taken = (intConstant(insn) == 0) == (nextOp == Opcodes.IFEQ);
+			constantBranch(insn, (JumpInsnNode) next, taken);
+			return true;
+		}
+
+		if ((nextOp == Opcodes.IFNULL || nextOp == Opcodes.IFNONNULL) && op == Opcodes.ACONST_NULL) {
+			constantBranch(insn, (JumpInsnNode) next, nextOp == Opcodes.IFNULL);
+			return true;
+		}
+
+		if ((nextOp == Opcodes.POP && pureSize(insn) == 1) || (nextOp == Opcodes.POP2 && pureSize(insn) == 2)) {
+			remove(insn);
+			remove(next);
+			pops++;
+			return true;
+		}
+
+		if (op >= Opcodes.ISTORE && op <= Opcodes.ASTORE && nextOp == op - (Opcodes.ISTORE - Opcodes.ILOAD) 
+				&& ((VarInsnNode) insn).var == ((VarInsnNode) next).var) {
+			boolean wide = op == Opcodes.LSTORE || op == Opcodes.DSTORE;
+			list.insertBefore(insn, new InsnNode(wide ? Opcodes.DUP2 : Opcodes.DUP));
+			remove(next);
+			stores++;
+			return true;
+		}
+
+		if (op == Opcodes.CHECKCAST && isCast(((TypeInsnNode) insn).desc, preceding(insn))) {
+			remove(insn);
+			checkcasts++;
+			return true;
+		}
+
+		return false;
+	}
+
+	private void constantBranch(AbstractInsnNode constant, JumpInsnNode jump, boolean taken) {
+		if (taken) {
+			replace(jump, new JumpInsnNode(Opcodes.GOTO, jump.label));
+		}
+		else {
+			remove(jump);
+		}
+
+		remove(constant);
+		branches++;
+	}
+
+	private void remove(AbstractInsnNode insn) {
+		list.remove(insn);
+		removed.add(insn);
+	}
+
+	private void replace(AbstractInsnNode old, AbstractInsnNode insn) {
+		list.set(old, insn);
+		removed.add(old);
+	}
+
+	/**
+	 * @return true if the value on top of the stack after `previous` is statically known to be of type `type`
+	 */
+	private static boolean isCast(String type, AbstractInsnNode previous) {
+		if (type.equals("java/lang/Object")) {
+			return true;
+		}
+
+		if (previous == null) {
+			return false;
+		}
+
+		switch (previous.getOpcode()) {
+		case Opcodes.ACONST_NULL:
+			return true;
+		case Opcodes.CHECKCAST:
+			return type.equals(((TypeInsnNode) previous).desc);
+		case Opcodes.LDC:
+			return ((LdcInsnNode) previous).cst instanceof String && type.equals("java/lang/String");
+		case Opcodes.GETFIELD:
+		case Opcodes.GETSTATIC:
+			return isType(type, Type.getType(((FieldInsnNode) previous).desc));
+		case Opcodes.INVOKEVIRTUAL:
+		case Opcodes.INVOKESPECIAL:
+		case Opcodes.INVOKESTATIC:
+		case Opcodes.INVOKEINTERFACE:
+			return isType(type, Type.getReturnType(((MethodInsnNode) previous).desc));
+		default:
+			return false;
+		}
+	}
+
+	private static boolean isType(String internalName, Type type) {
+		return (type.getSort() == Type.OBJECT || type.getSort() == Type.ARRAY) && type.getInternalName().equals(internalName);
+	}
+
+	/**
+	 * @return the number of stack slots pushed by an instruction without side-effects, or 0 
+	 */
+	private static int pureSize(AbstractInsnNode insn) {
+		int op = insn.getOpcode();
+
+		switch (op) {
+		case Opcodes.ACONST_NULL:
+		case Opcodes.FCONST_0: case Opcodes.FCONST_1: case Opcodes.FCONST_2:
+		case Opcodes.ILOAD: case Opcodes.FLOAD: case Opcodes.ALOAD:
+		case Opcodes.DUP:
+			return 1;
+		case Opcodes.LCONST_0: case Opcodes.LCONST_1: 
+		case Opcodes.DCONST_0: case Opcodes.DCONST_1:
+		case Opcodes.LLOAD: case Opcodes.DLOAD:
+		case Opcodes.DUP2:
+			return 2;
+		case Opcodes.LDC: {
+			// loading a class or a method handle may fail, so only the literal constants are pure
+			Object cst = ((LdcInsnNode) insn).cst;
+			return cst instanceof Long || cst instanceof Double ? 2 : cst instanceof String || cst instanceof Integer || cst instanceof Float ? 1 : 0;
+		}
+		default:
+			return isIntConstant(insn) ? 1 : 0;
+		}
+	}
+
+	private static boolean isIntConstant(AbstractInsnNode insn) {
+		int op = insn.getOpcode();
+		return (op >= Opcodes.ICONST_M1 && op <= Opcodes.ICONST_5) || op == Opcodes.BIPUSH || op == Opcodes.SIPUSH;
+	}
+
+	private static int intConstant(AbstractInsnNode insn) {
+		int op = insn.getOpcode();
+		return op == Opcodes.BIPUSH || op == Opcodes.SIPUSH ? ((IntInsnNode) insn).operand : op - Opcodes.ICONST_0;
+	}
+
+	private static boolean isExit(int op) {
+		return (op >= Opcodes.IRETURN && op <= Opcodes.RETURN) || op == Opcodes.ATHROW;
+	}
+
+	private static int inverse(int op) {
+		switch (op) {
+		case Opcodes.IFNULL:    return Opcodes.IFNONNULL;
+		case Opcodes.IFNONNULL: return Opcodes.IFNULL;
+		default:
+			// IFEQ/IFNE, IFLT/IFGE, IFGT/IFLE, IF_ICMPEQ/IF_ICMPNE, ... are pairs with an odd opcode first 
+			return (op & 1) != 0 ? op + 1 : op - 1;
+		}
+	}
+
+	/**
+	 * @return the first real instruction at or after the given one 
+	 */
+	private static AbstractInsnNode real(AbstractInsnNode insn) {
+		while (insn != null && insn.getOpcode() < 0) {
+			insn = insn.getNext();
+		}
+		return insn;
+	}
+
+	/**
+	 * @return true if the label is between the instruction and the next real instruction
+	 */
+	private static boolean isNext(AbstractInsnNode insn, LabelNode label) {
+		for (AbstractInsnNode n = insn.getNext(); n != null && n.getOpcode() < 0; n = n.getNext()) {
+			if (n == label) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * @return the next real instruction, if control can only get there from the given instruction 
+	 */
+	private AbstractInsnNode following(AbstractInsnNode insn) {
+		for (AbstractInsnNode n = insn.getNext(); n != null; n = n.getNext()) {
+			if (n.getOpcode() >= 0) {
+				return n;
+			}
+
+			if (targets.contains(n)) {
+				return null;
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * @return the previous real instruction, if control can only get to the given instruction from there 
+	 */
+	private AbstractInsnNode preceding(AbstractInsnNode insn) {
+		for (AbstractInsnNode n = insn.getPrevious(); n != null; n = n.getPrevious()) {
+			if (n.getOpcode() >= 0) {
+				return isFallThrough(n.getOpcode()) ? n : null;
+			}
+
+			if (targets.contains(n)) {
+				return null;
+			}
+		}
+		return null;
+	}
+
+	private static boolean isFallThrough(int op) {
+		return op != Opcodes.GOTO && !isExit(op) && op != Opcodes.TABLESWITCH && op != Opcodes.LOOKUPSWITCH;
+	}
+
+	/**
+	 * Removes the instructions which can not be reached from the start of the method, and the try blocks which 
+	 * do not cover any instructions anymore.
+	 */
+	private boolean removeUnreachable() {
+		AbstractInsnNode[] insns = list.toArray();
+		int[][] successors = RegisterAllocator.successors(method, insns);
+		BitSet reached = new BitSet(insns.length);
+		Deque<Integer> todo = new ArrayDeque<>();
+
+		reached.set(0);
+		todo.push(0);
+
+		while (!todo.isEmpty()) {
+			for (int s : successors[todo.pop()]) {
+				if (s >= 0 && !reached.get(s)) {
+					reached.set(s);
+					todo.push(s);
+				}
+			}
+		}
+
+		boolean changed = false;
+
+		for (int i = 0; i < insns.length; i++) {
+			if (!reached.get(i) && insns[i].getOpcode() >= 0) {
+				list.remove(insns[i]);
+				unreachable++;
+				changed = true;
+			}
+		}
+
+		for (Iterator<TryCatchBlockNode> it = method.tryCatchBlocks.iterator(); it.hasNext(); ) {
+			TryCatchBlockNode tcb = it.next();
+
+			if (real(tcb.start) == real(tcb.end)) {
+				// an empty range is not allowed in the exception table
+				it.remove();
+				changed = true;
+			}
+		}
+
+		return changed;
+	}
+}
@@ -0,0 +1,391 @@
+/*
+ * Copyright (c) 2022, NWO-I CWI 
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package lang.flybytes.internal;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+import org.objectweb.asm.Opcodes;
+import org.objectweb.asm.Type;
+import org.objectweb.asm.tree.AbstractInsnNode;
+import org.objectweb.asm.tree.FrameNode;
+import org.objectweb.asm.tree.IincInsnNode;
+import org.objectweb.asm.tree.InsnList;
+import org.objectweb.asm.tree.JumpInsnNode;
+import org.objectweb.asm.tree.LabelNode;
+import org.objectweb.asm.tree.LocalVariableAnnotationNode;
+import org.objectweb.asm.tree.LocalVariableNode;
+import org.objectweb.asm.tree.LookupSwitchInsnNode;
+import org.objectweb.asm.tree.MethodNode;
+import org.objectweb.asm.tree.TableSwitchInsnNode;
+import org.objectweb.asm.tree.TryCatchBlockNode;
+import org.objectweb.asm.tree.VarInsnNode;
+
+/**
+ * Reassigns the local variable slots of a method, such that variables whose live ranges do not overlap
+ * share a slot. A variable here is a pair of an original slot and a JVM category (one or two slots wide); 
+ * the parameters keep their slots. The allocation is a greedy coloring of the interference graph, in order of 
+ * first occurrence, which is computed from a standard backward liveness analysis on the instructions.
+ * 
+ * The pass runs before the frames and the maxs are computed, by ASM or by the {@link FrameEmitter}, so the 
+ * types of the reused slots are simply recomputed. Methods with JSR/RET or with explicit frames are left alone.
+ */
+public class RegisterAllocator {
+	private final MethodNode method;
+	private final AbstractInsnNode[] insns;
+	private final Map<Long, Integer> variables = new HashMap<>();
+	private final List<int[]> keys = new ArrayList<>(); // {slot, size} per variable
+	private int params;
+
+	private RegisterAllocator(MethodNode method) {
+		this.method = method;
+		this.insns = method.instructions.toArray();
+	}
+
+	public static void allocate(MethodNode method) {
+		if (method.instructions.size() == 0) {
+			return;
+		}
+
+		new RegisterAllocator(method).run();
+	}
+
+	private void run() {
+		for (AbstractInsnNode insn : insns) {
+			int op = insn.getOpcode();
+			if (op == Opcodes.JSR || op == Opcodes.RET || insn instanceof FrameNode) {
+				return;
+			}
+		}
+
+		params = Type.getArgumentsAndReturnSizes(method.desc) >> 2;
+		if ((method.access & Opcodes.ACC_STATIC) != 0) {
+			params--; // there is no `this`
+		}
+
+		int before = params;
+		for (AbstractInsnNode insn : insns) {
+			int var = variable(insn);
+			if (var != -1) {
+				before = Math.max(before, slot(var) + size(var));
+			}
+		}
+
+		int[][] successors = successors(method, insns);
+		BitSet[] liveOut = liveness(successors);
+		BitSet[] interference = interference(liveOut);
+		int[] assignment = assign(interference);
+
+		int after = params;
+		for (int v = 0; v < assignment.length; v++) {
+			after = Math.max(after, assignment[v] + size(v));
+		}
+
+		rewrite(assignment);
+		method.maxLocals = after;
+
+		CompilerStatistics.count("registerAllocation.methods");
+		CompilerStatistics.add("registerAllocation.maxLocals.before", before);
+		CompilerStatistics.add("registerAllocation.maxLocals.after", after);
+	}
+
+	/**
+	 * @return the variable index of the local accessed by this instruction, or -1 
+	 */
+	private int variable(AbstractInsnNode insn) {
+		if (insn instanceof VarInsnNode) {
+			int op = insn.getOpcode();
+			boolean wide = op == Opcodes.LLOAD || op == Opcodes.DLOAD || op == Opcodes.LSTORE || op == Opcodes.DSTORE;
+			return variable(((VarInsnNode) insn).var, wide ? 2 : 1);
+		}
+		else if (insn instanceof IincInsnNode) {
+			return variable(((IincInsnNode) insn).var, 1);
+		}
+
+		return -1;
+	}
+
+	private int variable(int slot, int size) {
+		Long key = ((long) slot << 1) | (size - 1);
+		Integer index = variables.get(key);
+
+		if (index == null) {
+			index = keys.size();
+			keys.add(new int[] { slot, size });
+			variables.put(key, index);
+		}
+
+		return index;
+	}
+
+	private int slot(int var) {
+		return keys.get(var)[0];
+	}
+
+	private int size(int var) {
+		return keys.get(var)[1];
+	}
+
+	private boolean isUse(AbstractInsnNode insn) {
+		int op = insn.getOpcode();
+		return (op >= Opcodes.ILOAD && op <= Opcodes.ALOAD) || op == Opcodes.IINC;
+	}
+
+	private boolean isDef(AbstractInsnNode insn) {
+		int op = insn.getOpcode();
+		return (op >= Opcodes.ISTORE && op <= Opcodes.ASTORE) || op == Opcodes.IINC;
+	}
+
+	/**
+	 * @return for every instruction the indexes of the instructions which may execute next, including exception handlers
+	 */
+	static int[][] successors(MethodNode method, AbstractInsnNode[] insns) {
+		InsnList list = method.instructions;
+		List<List<Integer>> succ = new ArrayList<>(insns.length);
+
+		for (int i = 0; i < insns.length; i++) {
+			List<Integer> s = new ArrayList<>(2);
+			AbstractInsnNode insn = insns[i];
+			int op = insn.getOpcode();
+
+			if (insn instanceof JumpInsnNode) {
+				s.add(list.indexOf(((JumpInsnNode) insn).label));
+				if (op != Opcodes.GOTO && i + 1 < insns.length) {
+					s.add(i + 1);
+				}
+			}
+			else if (insn instanceof TableSwitchInsnNode) {
+				TableSwitchInsnNode sw = (TableSwitchInsnNode) insn;
+				s.add(list.indexOf(sw.dflt));
+				for (LabelNode l : sw.labels) {
+					s.add(list.indexOf(l));
+				}
+			}
+			else if (insn instanceof LookupSwitchInsnNode) {
+				LookupSwitchInsnNode sw = (LookupSwitchInsnNode) insn;
+				s.add(list.indexOf(sw.dflt));
+				for (LabelNode l : sw.labels) {
+					s.add(list.indexOf(l));
+				}
+			}
+			else if ((op >= Opcodes.IRETURN && op <= Opcodes.RETURN) || op == Opcodes.ATHROW) {
+				// no successors
+			}
+			else if (i + 1 < insns.length) {
+				s.add(i + 1);
+			}
+
+			succ.add(s);
+		}
+
+		// every instruction in a try block may jump to its handler
+		for (TryCatchBlockNode tcb : method.tryCatchBlocks) {
+			int handler = list.indexOf(tcb.handler);
+			for (int i = list.indexOf(tcb.start); i < list.indexOf(tcb.end); i++) {
+				succ.get(i).add(handler);
+			}
+		}
+
+		int[][] result = new int[insns.length][];
+		for (int i = 0; i < insns.length; i++) {
+			result[i] = succ.get(i).stream().mapToInt(Integer::intValue).toArray();
+		}
+		return result;
+	}
+
+	private BitSet[] liveness(int[][] successors) {
+		int n = insns.length;
+		BitSet[] liveIn = new BitSet[n];
+		BitSet[] liveOut = new BitSet[n];
+		int[] vars = new int[n];
+
+		for (int i = 0; i < n; i++) {
+			liveIn[i] = new BitSet();
+			liveOut[i] = new BitSet();
+			vars[i] = variable(insns[i]);
+		}
+
+		boolean changed = true;
+		while (changed) {
+			changed = false;
+
+			for (int i = n - 1; i >= 0; i--) {
+				BitSet out = liveOut[i];
+				for (int s : successors[i]) {
+					out.or(liveIn[s]);
+				}
+
+				BitSet in = (BitSet) out.clone();
+				int v = vars[i];
+				if (v != -1) {
+					if (isDef(insns[i])) {
+						in.clear(v);
+					}
+					if (isUse(insns[i])) {
+						in.set(v);
+					}
+				}
+
+				if (!in.equals(liveIn[i])) {
+					liveIn[i] = in;
+					changed = true;
+				}
+			}
+		}
+
+		return liveOut;
+	}
+
+	private BitSet[] interference(BitSet[] liveOut) {
+		BitSet[] graph = new BitSet[keys.size()];
+		for (int v = 0; v < graph.length; v++) {
+			graph[v] = new BitSet();
+		}
+
+		for (int i = 0; i < insns.length; i++) {
+			if (isDef(insns[i])) {
+				int d = variable(insns[i]);
+				BitSet live = liveOut[i];
+
+				for (int v = live.nextSetBit(0); v >= 0; v = live.nextSetBit(v + 1)) {
+					if (v != d) {
+						graph[d].set(v);
+						graph[v].set(d);
+					}
+				}
+			}
+		}
+
+		return graph;
+	}
+
+	private int[] assign(BitSet[] interference) {
+		int[] assignment = new int[keys.size()];
+
+		// variables are numbered in order of first occurrence, which is the allocation order
+		for (int v = 0; v < assignment.length; v++) {
+			if (slot(v) + size(v) <= params) {
+				assignment[v] = slot(v);
+				continue;
+			}
+
+			int candidate = params;
+			boolean conflict = true;
+
+			while (conflict) {
+				conflict = false;
+				BitSet others = interference[v];
+
+				for (int u = others.nextSetBit(0); u >= 0 && u < v; u = others.nextSetBit(u + 1)) {
+					if (candidate < assignment[u] + size(u) && assignment[u] < candidate + size(v)) {
+						conflict = true;
+						candidate++;
+						break;
+					}
+				}
+
+			}
+
+			assignment[v] = candidate;
+		}
+
+		return assignment;
+	}
+
+	private void rewrite(int[] assignment) {
+		for (AbstractInsnNode insn : insns) {
+			int v = variable(insn);
+
+			if (insn instanceof VarInsnNode) {
+				((VarInsnNode) insn).var = assignment[v];
+			}
+			else if (insn instanceof IincInsnNode) {
+				((IincInsnNode) insn).var = assignment[v];
+			}
+		}
+
+		if (method.localVariables != null) {
+			for (Iterator<LocalVariableNode> it = method.localVariables.iterator(); it.hasNext(); ) {
+				LocalVariableNode lv = it.next();
+				Integer slot = remap(assignment, lv.index, Type.getType(lv.desc).getSize());
+
+				if (lv.index < params) {
+					// parameters keep their slots, even if they are never accessed
+					continue;
+				}
+				else if (slot == null) {
+					// never accessed, so it has no slot anymore 
+					it.remove();
+				}
+				else {
+					lv.index = slot;
+				}
+			}
+		}
+
+		rewrite(assignment, method.visibleLocalVariableAnnotations);
+		rewrite(assignment, method.invisibleLocalVariableAnnotations);
+	}
+
+	private void rewrite(int[] assignment, List<LocalVariableAnnotationNode> annotations) {
+		if (annotations == null) {
+			return;
+		}
+
+		for (Iterator<LocalVariableAnnotationNode> it = annotations.iterator(); it.hasNext(); ) {
+			LocalVariableAnnotationNode an = it.next();
+
+			for (int i = 0; i < an.index.size(); i++) {
+				if (an.index.get(i) < params) {
+					continue;
+				}
+
+				Integer slot = remap(assignment, an.index.get(i), 1);
+
+				if (slot == null) {
+					slot = remap(assignment, an.index.get(i), 2);
+				}
+
+				if (slot == null) {
+					it.remove();
+					break;
+				}
+
+				an.index.set(i, slot);
+			}
+		}
+	}
+
+	private Integer remap(int[] assignment, int slot, int size) {
+		Integer v = variables.get(((long) slot << 1) | (size - 1));
+		return v == null ? null : assignment[v];
+	}
+}
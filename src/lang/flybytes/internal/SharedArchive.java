@@ -0,0 +1,179 @@
+/*
+ * Copyright (c) 2022, NWO-I CWI 
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package lang.flybytes.internal;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.rascalmpl.uri.URIResolverRegistry;
+import org.rascalmpl.uri.URIUtil;
+
+import io.usethesource.vallang.IConstructor;
+import io.usethesource.vallang.IList;
+import io.usethesource.vallang.ISourceLocation;
+import io.usethesource.vallang.IString;
+import io.usethesource.vallang.IValue;
+import lang.flybytes.internal.ClassCompiler.AST;
+
+/**
+ * A dynamic AppCDS archive of generated classes: the classes are loaded, parsed and verified once by a 
+ * training run of a JVM with `-XX:ArchiveClassesAtExit`, and the next JVMs which start with 
+ * `-XX:SharedArchiveFile` map the result into memory instead of doing all that again.
+ * 
+ * The JVM only archives classes which come from a JAR on the classpath, so an archive folder contains:
+ * 
+ * - `classes.jar` with the generated classes, and a copy of the ClassListLoader;
+ * - `classes.lst` with the internal names of the generated classes, one per line, in the format of `-XX:DumpLoadedClassList`;
+ * - `classes.jsa`, the archive itself.
+ * 
+ * An archive can only be used by the same JVM binary which created it, and only with the same classpath, 
+ * so the training runs on the JVM of the compiler itself. Dynamic archives exist from JDK 13 on.
+ */
+public class SharedArchive {
+	public static final String JAR = "classes.jar";
+	public static final String CLASS_LIST = "classes.lst";
+	public static final String ARCHIVE = "classes.jsa";
+
+	/**
+	 * @return true if the JVM of the compiler can create dynamic archives
+	 */
+	public static boolean isSupported() {
+		return Runtime.version().feature() >= 13;
+	}
+
+	/**
+	 * @return the class file of the ClassListLoader, to be copied into the JAR
+	 */
+	public static byte[] loaderClass() throws IOException {
+		try (InputStream in = ClassListLoader.class.getResourceAsStream(ClassListLoader.class.getSimpleName() + ".class")) {
+			if (in == null) {
+				throw new IOException("class file of " + ClassListLoader.class.getName() + " not found");
+			}
+
+			return in.readAllBytes();
+		}
+	}
+
+	public static void writeClassList(ISourceLocation folder, IList classes) throws IOException {
+		try (OutputStream out = URIResolverRegistry.getInstance().getOutputStream(URIUtil.getChildLocation(folder, CLASS_LIST), false)) {
+			StringBuilder list = new StringBuilder();
+
+			for (IValue elem : classes) {
+				list.append(AST.$getName(AST.$getType((IConstructor) elem)).replace('.', '/')).append('\n');
+			}
+
+			out.write(list.toString().getBytes(StandardCharsets.UTF_8));
+		}
+	}
+
+	/**
+	 * @param folder    the archive folder
+	 * @param classpath the other JARs which the generated classes need
+	 * @param mainClass the class to run, or null to load all classes of the class list 
+	 * @param arguments the arguments for the main class
+	 * @param archive   the JVM option for the archive, or null for none
+	 * @param shared    if true, the JVM fails to start when it can not use the archive
+	 * @return the command line of a JVM which runs the JAR of the folder
+	 */
+	public static List<String> command(ISourceLocation folder, IList classpath, String mainClass, IList arguments, String archive, boolean shared) throws IOException {
+		List<String> command = new ArrayList<>();
+		command.add(Paths.get(System.getProperty("java.home"), "bin", "java").toString());
+
+		if (archive != null) {
+			command.add(archive + path(URIUtil.getChildLocation(folder, ARCHIVE)));
+		}
+
+		if (shared) {
+			// otherwise a JVM which can not map the archive silently runs without it
+			command.add("-Xshare:on");
+		}
+
+		StringBuilder cp = new StringBuilder(path(URIUtil.getChildLocation(folder, JAR)));
+
+		for (IValue entry : classpath) {
+			cp.append(File.pathSeparatorChar).append(path((ISourceLocation) entry));
+		}
+
+		command.add("-cp");
+		command.add(cp.toString());
+
+		if (mainClass == null) {
+			command.add(ClassListLoader.class.getName());
+			command.add(path(URIUtil.getChildLocation(folder, CLASS_LIST)));
+		}
+		else {
+			command.add(mainClass);
+		}
+
+		for (IValue arg : arguments) {
+			command.add(((IString) arg).getValue());
+		}
+
+		return command;
+	}
+
+	/**
+	 * Runs a JVM and copies its output to `out`
+	 * @return the exit code of the JVM
+	 */
+	public static int run(List<String> command, PrintWriter out) throws IOException, InterruptedException {
+		Process process = new ProcessBuilder(command).redirectErrorStream(true).start();
+
+		try (BufferedReader output = new BufferedReader(new InputStreamReader(process.getInputStream(), StandardCharsets.UTF_8))) {
+			String line;
+
+			while ((line = output.readLine()) != null) {
+				out.println(line);
+			}
+		}
+
+		out.flush();
+		return process.waitFor();
+	}
+
+	/**
+	 * @return the path in the file system of a location, which the JVM on the command line can read
+	 */
+	private static String path(ISourceLocation loc) throws IOException {
+		ISourceLocation physical = URIResolverRegistry.getInstance().logicalToPhysical(loc);
+
+		if (!"file".equals(physical.getScheme())) {
+			throw new IllegalArgumentException(loc + " is not a file in the file system");
+		}
+
+		return Paths.get(physical.getURI()).toString();
+	}
+}
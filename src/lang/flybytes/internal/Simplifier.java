@@ -0,0 +1,597 @@
+/*
+ * Copyright (c) 2022, NWO-I CWI 
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package lang.flybytes.internal;
+
+import java.util.Map;
+
+import org.rascalmpl.values.ValueFactoryFactory;
+
+import io.usethesource.vallang.IBool;
+import io.usethesource.vallang.IConstructor;
+import io.usethesource.vallang.IInteger;
+import io.usethesource.vallang.IList;
+import io.usethesource.vallang.IListWriter;
+import io.usethesource.vallang.IReal;
+import io.usethesource.vallang.IValue;
+import io.usethesource.vallang.IValueFactory;
+import io.usethesource.vallang.type.Type;
+import io.usethesource.vallang.type.TypeFactory;
+import io.usethesource.vallang.type.TypeStore;
+import lang.flybytes.internal.ClassCompiler.AST;
+import lang.flybytes.internal.Dispatch.ExpKind;
+import lang.flybytes.internal.Dispatch.TypeKind;
+
+/**
+ * Constant folding and algebraic simplification of the Exp and Stat trees of a method, before the compiler
+ * emits any code for it. Folding follows the instructions which the compiler would otherwise emit, so:
+ * 
+ * - arithmetic on byte, short and char is int arithmetic, like IADD, without narrowing the result;
+ * - division by zero is not folded, such that the ArithmeticException still happens at run-time;
+ * - coercions fold like the conversion instructions, so only coercions from and to long, float and double change values;
+ * - results which are not representable as a Rascal `real`, such as NaN, the infinities and -0.0, are not folded.
+ * 
+ * Identities like `mul(e, const(integer(), 1))` and `coerce(integer(), integer(), e)` are replaced by `e`. Since
+ * the type of `e` is unknown here, the input is assumed to be well-typed. The identities that would drop the 
+ * evaluation of an expression with possible side-effects, like `mul(e, const(integer(), 0))`, are left alone.
+ * 
+ * In statement lists, an `if` with a constant condition is replaced by the statements of the branch that is taken,
+ * which is what the compiler would generate for it anyway, and a `while(false(), ...)` loop is removed.
+ */
+public class Simplifier {
+	private static final IValueFactory vf = ValueFactoryFactory.getValueFactory();
+	private static final TypeFactory tf = TypeFactory.getInstance();
+	private static final TypeStore store = new TypeStore();
+	private static final Type EXP = tf.abstractDataType(store, "Exp");
+	private static final IConstructor TRUE = vf.constructor(tf.constructor(store, EXP, "true"));
+	private static final IConstructor FALSE = vf.constructor(tf.constructor(store, EXP, "false"));
+
+	private int eliminated = 0;
+
+	private Simplifier() { }
+
+	/**
+	 * @param method a Method AST
+	 * @return the method with simplified expressions and statements
+	 */
+	public static IConstructor simplify(IConstructor method) {
+		Simplifier s = new Simplifier();
+		IConstructor result = (IConstructor) s.visit(method);
+		CompilerStatistics.count("constantFolding.methods");
+		CompilerStatistics.add("constantFolding.eliminated", s.eliminated);
+		return result;
+	}
+
+	private IValue visit(IValue v) {
+		if (v instanceof IConstructor) {
+			return visit((IConstructor) v);
+		}
+		else if (v instanceof IList) {
+			return visit((IList) v);
+		}
+
+		return v;
+	}
+
+	private IConstructor visit(IConstructor node) {
+		String adt = node.getConstructorType().getAbstractDataType().getName();
+
+		if (adt.equals("Type") || adt.equals("Signature")) {
+			return node; // never contain code
+		}
+
+		for (int i = 0; i < node.arity(); i++) {
+			IValue child = node.get(i);
+			IValue result = visit(child);
+
+			if (result != child) {
+				node = node.set(i, result);
+			}
+		}
+
+		if (node.mayHaveKeywordParameters()) {
+			for (Map.Entry<String, IValue> e : node.asWithKeywordParameters().getParameters().entrySet()) {
+				IValue result = visit(e.getValue());
+
+				if (result != e.getValue()) {
+					node = node.asWithKeywordParameters().setParameter(e.getKey(), result);
+				}
+			}
+		}
+
+		if (adt.equals("Exp")) {
+			IConstructor result = expression(node);
+
+			if (result == null) {
+				return node; // the folded value is not representable
+			}
+
+			if (result != node) {
+				eliminated += nodes(node) - nodes(result);
+			}
+
+			return result;
+		}
+
+		return node;
+	}
+
+	private IList visit(IList list) {
+		IListWriter w = null;
+
+		for (int i = 0; i < list.length(); i++) {
+			IValue elem = list.get(i);
+			IValue result = visit(elem);
+			IList spliced = result instanceof IConstructor ? statement((IConstructor) result) : null;
+
+			if (spliced != null) {
+				eliminated += nodes(result) - nodes(spliced);
+			}
+
+			if (w == null && (result != elem || spliced != null)) {
+				// from here on the list is different
+				w = vf.listWriter();
+
+				for (int j = 0; j < i; j++) {
+					w.append(list.get(j));
+				}
+			}
+
+			if (w != null) {
+				if (spliced != null) {
+					for (IValue s : spliced) {
+						w.append(s);
+					}
+				}
+				else {
+					w.append(result);
+				}
+			}
+		}
+
+		return w != null ? w.done() : list;
+	}
+
+	/**
+	 * @return the statements which replace the given statement in its list, or null if it stays
+	 */
+	private IList statement(IConstructor stat) {
+		if (!stat.getConstructorType().getAbstractDataType().getName().equals("Stat")) {
+			return null;
+		}
+
+		switch (Dispatch.STAT.of(stat)) {
+		case IF: {
+			Boolean cond = bool(AST.$getCondition(stat));
+
+			if (cond == null) {
+				return null;
+			}
+
+			if (cond) {
+				return AST.$getThenBlock(stat);
+			}
+
+			return stat.arity() == 3 ? AST.$getElseBlock(stat) : vf.list();
+		}
+		case WHILE: 
+			return Boolean.FALSE.equals(bool(AST.$getCondition(stat))) ? vf.list() : null;
+		case DO:
+			return isConstant((IConstructor) stat.get("exp")) ? vf.list() : null;
+		default:
+			return null;
+		}
+	}
+
+	/**
+	 * @return the simplified expression, or null if folding produced a value which can not be represented
+	 */
+	private IConstructor expression(IConstructor exp) {
+		switch (Dispatch.EXP.of(exp)) {
+		case COND: {
+			Boolean cond = bool(AST.$getCondition(exp));
+			return cond == null ? exp : cond ? AST.$getThenExp(exp) : AST.$getElseExp(exp);
+		}
+		case NEG:
+			return neg(exp, AST.$getArg(exp));
+		case SAND: {
+			Boolean lhs = bool(AST.$getLhs(exp));
+			if (lhs != null) {
+				return lhs ? AST.$getRhs(exp) : FALSE;
+			}
+			return Boolean.TRUE.equals(bool(AST.$getRhs(exp))) ? AST.$getLhs(exp) : exp;
+		}
+		case SOR: {
+			Boolean lhs = bool(AST.$getLhs(exp));
+			if (lhs != null) {
+				return lhs ? TRUE : AST.$getRhs(exp);
+			}
+			return Boolean.FALSE.equals(bool(AST.$getRhs(exp))) ? AST.$getLhs(exp) : exp;
+		}
+		case COERCE:
+			return coerce(exp, AST.$getFrom(exp), AST.$getTo(exp), AST.$getArg(exp));
+		case EQ: case NE: case LT: case LE: case GT: case GE:
+			return compare(exp, AST.$getLhs(exp), AST.$getRhs(exp));
+		case ADD: case SUB: case MUL: case DIV: case REM: case AND: case OR: case XOR:
+			return arithmetic(exp, AST.$getLhs(exp), AST.$getRhs(exp));
+		case SHL: case SHR: case USHR:
+			return shift(exp, AST.$getLhs(exp), AST.$getRhs(exp));
+		default:
+			return exp;
+		}
+	}
+
+	private IConstructor neg(IConstructor exp, IConstructor arg) {
+		if (Dispatch.EXP.of(arg) == ExpKind.NEG) {
+			return AST.$getArg(arg);
+		}
+
+		Boolean b = bool(arg);
+		if (b != null) {
+			return b ? FALSE : TRUE;
+		}
+
+		Number n = number(arg);
+		if (n == null) {
+			return exp;
+		}
+
+		switch (kind(arg)) {
+		case LONG:   return constant(arg, -n.longValue());
+		case FLOAT:  return constant(arg, -n.floatValue());
+		case DOUBLE: return constant(arg, -n.doubleValue());
+		default:     return constant(arg, -n.intValue());
+		}
+	}
+
+	private IConstructor coerce(IConstructor exp, IConstructor from, IConstructor to, IConstructor arg) {
+		TypeKind f = Dispatch.TYPE.of(from);
+		TypeKind t = Dispatch.TYPE.of(to);
+
+		if (from.equals(to) && isNumeric(f)) {
+			return arg; // the compiler emits no instruction for this
+		}
+
+		Number n = number(arg);
+		if (n == null || kind(arg) != f || !isNumeric(t)) {
+			return exp;
+		}
+
+		Number result;
+		switch (t) {
+		case LONG:   result = f == TypeKind.FLOAT ? (long) n.floatValue() : f == TypeKind.DOUBLE ? (long) n.doubleValue() : n.longValue(); break;
+		case FLOAT:  result = f == TypeKind.DOUBLE ? (float) n.doubleValue() : f == TypeKind.LONG ? (float) n.longValue() : (float) n.intValue(); break;
+		case DOUBLE: result = f == TypeKind.FLOAT ? (double) n.floatValue() : f == TypeKind.LONG ? (double) n.longValue() : (double) n.intValue(); break;
+		default:     result = f == TypeKind.FLOAT ? (int) n.floatValue() : f == TypeKind.DOUBLE ? (int) n.doubleValue() : n.intValue(); break;
+		}
+
+		return constant(arg.set(0, to), result);
+	}
+
+	private IConstructor compare(IConstructor exp, IConstructor lhs, IConstructor rhs) {
+		Boolean result = null;
+		Boolean bl = bool(lhs), br = bool(rhs);
+
+		if (bl != null && br != null) {
+			int c = Boolean.compare(bl, br);
+			result = test(exp, c);
+		}
+		else {
+			Number l = number(lhs), r = number(rhs);
+
+			if (l == null || r == null || kind(lhs) != kind(rhs)) {
+				return exp;
+			}
+
+			switch (kind(lhs)) {
+			case LONG:   result = test(exp, Long.compare(l.longValue(), r.longValue())); break;
+			case FLOAT:  result = test(exp, l.floatValue() < r.floatValue() ? -1 : l.floatValue() > r.floatValue() ? 1 : 0); break;
+			case DOUBLE: result = test(exp, l.doubleValue() < r.doubleValue() ? -1 : l.doubleValue() > r.doubleValue() ? 1 : 0); break;
+			default:     result = test(exp, Integer.compare(l.intValue(), r.intValue())); break;
+			}
+		}
+
+		return result ? TRUE : FALSE;
+	}
+
+	private static boolean test(IConstructor exp, int c) {
+		switch (Dispatch.EXP.of(exp)) {
+		case EQ: return c == 0;
+		case NE: return c != 0;
+		case LT: return c < 0;
+		case LE: return c <= 0;
+		case GT: return c > 0;
+		default: return c >= 0;
+		}
+	}
+
+	private IConstructor arithmetic(IConstructor exp, IConstructor lhs, IConstructor rhs) {
+		ExpKind op = Dispatch.EXP.of(exp);
+		Boolean bl = bool(lhs), br = bool(rhs);
+
+		if (op == ExpKind.AND || op == ExpKind.OR || op == ExpKind.XOR) {
+			if (bl != null && br != null) {
+				boolean result = op == ExpKind.AND ? bl & br : op == ExpKind.OR ? bl | br : bl ^ br;
+				return result ? TRUE : FALSE;
+			}
+			else if (br != null && (op == ExpKind.AND ? br : !br)) {
+				return lhs; // e & true, e | false, e ^ false
+			}
+			else if (bl != null && (op == ExpKind.AND ? bl : !bl)) {
+				return rhs;
+			}
+		}
+
+		Number l = number(lhs), r = number(rhs);
+
+		if (l != null && r != null) {
+			return kind(lhs) == kind(rhs) ? fold(exp, op, lhs, l, r) : exp;
+		}
+		else if (r != null && isIdentity(op, kind(rhs), r, true)) {
+			return lhs;
+		}
+		else if (l != null && isIdentity(op, kind(lhs), l, false)) {
+			return rhs;
+		}
+
+		return exp;
+	}
+
+	private IConstructor fold(IConstructor exp, ExpKind op, IConstructor lhs, Number l, Number r) {
+		switch (kind(lhs)) {
+		case LONG: {
+			long a = l.longValue(), b = r.longValue();
+			switch (op) {
+			case ADD: return constant(lhs, a + b);
+			case SUB: return constant(lhs, a - b);
+			case MUL: return constant(lhs, a * b);
+			case DIV: return b == 0 ? exp : constant(lhs, a / b);
+			case REM: return b == 0 ? exp : constant(lhs, a % b);
+			default:  return exp; // the compiler does not support bitwise operators on longs 
+			}
+		}
+		case FLOAT: {
+			float a = l.floatValue(), b = r.floatValue();
+			switch (op) {
+			case ADD: return constant(lhs, a + b);
+			case SUB: return constant(lhs, a - b);
+			case MUL: return constant(lhs, a * b);
+			case DIV: return constant(lhs, a / b);
+			case REM: return constant(lhs, a % b);
+			default:  return exp;
+			}
+		}
+		case DOUBLE: {
+			double a = l.doubleValue(), b = r.doubleValue();
+			switch (op) {
+			case ADD: return constant(lhs, a + b);
+			case SUB: return constant(lhs, a - b);
+			case MUL: return constant(lhs, a * b);
+			case DIV: return constant(lhs, a / b);
+			case REM: return constant(lhs, a % b);
+			default:  return exp;
+			}
+		}
+		default: {
+			int a = l.intValue(), b = r.intValue();
+			switch (op) {
+			case ADD: return constant(lhs, a + b);
+			case SUB: return constant(lhs, a - b);
+			case MUL: return constant(lhs, a * b);
+			case DIV: return b == 0 ? exp : constant(lhs, a / b);
+			case REM: return b == 0 ? exp : constant(lhs, a % b);
+			case AND: return constant(lhs, a & b);
+			case OR:  return constant(lhs, a | b);
+			default:  return constant(lhs, a ^ b);
+			}
+		}
+		}
+	}
+
+	/**
+	 * @param right whether the constant is the right operand
+	 * @return true if `e op c` (or `c op e`) is always equal to `e`
+	 */
+	private static boolean isIdentity(ExpKind op, TypeKind kind, Number c, boolean right) {
+		boolean integral = kind != TypeKind.FLOAT && kind != TypeKind.DOUBLE;
+		boolean zero = c.doubleValue() == 0;
+		boolean one = c.doubleValue() == 1;
+
+		switch (op) {
+		case ADD: return integral && zero;        // -0.0 + 0.0 is 0.0
+		case SUB: return right && zero;           
+		case MUL: return one;
+		case DIV: return right && one;
+		case OR:  
+		case XOR: return integral && kind != TypeKind.LONG && zero;
+		case AND: return integral && kind != TypeKind.LONG && c.intValue() == -1;
+		default:  return false;
+		}
+	}
+
+	private IConstructor shift(IConstructor exp, IConstructor lhs, IConstructor rhs) {
+		Number r = number(rhs);
+
+		if (r == null || kind(rhs) != TypeKind.INTEGER) {
+			return exp;
+		}
+
+		int s = r.intValue();
+		Number l = number(lhs);
+
+		if (l == null) {
+			return s == 0 ? lhs : exp;
+		}
+
+		switch (kind(lhs)) {
+		case LONG: {
+			long a = l.longValue();
+			switch (Dispatch.EXP.of(exp)) {
+			case SHL: return constant(lhs, a << s);
+			case SHR: return constant(lhs, a >> s);
+			default:  return constant(lhs, a >>> s);
+			}
+		}
+		case FLOAT:
+		case DOUBLE:
+			return exp;
+		default: {
+			int a = l.intValue();
+			switch (Dispatch.EXP.of(exp)) {
+			case SHL: return constant(lhs, a << s);
+			case SHR: return constant(lhs, a >> s);
+			default:  return constant(lhs, a >>> s);
+			}
+		}
+		}
+	}
+
+	/**
+	 * @return the value of a boolean constant, or null if the expression is not one
+	 */
+	private static Boolean bool(IConstructor exp) {
+		switch (Dispatch.EXP.of(exp)) {
+		case TRUE: 
+			return true;
+		case FALSE: 
+			return false;
+		case CONST:
+			IValue v = AST.$getConstant(exp);
+			return kind(exp) == TypeKind.BOOLEAN && v instanceof IBool ? ((IBool) v).getValue() : null;
+		default:
+			return null;
+		}
+	}
+
+	/**
+	 * @return the value of a numeric constant, as the compiler would push it, or null if the expression is not one
+	 */
+	private static Number number(IConstructor exp) {
+		if (Dispatch.EXP.of(exp) != ExpKind.CONST) {
+			return null;
+		}
+
+		IValue v = AST.$getConstant(exp);
+
+		switch (kind(exp)) {
+		case INTEGER: case SHORT: case BYTE: case CHARACTER: 
+			return v instanceof IInteger ? (Number) AST.$getIntegerConstant(v) : null;
+		case LONG: 
+			return v instanceof IInteger ? (Number) AST.$getLongConstant(v) : null;
+		case FLOAT: 
+			return v instanceof IReal ? (Number) AST.$getFloatConstant(v) : null;
+		case DOUBLE: 
+			return v instanceof IReal ? (Number) AST.$getDoubleConstant(v) : null;
+		default:
+			return null;
+		}
+	}
+
+	private static boolean isConstant(IConstructor exp) {
+		switch (Dispatch.EXP.of(exp)) {
+		case TRUE: case FALSE: case NULL: case CONST:
+			return true;
+		default:
+			return false;
+		}
+	}
+
+	private static boolean isNumeric(TypeKind kind) {
+		switch (kind) {
+		case INTEGER: case SHORT: case BYTE: case CHARACTER: case LONG: case FLOAT: case DOUBLE:
+			return true;
+		default:
+			return false;
+		}
+	}
+
+	private static TypeKind kind(IConstructor constant) {
+		return Dispatch.TYPE.of(AST.$getType(constant));
+	}
+
+	/**
+	 * @param like a constant of the type of the result
+	 * @return a constant like `like` with the given value, or null if the value can not be represented
+	 */
+	private static IConstructor constant(IConstructor like, Number value) {
+		IValue v;
+
+		if (value instanceof Float || value instanceof Double) {
+			double d = value.doubleValue();
+
+			if (Double.isNaN(d) || Double.isInfinite(d) || Double.doubleToRawLongBits(d) == Double.doubleToRawLongBits(-0.0d)) {
+				return null;
+			}
+
+			v = vf.real(d);
+		}
+		else if (value instanceof Long) {
+			v = vf.integer(value.longValue());
+		}
+		else {
+			v = vf.integer(value.intValue());
+		}
+
+		return like.set(1, v);
+	}
+
+	/**
+	 * @return the number of expression and statement nodes in a value
+	 */
+	static int nodes(IValue v) {
+		int count = 0;
+
+		if (v instanceof IConstructor) {
+			IConstructor node = (IConstructor) v;
+			String adt = node.getConstructorType().getAbstractDataType().getName();
+
+			if (adt.equals("Type") || adt.equals("Signature")) {
+				return 0;
+			}
+
+			if (adt.equals("Exp") || adt.equals("Stat")) {
+				count++;
+			}
+
+			for (IValue child : node.getChildren()) {
+				count += nodes(child);
+			}
+
+			if (node.mayHaveKeywordParameters()) {
+				for (IValue child : node.asWithKeywordParameters().getParameters().values()) {
+					count += nodes(child);
+				}
+			}
+		}
+		else if (v instanceof IList) {
+			for (IValue elem : (IList) v) {
+				count += nodes(elem);
+			}
+		}
+
+		return count;
+	}
+}
@@ -0,0 +1,89 @@
+/*
+ * Copyright (c) 2022, NWO-I CWI 
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package lang.flybytes.internal;
+
+/**
+ * Partitions the sorted keys of a switch into clusters: dense ranges of keys which a TABLESWITCH 
+ * jumps through in one step, and single keys which need a comparison. The partition with the least 
+ * clusters wins, which dynamic programming over the sorted keys finds, like LLVM does for its jump tables.
+ */
+public class SwitchClusters {
+	/**
+	 * A table must have at least this many keys, since a few comparisons are cheaper than a TABLESWITCH
+	 */
+	public static final int MIN_TABLE_KEYS = 4;
+
+	/**
+	 * The minimal percentage of the slots of a table which jump to a case, and not to the default
+	 */
+	public static final int MIN_TABLE_DENSITY = 40;
+
+	/**
+	 * Up to this many clusters are tested one by one, instead of by a tree of comparisons
+	 */
+	public static final int LINEAR_CLUSTERS = 3;
+
+	private SwitchClusters() { }
+
+	/**
+	 * @param keys the keys of a switch, sorted and without duplicates
+	 * @return the boundaries of the clusters: cluster i holds the keys from index `result[i]` until `result[i+1]`
+	 */
+	public static int[] clusters(int[] keys) {
+		int n = keys.length;
+		int[] count = new int[n + 1];  // the least number of clusters of the first i keys
+		int[] start = new int[n + 1];  // where the last of those clusters starts
+
+		for (int i = 1; i <= n; i++) {
+			// the i-th key on its own
+			count[i] = count[i - 1] + 1;
+			start[i] = i - 1;
+
+			// or a table of the keys j until i
+			for (int j = i - MIN_TABLE_KEYS; j >= 0; j--) {
+				long range = (long) keys[i - 1] - keys[j] + 1;
+
+				if ((i - j) * 100L < range * MIN_TABLE_DENSITY) {
+					continue; // including more keys on the left may make it dense again
+				}
+
+				if (count[j] + 1 < count[i]) {
+					count[i] = count[j] + 1;
+					start[i] = j;
+				}
+			}
+		}
+
+		int[] result = new int[count[n] + 1];
+
+		for (int i = n, c = count[n]; i > 0; i = start[i]) {
+			result[c--] = i;
+		}
+
+		return result;
+	}
+}
@@ -0,0 +1,212 @@
+/*
+ * Copyright (c) 2022, NWO-I CWI 
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package lang.flybytes.internal;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.objectweb.asm.Label;
+
+import io.usethesource.vallang.IConstructor;
+import io.usethesource.vallang.IList;
+import lang.flybytes.internal.Dispatch.TypeKind;
+
+/**
+ * The local variables of a single method, with lexical scoping. Names are resolved with a hash lookup,
+ * to the innermost visible declaration. When a scope is exited, its variables become invisible and their
+ * slots are given back, such that the next declaration can reuse them.
+ * 
+ * Every variable remembers the range of code in which it is in scope, for the LocalVariableTable.
+ */
+public class SymbolTable {
+	public static class Variable {
+		public final String name;
+		public final IConstructor type;
+		public final int slot;
+		public final IList annotations;
+		private final Scope scope;
+		private final Variable shadowed;
+		private Label start;
+		private Label end;
+
+		private Variable(String name, IConstructor type, int slot, IList annotations, Scope scope, Variable shadowed, Label start) {
+			this.name = name;
+			this.type = type;
+			this.slot = slot;
+			this.annotations = annotations;
+			this.scope = scope;
+			this.shadowed = shadowed;
+			this.start = start;
+		}
+
+		public Label getStart() {
+			return start;
+		}
+
+		public void setStart(Label start) {
+			this.start = start;
+		}
+
+		public Label getEnd() {
+			return end;
+		}
+	}
+
+	public static class Scope {
+		/** the scope in which names are resolved next */
+		private final Scope parent;
+		/** the scope which becomes current again when this one is exited */
+		private final Scope outer;
+		private final int firstSlot;
+		private final boolean detached;
+		private final List<Variable> declared = new ArrayList<>();
+
+		private Scope(Scope parent, Scope outer, int firstSlot, boolean detached) {
+			this.parent = parent;
+			this.outer = outer;
+			this.firstSlot = firstSlot;
+			this.detached = detached;
+		}
+	}
+
+	private final Map<String, Variable> visible = new HashMap<>();
+	private final List<Variable> variables = new ArrayList<>();
+	private Scope current = new Scope(null, null, 0, false);
+	private int nextSlot = 0;
+	private int maxSlot = 0;
+	private int detachedDepth = 0;
+
+	public Scope currentScope() {
+		return current;
+	}
+
+	public void enterScope() {
+		current = new Scope(current, current, nextSlot, false);
+	}
+
+	/**
+	 * Enters a scope in which names are resolved as if we were in the given lexical scope, while new variables
+	 * still get slots after the ones which are in use at this point. This is used for code which is generated 
+	 * at a different place than where it was written, like finally blocks before a return.
+	 */
+	public void enterDetachedScope(Scope lexical) {
+		current = new Scope(lexical, current, nextSlot, true);
+		detachedDepth++;
+	}
+
+	/**
+	 * Exits the current scope; its variables go out of scope at the `end` label and their slots are reused.
+	 */
+	public void exitScope(Label end) {
+		Scope scope = current;
+
+		for (Variable var : scope.declared) {
+			var.end = end;
+
+			if (var.shadowed != null) {
+				visible.put(var.name, var.shadowed);
+			}
+			else {
+				visible.remove(var.name);
+			}
+		}
+
+		if (scope.detached) {
+			detachedDepth--;
+		}
+
+		nextSlot = scope.firstSlot;
+		current = scope.outer;
+	}
+
+	public Variable declare(String name, IConstructor type, IList annotations, Label start) {
+		Variable var = new Variable(name, type, nextSlot, annotations, current, visible.get(name), start);
+		TypeKind kind = Dispatch.TYPE.of(type);
+
+		// doubles and longs take up 2 slots
+		nextSlot += (kind == TypeKind.DOUBLE || kind == TypeKind.LONG) ? 2 : 1;
+		maxSlot = Math.max(maxSlot, nextSlot);
+
+		current.declared.add(var);
+		variables.add(var);
+		visible.put(name, var);
+
+		return var;
+	}
+
+	public Variable lookup(String name) {
+		Variable var = find(name);
+
+		if (var == null) {
+			throw new IllegalArgumentException("name not found: " + name);
+		}
+
+		return var;
+	}
+
+	/**
+	 * @return the variable which is visible under this name, or null if there is none
+	 */
+	public Variable find(String name) {
+		Variable var = visible.get(name);
+
+		if (detachedDepth > 0) {
+			// skip the variables which were declared at the place where the detached code is generated
+			while (var != null && !isVisible(var.scope)) {
+				var = var.shadowed;
+			}
+		}
+
+		return var;
+	}
+
+	private boolean isVisible(Scope scope) {
+		for (Scope s = current; s != null; s = s.parent) {
+			if (s == scope) {
+				return true;
+			}
+		}
+
+		return false;
+	}
+
+	/**
+	 * @return all variables ever declared, in declaration order
+	 */
+	public List<Variable> variables() {
+		return variables;
+	}
+
+	/**
+	 * @return the number of slots needed for all variables
+	 */
+	public int maxLocals() {
+		return maxSlot;
+	}
+}